@@ -0,0 +1,216 @@
+package com.feup.sdis.mapapp;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import com.feup.sdis.mapapp.client.ClientInterface;
+import com.feup.sdis.mapapp.client.Prefetcher;
+import com.feup.sdis.mapapp.client.ServerClient;
+import com.feup.sdis.mapapp.client.ServerService;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * Ongoing games, fetched from the server a page at a time.
+ *
+ * Pages are requested with "game?offset=&limit=" and the next one is prefetched while the
+ * user scrolls, once fewer than {@link #PREFETCH_DISTANCE} loaded games are left below the
+ * visible ones. Rows are recycled by the list, so only the visible games have views.
+ * A server that ignores the paging parameters and sends every game is also handled.
+ * A first page prefetched right after the login is shown without a request
+ */
+public class GameListAdapter extends BaseAdapter implements AbsListView.OnScrollListener {
+
+    /** Games asked for in each request **/
+    private static final int PAGE_SIZE = 25;
+
+    /** Loaded games left below the visible ones when the next page is requested **/
+    private static final int PREFETCH_DISTANCE = 10;
+
+    /**
+     * A game listed by the server
+     */
+    public static class Game {
+
+        public final String owner;
+
+        public final String mapname;
+
+        Game(String owner, String mapname) {
+            this.owner = owner;
+            this.mapname = mapname;
+        }
+    }
+
+    private final LayoutInflater inflater;
+
+    private final List<Game> games = new ArrayList<>();
+
+    /** Owners of the loaded games, a game moving between pages is only listed once **/
+    private final Set<String> owners = new HashSet<>();
+
+    /** Offset of the next page **/
+    private int offset = 0;
+
+    /** False once the last page was received **/
+    private boolean hasMore = true;
+
+    /** Page request in flight, null if none **/
+    private Future<String> pending;
+
+    public GameListAdapter(Context context) {
+        this.inflater = LayoutInflater.from(context);
+    }
+
+    /**
+     * @return Path of the page starting at the given offset
+     */
+    public static String pagePath(int offset) {
+        return "game?offset=" + offset + "&limit=" + PAGE_SIZE;
+    }
+
+    /**
+     * Drops the loaded games and fetches the first page again
+     */
+    public void reload() {
+        cancel();
+        games.clear();
+        owners.clear();
+        offset = 0;
+        hasMore = true;
+        notifyDataSetChanged();
+
+        String prefetched = Prefetcher.get().take(pagePath(0));
+        if (prefetched != null) {
+            onPageReceived(0, prefetched);
+        } else {
+            loadNextPage();
+        }
+    }
+
+    /**
+     * Cancels the page request in flight, if any
+     */
+    public void cancel() {
+        if (pending != null) {
+            pending.cancel(true);
+            pending = null;
+        }
+    }
+
+    /**
+     * Requests the next page, unless one is already in flight or there are no more
+     */
+    public void loadNextPage() {
+
+        if (pending != null || !hasMore) {
+            return;
+        }
+
+        final int requested = offset;
+
+        pending = ServerClient.enqueue(pagePath(requested), "GET",
+                new ClientInterface() {
+                    @Override
+                    public void onResponseReceived(String s) {
+                        pending = null;
+                        onPageReceived(requested, s);
+                    }
+                });
+    }
+
+    private void onPageReceived(int requested, String response) {
+
+        if (response == null || ServerService.decodeResponse(response) != 200) {
+            // scrolling again retries
+            return;
+        }
+
+        try {
+            JSONObject page = new JSONObject(response.substring(response.indexOf(" - ") + 3));
+            JSONArray array = page.optJSONArray("games");
+            int count = array == null ? 0 : array.length();
+
+            int added = 0;
+            for (int i = 0; i < count; i++) {
+                JSONObject game = array.getJSONObject(i);
+                String owner = game.getString("owner");
+                if (owners.add(owner)) {
+                    games.add(new Game(owner, game.getString("mapname")));
+                    added++;
+                }
+            }
+
+            offset = requested + count;
+
+            if (added == 0) {
+                // nothing new, a server ignoring the paging sends the same page forever
+                hasMore = false;
+            } else if (page.has("total")) {
+                hasMore = offset < page.getInt("total");
+            } else {
+                // a short page is the last one, a longer one means paging was ignored
+                hasMore = count == PAGE_SIZE;
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            hasMore = false;
+        }
+
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return games.size();
+    }
+
+    @Override
+    public Game getItem(int position) {
+        return games.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+
+        View row = convertView;
+        if (row == null) {
+            row = inflater.inflate(R.layout.item_game, parent, false);
+            row.setTag(row.findViewById(R.id.text_game));
+        }
+
+        Game game = games.get(position);
+        ((TextView) row.getTag()).setText("Map: " + game.mapname + "\n Created by: " + game.owner);
+
+        return row;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        if (firstVisibleItem + visibleItemCount >= totalItemCount - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
+    }
+}
@@ -12,40 +12,28 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.feup.sdis.mapapp.client.ActivityToken;
-import com.feup.sdis.mapapp.client.ServerService;
+import com.feup.sdis.mapapp.client.ClientInterface;
+import com.feup.sdis.mapapp.client.GameRequests;
+import com.feup.sdis.mapapp.client.MyApp;
+import com.feup.sdis.mapapp.client.Prefetcher;
+import com.feup.sdis.mapapp.client.ServerClient;
 
 import org.json.JSONObject;
 
-import java.io.InputStream;
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-
 /**
  * Created by Rui on 27/05/2017.
  */
 
 public class LoginActivity extends AppCompatActivity {
 
-    private InputStream certStream;
-
-    private InputStream trustStream;
-
-    private String response;
-
     @Override
     public void onCreate (Bundle savedInstanceState){
         super.onCreate(savedInstanceState);
 
         setContentView(R.layout.activity_login);
 
-        try {
-            this.certStream = this.getApplicationContext().getAssets().open("testks.bks");
-            this.trustStream = this.getApplicationContext().getAssets().open("truststore.bks");
-
-        } catch (Exception e){
-            e.printStackTrace();
-        }
+        // the connection is ready by the time the credentials are typed
+        Prefetcher.get().warmUp();
 
         Button loginBtn = (Button) findViewById(R.id.btn_login);
         loginBtn.setOnClickListener(new View.OnClickListener() {
@@ -89,28 +77,19 @@ public class LoginActivity extends AppCompatActivity {
         String userpass = userPass.getText().toString();
 
         // Do Login
-        JSONObject userJSON = new JSONObject();
         try {
-            userJSON.put("username", username);
-            userJSON.put("userhash", bin2hex(getHash(userpass)));
-
-            try {
-                this.certStream = this.getApplicationContext().getAssets().open("testks.bks");
-                this.trustStream = this.getApplicationContext().getAssets().open("truststore.bks");
-
-            } catch (Exception e){
-                e.printStackTrace();
-            }
-
-            response = new ServerService(this, certStream, trustStream) {
+            ServerClient.enqueue("users", "POST", GameRequests.user(username, GameRequests.userhash(userpass)), new ClientInterface() {
                 @Override
                 public void onResponseReceived(String s){
-                    response = s;
+                    onLoginResponse(s);
                 }
-            }.execute("users", "POST", userJSON.toString()).get();
+            });
         } catch (Exception e ){
             e.printStackTrace();
         }
+    }
+
+    private void onLoginResponse(String response) {
 
         if (response != null){
             if (response.startsWith("303")){
@@ -120,6 +99,8 @@ public class LoginActivity extends AppCompatActivity {
                     Log.i("asdas", userInfo.toString());
                     String accessToken = userInfo.getString("accesstoken");
                     String usernamea = userInfo.getString("username");
+                    MyApp.startSession(usernamea, accessToken);
+                    Prefetcher.get().afterLogin(GameListAdapter.pagePath(0));
 
                     Intent intent = ActivityToken.passUserToken(LoginActivity.this, StartActivity.class, accessToken, usernamea);
                     startActivity(intent);
@@ -139,22 +120,6 @@ public class LoginActivity extends AppCompatActivity {
 
     }
 
-    public byte[] getHash(String password){
-        MessageDigest sys = null;
-        try {
-            sys = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e){
-            e.printStackTrace();
-        }
-
-        sys.reset();
-        return sys.digest(password.getBytes());
-    }
-
-    public String bin2hex(byte[] data) {
-        return String.format("%0" + (data.length * 2) + 'x', new BigInteger(1, data));
-    }
-
     public boolean validateFields(){
         boolean validated = true;
 
@@ -180,16 +145,4 @@ public class LoginActivity extends AppCompatActivity {
         return validated;
     }
 
-    @Override
-    public void onStart(){
-        super.onStart();
-        try {
-            certStream = this.getApplicationContext().getAssets().open("testks.bks");
-            trustStream = this.getApplicationContext().getAssets().open("truststore.bks");
-
-        } catch (Exception e){
-            e.printStackTrace();
-        }
-    }
-
 }
@@ -10,6 +10,10 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.Toast;
 
+import com.feup.sdis.mapapp.client.ActivityToken;
+import com.feup.sdis.mapapp.client.MyApp;
+import com.feup.sdis.mapapp.client.Prefetcher;
+
 
 /**
  * This class implements the main activity.
@@ -21,6 +25,16 @@ public class MainActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         try
         { super.onCreate(savedInstanceState);
+
+            if (MyApp.hasSession()) {
+                // session restored by MyApp, no login round trip needed
+                Prefetcher.get().afterLogin(GameListAdapter.pagePath(0));
+                startActivity(ActivityToken.passUserToken(this, StartActivity.class,
+                        MyApp.getAccessToken(), MyApp.getUsername()));
+                finish();
+                return;
+            }
+
             setContentView(R.layout.activity_main);
 
             Button btnStart = (Button) findViewById(R.id.btn_start);
@@ -0,0 +1,121 @@
+package com.feup.sdis.mapapp;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Set of markers of the same color, keyed by name (ie one per player).
+ *
+ * Markers are reused between updates: a known key only has its position changed, and the
+ * markers of keys that left are hidden and kept in a pool for the next key that shows up.
+ * Must only be used from the main thread
+ */
+public class MarkerLayer {
+
+    /** Max hidden markers kept for reuse */
+    private static final int MAX_POOL_SIZE = 16;
+
+    /** Marker icons by hue, shared by every layer */
+    private static final Map<Float, BitmapDescriptor> icons = new HashMap<>();
+
+    /** GoogleMap the markers belong to */
+    private final GoogleMap map;
+
+    /** Icon of every marker in this layer */
+    private final BitmapDescriptor icon;
+
+    /** Visible markers by key */
+    private final Map<String, Marker> markers = new HashMap<>();
+
+    /** Hidden markers ready to be reused */
+    private final ArrayDeque<Marker> pool = new ArrayDeque<>();
+
+    /**
+     * @param map GoogleMap to draw on
+     * @param hue Marker hue, one of BitmapDescriptorFactory.HUE_*
+     */
+    public MarkerLayer(GoogleMap map, float hue) {
+        this.map = map;
+        this.icon = icon(hue);
+    }
+
+    /**
+     * Returns the default marker icon with the given hue, creating it only once
+     *
+     * @param hue Marker hue, one of BitmapDescriptorFactory.HUE_*
+     */
+    public static BitmapDescriptor icon(float hue) {
+
+        BitmapDescriptor descriptor = icons.get(hue);
+        if (descriptor == null) {
+            descriptor = BitmapDescriptorFactory.defaultMarker(hue);
+            icons.put(hue, descriptor);
+        }
+        return descriptor;
+    }
+
+    /**
+     * Shows the marker of the given key at a position, moving it only if it changed
+     *
+     * @param key      Marker name
+     * @param position Marker position
+     */
+    public void update(String key, LatLng position) {
+
+        Marker marker = markers.get(key);
+
+        if (marker != null) {
+            if (!position.equals(marker.getPosition())) {
+                marker.setPosition(position);
+            }
+            return;
+        }
+
+        marker = pool.poll();
+        if (marker != null) {
+            marker.setPosition(position);
+            marker.setVisible(true);
+        } else {
+            marker = map.addMarker(new MarkerOptions()
+                    .position(position)
+                    .icon(icon));
+        }
+
+        markers.put(key, marker);
+    }
+
+    /**
+     * Hides the marker of the given key, keeping it for reuse
+     *
+     * @param key Marker name
+     */
+    public void remove(String key) {
+
+        Marker marker = markers.remove(key);
+        if (marker == null) {
+            return;
+        }
+
+        if (pool.size() < MAX_POOL_SIZE) {
+            marker.setVisible(false);
+            pool.push(marker);
+        } else {
+            marker.remove();
+        }
+    }
+
+    /**
+     * @return Number of visible markers
+     */
+    public int size() {
+        return markers.size();
+    }
+}
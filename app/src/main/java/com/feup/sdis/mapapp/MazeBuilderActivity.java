@@ -2,7 +2,9 @@ package com.feup.sdis.mapapp;
 
 import android.content.DialogInterface;
 import android.graphics.Color;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.text.InputType;
@@ -14,7 +16,13 @@ import android.view.MenuItem;
 import android.widget.EditText;
 import android.widget.Toast;
 
+import com.feup.sdis.mapapp.client.ClientInterface;
+import com.feup.sdis.mapapp.client.MapUpload;
 import com.feup.sdis.mapapp.client.ServerService;
+import com.feup.sdis.mapapp.maze.LocalProjection;
+import com.feup.sdis.mapapp.maze.MazeCodec;
+import com.feup.sdis.mapapp.maze.MazeGraph;
+import com.feup.sdis.mapapp.maze.StrokeBuffer;
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.OnMapReadyCallback;
@@ -32,9 +40,6 @@ import com.google.maps.android.PolyUtil;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -48,6 +53,15 @@ public class MazeBuilderActivity extends AppCompatActivity implements OnMapReady
     /** Max range entrance and exit can be of the rest of the maze */
     public static double TOLERANCE = 3.5;
 
+    /** Drag samples closer than this (in meters) to the last point of a line are dropped */
+    private static final double STROKE_RADIAL_TOLERANCE = 1.0;
+
+    /** Max distance (in meters) a dropped drag sample can be of the simplified line */
+    private static final double STROKE_SIMPLIFY_TOLERANCE = 0.5;
+
+    /** Min time (in milliseconds) between two updates of the line being drawn, about 30 fps */
+    private static final long STROKE_FRAME_INTERVAL = 33;
+
     /** GoogleMap */
     private GoogleMap map = null;
 
@@ -66,6 +80,19 @@ public class MazeBuilderActivity extends AppCompatActivity implements OnMapReady
     /** The current polyline being drawn by the user */
     private Polyline activePolyline = null;
 
+    /** Simplified points of {@link #activePolyline} */
+    private StrokeBuffer activeStroke = null;
+
+    /** True if {@link #activeStroke} has points the polyline doesn't show yet */
+    private boolean strokeDirty = false;
+
+    /** Time of the last polyline update, in milliseconds */
+    private long lastStrokePush = 0;
+
+    /** Polyline updates of the current stroke and the time they took, in nanoseconds */
+    private int strokePushes = 0;
+    private long strokePushTime = 0, strokeMaxPushTime = 0;
+
     /** Entrance to the maze */
     private Marker entrance = null;
 
@@ -81,12 +108,6 @@ public class MazeBuilderActivity extends AppCompatActivity implements OnMapReady
     /** Map name to be submitted **/
     private String mapName = "";
 
-    private InputStream certStream;
-
-    private InputStream trustStream;
-
-    private String response;
-
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -129,7 +150,7 @@ public class MazeBuilderActivity extends AppCompatActivity implements OnMapReady
                     Toast toast = Toast.makeText(this, getText(R.string.wrong_entrance_or_exit), Toast.LENGTH_LONG);
                     toast.show();
                 } else {
-                    sendMaze();
+                    checkExitReachableAndSend();
                 }
                 break;
             default:
@@ -183,6 +204,13 @@ public class MazeBuilderActivity extends AppCompatActivity implements OnMapReady
         activePolyline = map.addPolyline(new PolylineOptions()
                 .add(marker.getPosition())
                 .color(Color.BLUE));
+
+        activeStroke = new StrokeBuffer(marker.getPosition(), STROKE_RADIAL_TOLERANCE, STROKE_SIMPLIFY_TOLERANCE);
+        strokeDirty = false;
+        lastStrokePush = SystemClock.uptimeMillis();
+        strokePushes = 0;
+        strokePushTime = 0;
+        strokeMaxPushTime = 0;
     }
 
 
@@ -193,7 +221,7 @@ public class MazeBuilderActivity extends AppCompatActivity implements OnMapReady
         offsetMarker(marker, offset);
 
         // extend the line being drawn to this position
-        extendPolyline(activePolyline, marker.getPosition());
+        extendPolyline(marker.getPosition());
     }
 
 
@@ -203,12 +231,21 @@ public class MazeBuilderActivity extends AppCompatActivity implements OnMapReady
         // offset marker
         offsetMarker(marker, offset);
 
+        // show the whole simplified line
+        activeStroke.finish();
+        pushStroke();
+
+        Log.d("Stroke", activeStroke.sampleCount() + " samples, " + activeStroke.pointCount() + " points, "
+                + strokePushes + " updates, " + (strokePushTime / Math.max(strokePushes, 1) / 1000) + " us avg, "
+                + (strokeMaxPushTime / 1000) + " us max");
+
         // add drawn line to the maze
         maze.add(activePolyline);
 
         // cleanup for next event
         activeMarkerStandingPos = marker.getPosition();
         activePolyline = null;
+        activeStroke = null;
     }
 
 
@@ -275,16 +312,38 @@ public class MazeBuilderActivity extends AppCompatActivity implements OnMapReady
 
 
     /**
-     * Extends a polyline by adding a point to it
+     * Extends the line being drawn by adding a point to it.
+     * The point goes to the stroke buffer, the polyline is only updated once per frame
      *
-     * @param polyline Polyline to extend
-     * @param point    Point to add to the polyline
+     * @param point Point to add to the line being drawn
+     */
+    public void extendPolyline(LatLng point) {
+
+        if (activeStroke.add(point)) {
+            strokeDirty = true;
+        }
+
+        if (strokeDirty && SystemClock.uptimeMillis() - lastStrokePush >= STROKE_FRAME_INTERVAL) {
+            pushStroke();
+        }
+    }
+
+
+    /**
+     * Copies the points of the stroke buffer to the line being drawn
      */
-    public void extendPolyline(Polyline polyline, LatLng point) {
+    private void pushStroke() {
+
+        long start = System.nanoTime();
+        activePolyline.setPoints(activeStroke.getPoints());
+        long elapsed = System.nanoTime() - start;
 
-        List<LatLng> polylinePts = polyline.getPoints();
-        polylinePts.add(point);
-        polyline.setPoints(polylinePts);
+        strokePushes++;
+        strokePushTime += elapsed;
+        strokeMaxPushTime = Math.max(strokeMaxPushTime, elapsed);
+
+        strokeDirty = false;
+        lastStrokePush = SystemClock.uptimeMillis();
     }
 
 
@@ -312,9 +371,17 @@ public class MazeBuilderActivity extends AppCompatActivity implements OnMapReady
      */
     public boolean isLocationOnMaze(LatLng point, ArrayList<Polyline> maze, double tolerance) {
 
+        List<List<LatLng>> lines = new ArrayList<>(maze.size());
         for (Polyline polyline : maze) {
+            lines.add(polyline.getPoints());
+        }
+
+        // the maze is small enough for flat distances
+        LocalProjection projection = LocalProjection.around(lines);
+
+        for (List<LatLng> line : lines) {
 
-            if (PolyUtil.isLocationOnPath(point, polyline.getPoints(), polyline.isGeodesic(), tolerance)) {
+            if (projection.isLocationOnPath(point, line, tolerance)) {
                 return true;
             }
         }
@@ -323,6 +390,51 @@ public class MazeBuilderActivity extends AppCompatActivity implements OnMapReady
     }
 
 
+    /**
+     * Checks in the background that the exit can be reached from the entrance through the
+     * lines of the maze, and sends the maze if it can
+     */
+    private void checkExitReachableAndSend() {
+
+        // polylines can only be read on the main thread
+        final List<List<LatLng>> lines = new ArrayList<>(maze.size());
+        for (Polyline polyline : maze) {
+            lines.add(polyline.getPoints());
+        }
+
+        final LatLng start = entrance.getPosition();
+        final LatLng finish = exit.getPosition();
+
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+
+                long begin = SystemClock.elapsedRealtime();
+                MazeGraph graph = new MazeGraph(lines, TOLERANCE);
+                boolean connected = graph.connects(start, finish, TOLERANCE);
+
+                Log.d("MazeGraph", graph.segmentCount() + " segments, " + graph.junctionCount() + " junctions, "
+                        + (SystemClock.elapsedRealtime() - begin) + " ms");
+
+                return connected;
+            }
+
+            @Override
+            protected void onPostExecute(Boolean connected) {
+
+                if (isFinishing()) return;
+
+                if (connected) {
+                    sendMaze();
+                } else {
+                    Toast toast = Toast.makeText(MazeBuilderActivity.this, getText(R.string.exit_unreachable), Toast.LENGTH_LONG);
+                    toast.show();
+                }
+            }
+        }.execute();
+    }
+
+
     /**
      * Sends the maze to the server
      *
@@ -345,8 +457,8 @@ public class MazeBuilderActivity extends AppCompatActivity implements OnMapReady
 
                 JSONObject mapJSON = new JSONObject();
                 JSONObject jsonAll = new JSONObject();
-                JSONObject singleLine = new JSONObject();
                 JSONArray lineArray = new JSONArray();
+                MazeCodec.Maze binary = new MazeCodec.Maze();
 
                 try {
 
@@ -367,44 +479,35 @@ public class MazeBuilderActivity extends AppCompatActivity implements OnMapReady
                     return;
                 }
 
+                binary.fields.put("username", getIntent().getExtras().getString("username"));
+                binary.fields.put("accesstoken", getIntent().getExtras().getString("accesstoken"));
+                binary.fields.put("name", mapName);
+                binary.startlat = entrance.getPosition().latitude;
+                binary.startlng = entrance.getPosition().longitude;
+                binary.finishlat = exit.getPosition().latitude;
+                binary.finishlng = exit.getPosition().longitude;
+
                 try{
 
                     for (Polyline polyline: maze) {
 
-                        String encodedPolyline = PolyUtil.encode(polyline.getPoints());
-                        singleLine = new JSONObject();
-                        singleLine.put("draw", encodedPolyline);
+                        List<LatLng> points = polyline.getPoints();
+                        binary.lines.add(points);
 
+                        JSONObject singleLine = new JSONObject();
+                        singleLine.put("draw", PolyUtil.encode(points));
+                        lineArray.put(singleLine);
                     }
 
-                    lineArray.put(singleLine);
                     jsonAll.put("lines",lineArray);
 
-                    try {
-                        certStream = getApplicationContext().getAssets().open("testks.bks");
-                        trustStream = getApplicationContext().getAssets().open("truststore.bks");
-
-                    } catch (Exception e){
-                        e.printStackTrace();
-                    }
-
-                    response = new ServerService(certStream, trustStream) {
+                    // binary form when the server has it, JSON otherwise
+                    MapUpload.send(binary, jsonAll.toString(), new ClientInterface() {
                         @Override
                         public void onResponseReceived(String s){
-                            response = s;
+                            showSentMazeResponse(s != null && ServerService.decodeResponse(s) == 201);
                         }
-                    }.execute("maps", "PUT", jsonAll.toString()).get();
-
-                    if (response == null) {
-                        showSentMazeResponse(false);
-                        return;
-                    }
-
-                    if (ServerService.decodeResponse(response) == 201){
-                        showSentMazeResponse(true);
-                    } else {
-                        showSentMazeResponse(false);
-                    }
+                    });
 
                 } catch( Exception e){
                     e.printStackTrace();
@@ -434,16 +537,4 @@ public class MazeBuilderActivity extends AppCompatActivity implements OnMapReady
         }
 
     }
-
-    @Override
-    public void onStart(){
-        super.onStart();
-        try {
-            this.certStream = this.getApplicationContext().getAssets().open("testks.bks");
-            this.trustStream = this.getApplicationContext().getAssets().open("truststore.bks");
-
-        } catch (Exception e){
-            e.printStackTrace();
-        }
-    }
 }
@@ -7,16 +7,38 @@ import android.content.IntentSender;
 import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.location.Location;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
 import android.widget.Toast;
 
+import com.feup.sdis.mapapp.client.ClientInterface;
+import com.feup.sdis.mapapp.client.HttpTransport;
+import com.feup.sdis.mapapp.location.LocationScheduler;
+import com.feup.sdis.mapapp.location.LocationTrace;
+import com.feup.sdis.mapapp.location.TraceReplayer;
+import com.feup.sdis.mapapp.client.MapCache;
+import com.feup.sdis.mapapp.client.MazeReader;
+import com.feup.sdis.mapapp.client.PlayerTable;
+import com.feup.sdis.mapapp.client.PositionExchange;
+import com.feup.sdis.mapapp.client.PositionOutbox;
+import com.feup.sdis.mapapp.client.PositionWriter;
+import com.feup.sdis.mapapp.client.Prefetcher;
+import com.feup.sdis.mapapp.client.RequestBody;
 import com.feup.sdis.mapapp.client.ServerService;
+import com.feup.sdis.mapapp.maze.DistanceField;
+import com.feup.sdis.mapapp.maze.LocalProjection;
+import com.feup.sdis.mapapp.maze.MazeGraph;
+import com.feup.sdis.mapapp.maze.MazeIndex;
+import com.feup.sdis.mapapp.client.ServerClient;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.PendingResult;
@@ -40,16 +62,17 @@ import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
 import com.google.android.gms.maps.model.Polyline;
 import com.google.android.gms.maps.model.PolylineOptions;
-import com.google.maps.android.PolyUtil;
-import com.google.maps.android.SphericalUtil;
-
-import org.json.JSONArray;
-import org.json.JSONObject;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * This class implements the Maze Player activity
@@ -72,11 +95,8 @@ public class MazePlayerActivity extends AppCompatActivity
     /** Max distance a play can move between location updates */
     public static double MOVE_TOLERANCE = 30;
 
-    /** Location request interval, in milliseconds */
-    private static final int LOCATION_REQUEST_INTERVAL = 2000;
-
-    /** Location request fastest interval, in milliseconds */
-    private static final int LOCATION_REQUEST_FASTEST_INTERVAL = 2000;
+    /** Picks the location request interval and priority as the player moves */
+    private final LocationScheduler locationScheduler = new LocationScheduler();
 
     /** GoogleApiClient */
     private GoogleApiClient googleApiClient = null;
@@ -108,6 +128,21 @@ public class MazePlayerActivity extends AppCompatActivity
     /** List of all polylines that make up this maze */
     private ArrayList<Polyline> maze = new ArrayList<>();
 
+    /** Decoded points of every maze line, kept so the map is never queried for them */
+    private ArrayList<List<LatLng>> mazeLines = new ArrayList<>();
+
+    /** Spatial index of the maze segments, built once the maze is loaded */
+    private MazeIndex mazeIndex = null;
+
+    /** Walking distance to the exit from every point of the maze, null until it is built **/
+    private volatile DistanceField distanceField = null;
+
+    /** Walking distance to the nearest junction or dead end, null until it is built **/
+    private volatile DistanceField junctionField = null;
+
+    /** Shows the distance to the exit **/
+    private TextView distanceText = null;
+
     /** Entrance to the maze */
     private volatile Marker entrance = null;
 
@@ -115,23 +150,42 @@ public class MazePlayerActivity extends AppCompatActivity
     private volatile Marker exit = null;
 
     /** Other players **/
-    private volatile ArrayList<Marker> otherPlayers = new ArrayList<>();
-
-    /** Timeout counter **/
+    private MarkerLayer otherPlayers = null;
 
+    /** Failed players responses in a row **/
     private volatile int timeoutCounter = 0;
 
+    /** Failures in a row after which the player is told the connection is lost **/
+    private static final int MAX_TIMEOUTS = 5;
+
     /** Default map zoom */
     private static final int MIN_ZOOM = 17;
 
-    private InputStream certStream;
+    private String owner = null;
 
-    private InputStream trustStream;
+    /** Other players positions, updated with delta snapshots **/
+    private final PlayerTable playerTable = new PlayerTable();
 
-    private String owner = null;
+    /** Sends our position and fetches the other players in one request **/
+    private PositionExchange positionExchange = null;
+
+    /** Encodes our position updates, created once the game owner is known **/
+    private PositionWriter positionWriter = null;
 
+    /** Sends our latest position, retrying while the network is down **/
+    private PositionOutbox positionOutbox = null;
 
-    private String response;
+    /** Pending request for the other players positions **/
+    private Future<String> playersRequest = null;
+
+    /** Records the fixes of this game when asked to, debug builds only **/
+    private LocationTrace.Writer traceWriter = null;
+
+    /** Elapsed realtime of the first recorded fix **/
+    private long traceStart = -1;
+
+    /** Replays a trace instead of using the location provider, debug builds only **/
+    private TraceReplayer replayer = null;
 
     String mapName;
 
@@ -141,9 +195,14 @@ public class MazePlayerActivity extends AppCompatActivity
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        // the game traffic starts now, whatever is left to prefetch would compete with it
+        Prefetcher.get().cancel();
+
         // Retrieve the content view that renders the map.
         setContentView(R.layout.activity_maze_player);
 
+        distanceText = (TextView) findViewById(R.id.text_distance_to_exit);
+
         // Build the Play services client for use by the Fused Location Provider
         googleApiClient = new GoogleApiClient.Builder(this)
                 .enableAutoManage(this /* FragmentActivity */,
@@ -154,11 +213,98 @@ public class MazePlayerActivity extends AppCompatActivity
         googleApiClient.connect();
 
         // Create location request
-        locationRequest = LocationRequest.create()
-                .setInterval(LOCATION_REQUEST_INTERVAL)
-                .setFastestInterval(LOCATION_REQUEST_FASTEST_INTERVAL)
-                .setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
+        locationRequest = createLocationRequest();
+
+        if (BuildConfig.DEBUG) {
+            setUpTraces(getIntent().getExtras());
+        }
+    }
+
+
+    /**
+     * Reads the trace extras of a debug launch, like
+     * adb shell am start -n com.feup.sdis.mapapp/.MazePlayerActivity -e mapname ... -e username ...
+     * -e accesstoken ... -e replay_trace walk.gt -e replay_speed 10 -e server_url https://10.0.2.2:8443/
+     *
+     * record_trace (boolean) records every fix to files/traces. replay_trace is a file of that
+     * folder, or "maze" to walk the maze lines at 1.4 m/s, fed to the player loop at replay_speed
+     * (1 by default, 0 as fast as possible). server_url points the requests to a stub server
+     */
+    private void setUpTraces(Bundle extras) {
+
+        if (extras == null) return;
+
+        if (extras.getString("server_url") != null) {
+            HttpTransport.setServerUrl(extras.getString("server_url"));
+        }
+
+        File traces = new File(getFilesDir(), "traces");
+
+        if (extras.getBoolean("record_trace")) {
+            try {
+                if (!traces.isDirectory() && !traces.mkdirs()) throw new IOException("Can't create " + traces);
+                File file = new File(traces, "trace-" + System.currentTimeMillis() + ".gt");
+                traceWriter = new LocationTrace.Writer(new FileOutputStream(file));
+                Log.i("Replay", "Recording to " + file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        String replay = extras.getString("replay_trace");
+        if (replay == null) return;
 
+        float speed = Float.parseFloat(extras.getString("replay_speed", "1"));
+
+        if (replay.equals("maze")) {
+            // built once the maze is loaded, see startLocationUpdates
+            replayer = new TraceReplayer(new LocationTrace(new ArrayList<LocationTrace.Fix>()), this, speed);
+            return;
+        }
+
+        try {
+            InputStream in = new FileInputStream(new File(traces, replay));
+            try {
+                replayer = new TraceReplayer(LocationTrace.read(in), this, speed);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e("Replay", "Can't read trace " + replay, e);
+        }
+    }
+
+
+    /**
+     * Appends a fix to the trace being recorded
+     */
+    private void recordFix(Location location) {
+        try {
+            long now = SystemClock.elapsedRealtime();
+            if (traceStart < 0) traceStart = now;
+
+            traceWriter.write(new LocationTrace.Fix(now - traceStart, location.getLatitude(),
+                    location.getLongitude(), location.hasAccuracy() ? location.getAccuracy() : 0));
+        } catch (IOException e) {
+            e.printStackTrace();
+            traceWriter = null;
+        }
+    }
+
+
+    /**
+     * Walks every maze line in turn, starting at the entrance
+     */
+    private LocationTrace mazeWalk() {
+
+        List<LatLng> path = new ArrayList<>();
+        path.add(new LatLng(startlat, startlng));
+        for (List<LatLng> line : mazeLines) {
+            path.addAll(line);
+        }
+        path.add(new LatLng(finishlat, finishlng));
+
+        return LocationTrace.walk(path, 1.4, 1000, 5);
     }
 
 
@@ -169,6 +315,25 @@ public class MazePlayerActivity extends AppCompatActivity
         if (googleApiClient.isConnected())
             googleApiClient.disconnect();
 
+        if (playersRequest != null)
+            playersRequest.cancel(false);
+
+        if (positionOutbox != null) {
+            Log.i("Outbox", "Game over: " + positionOutbox);
+            positionOutbox.close();
+        }
+
+        if (replayer != null)
+            replayer.stop();
+
+        if (traceWriter != null) {
+            try {
+                traceWriter.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
         
 
     }
@@ -327,94 +492,211 @@ public class MazePlayerActivity extends AppCompatActivity
 
         map = googleMap;
 
-        try {
-            refreshStreams();
-            mapName = getIntent().getExtras().getString("mapname");
-            if (mapName == null) return;
+        UiSettings uiSettings = map.getUiSettings();
 
-            response = new ServerService(this, certStream, trustStream) {
-                @Override
-                public void onResponseReceived(String s) {
-                    response = s;
-                }
-            }.execute("maps?name=" + mapName, "GET").get();
+        // disable unwanted ui settings
+        uiSettings.setMapToolbarEnabled(false);
+        uiSettings.setIndoorLevelPickerEnabled(false);
+        uiSettings.setScrollGesturesEnabled(false);
+        uiSettings.setTiltGesturesEnabled(false);
 
-            if (response.startsWith("200")) {
-                JSONObject mapJSON = new JSONObject(response.split("200 - ")[1]);
+        map.setMinZoomPreference(MIN_ZOOM);
 
-                JSONArray lines = mapJSON.getJSONArray("lines");
+        otherPlayers = new MarkerLayer(map, BitmapDescriptorFactory.HUE_YELLOW);
 
-                Log.d("lines", "" + lines.length());
+        mapName = getIntent().getExtras().getString("mapname");
+        if (mapName == null) return;
 
-                for (int i = 0; i < lines.length(); i++) {
-                    JSONObject line = lines.getJSONObject(i);
-                    String code = line.getString("draw");
+        // lines are drawn as they are downloaded
+        MapCache.get().load(mapName, new MazeReader(new MazeReader.Listener() {
+            @Override
+            public void onLine(List<LatLng> line) {
+                if (isFinishing()) return;
 
-                    Polyline polyline = map.addPolyline(new PolylineOptions()
-                            .addAll(PolyUtil.decode(code))
-                            .color(Color.BLUE));
+                Polyline polyline = map.addPolyline(new PolylineOptions()
+                        .addAll(line)
+                        .color(Color.BLUE));
 
-                    maze.add(polyline);
-                }
+                maze.add(polyline);
+                mazeLines.add(line);
+            }
 
-                JSONObject mappJSON = mapJSON.getJSONObject("map");
+            @Override
+            public void onInfo(double startlat, double startlng, double finishlat, double finishlng, String owner) {
+                MazePlayerActivity.this.startlat = startlat;
+                MazePlayerActivity.this.startlng = startlng;
+                MazePlayerActivity.this.finishlat = finishlat;
+                MazePlayerActivity.this.finishlng = finishlng;
+                MazePlayerActivity.this.owner = owner;
+                positionExchange = new PositionExchange(owner, playerTable);
+            }
 
-                startlat = mappJSON.getDouble("startlat");
-                startlng = mappJSON.getDouble("startlng");
-                finishlat = mappJSON.getDouble("finishlat");
-                finishlng = mappJSON.getDouble("finishlng");
-                owner = mappJSON.getString("owner");
+            @Override
+            public void onComplete(int code) {
+                onMazeReceived(code);
+            }
+        }));
+    }
 
-                Log.w("here", "hereeeeeeeeee");
 
-                JSONObject gamePOSTJSON = new JSONObject();
-                gamePOSTJSON.put("username", getIntent().getExtras().getString("username"));
-                gamePOSTJSON.put("accesstoken", getIntent().getExtras().getString("accesstoken"));
-                gamePOSTJSON.put("owner", owner);
-                gamePOSTJSON.put("position",
-                        new JSONObject()
-                                .put("lat", startlat).put("lng", startlng));
+    /**
+     * Joins the game of the maze downloaded from the server and starts tracking the player
+     */
+    private void onMazeReceived(int code) {
 
-                response = new ServerService(certStream, trustStream){
-                    @Override
-                    public void onResponseReceived(String s){
-                        response = s;
-                    }
-                }.execute("game", "POST", gamePOSTJSON.toString()).get();
+        if (isFinishing()) return;
 
-            }
-        } catch (Exception e) {
+        if (code != 200) {
+            // a failed download may have drawn part of the maze, don't play on it
+            Toast.makeText(this, getText(R.string.maze_load_fail), Toast.LENGTH_LONG).show();
+            finish();
+            return;
         }
 
-        UiSettings uiSettings = map.getUiSettings();
+        Log.d("lines", "" + maze.size());
 
-        // disable unwanted ui settings
-        uiSettings.setMapToolbarEnabled(false);
-        uiSettings.setIndoorLevelPickerEnabled(false);
-        uiSettings.setScrollGesturesEnabled(false);
-        uiSettings.setTiltGesturesEnabled(false);
+        mazeIndex = new MazeIndex(mazeLines, TOLERANCE);
+        buildDistanceField(new ArrayList<>(mazeLines), new LatLng(finishlat, finishlng));
 
-        map.setMinZoomPreference(MIN_ZOOM);
+        if (positionExchange == null) positionExchange = new PositionExchange(owner, playerTable);
+        if (positionOutbox == null) {
+            positionOutbox = new PositionOutbox(positionExchange, playersListener);
+            positionOutbox.start(this);
+        }
 
-        // Get the current location of the device and set the position of the map.
-        startLocationUpdates();
+        Bundle extras = getIntent().getExtras();
+        positionWriter = new PositionWriter(extras.getString("username"), extras.getString("accesstoken"), owner);
+
+        try {
+            ServerClient.enqueue("game", "POST", positionWriter.at(startlat, startlng), null);
+
+        } catch (Exception e) {
+        }
 
         try {
                 entrance = map.addMarker(new MarkerOptions()
                         .position(new LatLng(startlat, startlng))
-                        .icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_GREEN)));
+                        .icon(MarkerLayer.icon(BitmapDescriptorFactory.HUE_GREEN)));
                 lastValidLocation = map.addMarker(new MarkerOptions()
                         .position(entrance.getPosition())
-                        .icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_VIOLET)));
+                        .icon(MarkerLayer.icon(BitmapDescriptorFactory.HUE_VIOLET)));
                 lastValidLocation.setVisible(false);
                 exit = map.addMarker(new MarkerOptions()
                         .position(new LatLng(finishlat, finishlng))
-                        .icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_RED)));
+                        .icon(MarkerLayer.icon(BitmapDescriptorFactory.HUE_RED)));
 
                 Log.w("entrance", entrance.getPosition() + ";" + exit.getPosition());
         } catch (Exception e ){
             e.printStackTrace();
             finish();
+            return;
+        }
+
+        // Get the current location of the device and set the position of the map.
+        startLocationUpdates();
+    }
+
+
+    /**
+     * Builds the distance to exit and to junction fields in the background, once per maze
+     */
+    private void buildDistanceField(final List<List<LatLng>> lines, final LatLng finish) {
+
+        new AsyncTask<Void, Void, DistanceField[]>() {
+            @Override
+            protected DistanceField[] doInBackground(Void... params) {
+
+                long begin = SystemClock.elapsedRealtime();
+
+                // same join tolerance the maze was validated with
+                MazeGraph graph = new MazeGraph(lines, MazeBuilderActivity.TOLERANCE);
+                DistanceField toExit = new DistanceField(graph, finish, MazeBuilderActivity.TOLERANCE);
+                DistanceField toJunctions = DistanceField.toJunctions(graph);
+
+                Log.d("DistanceField", graph.nodeCount() + " nodes, " + graph.edgeCount() + " edges, "
+                        + graph.junctionCount() + " junctions, "
+                        + (SystemClock.elapsedRealtime() - begin) + " ms");
+
+                return new DistanceField[]{toExit, toJunctions};
+            }
+
+            @Override
+            protected void onPostExecute(DistanceField[] fields) {
+                distanceField = fields[0];
+                junctionField = fields[1];
+            }
+        }.execute();
+    }
+
+
+    /**
+     * Shows how far the player is from the exit, walking along the maze
+     */
+    private void showDistanceToExit(LatLng position) {
+
+        DistanceField field = distanceField;
+        if (field == null) return;
+
+        double remaining = field.remaining(position, mazeIndex, TOLERANCE);
+
+        if (Double.isInfinite(remaining)) {
+            distanceText.setVisibility(View.GONE);
+        } else {
+            distanceText.setText(getString(R.string.distance_to_exit, Math.round(remaining)));
+            distanceText.setVisibility(View.VISIBLE);
+        }
+    }
+
+
+    /**
+     * @return Location request with the interval and priority the scheduler picked
+     */
+    private LocationRequest createLocationRequest() {
+        return LocationRequest.create()
+                .setInterval(locationScheduler.getInterval())
+                .setFastestInterval(locationScheduler.getFastestInterval())
+                .setPriority(locationScheduler.getPriority());
+    }
+
+
+    /**
+     * Feeds a fix to the scheduler, and requests location updates again if it picked another
+     * interval or priority
+     */
+    private void scheduleLocationUpdates(Location location) {
+
+        if (mazeIndex == null) return;
+
+        LatLng position = new LatLng(location.getLatitude(), location.getLongitude());
+        LocalProjection projection = mazeIndex.getProjection();
+
+        // the next decision is a junction or a dead end, off the maze it is being made right now
+        double toDecision = mazeIndex.isLocationOnMaze(position, TOLERANCE) ? Double.POSITIVE_INFINITY : 0;
+        double toExit = projection.distance(position, new LatLng(finishlat, finishlng));
+
+        DistanceField junctions = junctionField;
+        if (junctions != null) {
+            toDecision = Math.min(toDecision, junctions.remaining(position, mazeIndex, TOLERANCE));
+        }
+
+        DistanceField field = distanceField;
+        if (field != null) {
+            // walking is never shorter than the straight line, which is kept off the maze
+            double remaining = field.remaining(position, mazeIndex, TOLERANCE);
+            if (!Double.isInfinite(remaining)) toExit = remaining;
+        }
+
+        boolean changed = locationScheduler.onFix(SystemClock.elapsedRealtime(),
+                projection.x(position.longitude), projection.y(position.latitude),
+                location.hasAccuracy() ? location.getAccuracy() : 0, toDecision, toExit);
+
+        if (changed && replayer == null && googleApiClient.isConnected() && locationPermissionGranted) {
+            Log.d("LocationScheduler", locationScheduler.getInterval() + " ms, priority "
+                    + locationScheduler.getPriority() + ", " + locationScheduler.getSpeed() + " m/s");
+
+            // requesting again with the same listener replaces the previous request
+            locationRequest = createLocationRequest();
+            LocationServices.FusedLocationApi.requestLocationUpdates(googleApiClient, locationRequest, this);
         }
     }
 
@@ -424,6 +706,15 @@ public class MazePlayerActivity extends AppCompatActivity
      */
     public void startLocationUpdates() {
 
+        if (replayer != null) {
+            if (replayer.isRunning()) return;
+            if (replayer.getTrace().getFixes().isEmpty()) {
+                replayer = new TraceReplayer(mazeWalk(), this, replayer.getSpeed());
+            }
+            replayer.start(null);
+            return;
+        }
+
         if (ContextCompat.checkSelfPermission(this.getApplicationContext(),
                 android.Manifest.permission.ACCESS_FINE_LOCATION)
                 == PackageManager.PERMISSION_GRANTED) {
@@ -452,7 +743,10 @@ public class MazePlayerActivity extends AppCompatActivity
 
         Log.d("dani", latLng.toString());
         Log.d("dani", DateFormat.getTimeInstance().format(new Date()));
+        if (traceWriter != null) recordFix(location);
+
         update(latLng);
+        scheduleLocationUpdates(location);
     }
 
 
@@ -480,49 +774,38 @@ public class MazePlayerActivity extends AppCompatActivity
      */
     private void update(LatLng lastKnownLatLng) {
 
-        getPlayerPositions();
+        // position to send along with the players request, if the player may move there
+        RequestBody positionBody = null;
 
         Log.d("otherPlayers", "" + otherPlayers.size());
 
-        // remove previous marker
-        if (lastKnownLocation != null) {
-            lastKnownLocation.remove();
+        // move marker to the new position, it is only created once
+        if (lastKnownLocation == null) {
+            lastKnownLocation = map.addMarker(new MarkerOptions()
+                    .position(lastKnownLatLng)
+                    .icon(MarkerLayer.icon(BitmapDescriptorFactory.HUE_AZURE)));
+        } else if (!lastKnownLatLng.equals(lastKnownLocation.getPosition())) {
+            lastKnownLocation.setPosition(lastKnownLatLng);
         }
 
-        // set marker at new position
-        lastKnownLocation = map.addMarker(new MarkerOptions()
-                .position(lastKnownLatLng)
-                .icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_AZURE)));
-
         // Set the map's camera position to the current location of the device
         map.moveCamera(CameraUpdateFactory.newLatLng(
                lastKnownLatLng));
 
         // TODO FIX THIS
-        if (isPlayerOnMaze()) {
+        if (isPlayerOnMaze(lastKnownLatLng)) {
 
-            if (SphericalUtil.computeDistanceBetween(lastKnownLatLng, lastValidLocation.getPosition()) > MOVE_TOLERANCE) {
+            if (mazeIndex.getProjection().distance(lastKnownLatLng, lastValidLocation.getPosition()) > MOVE_TOLERANCE) {
                 Toast.makeText(this, "Please return to your previous location", Toast.LENGTH_SHORT).show();
                 lastValidLocation.setVisible(true);
             } else {
                 lastValidLocation.setVisible(false);
                 lastValidLocation.setPosition(lastKnownLatLng);
 
+                showDistanceToExit(lastKnownLatLng);
+
                 try{
-                    JSONObject gamePOSTJSON = new JSONObject();
-                    gamePOSTJSON.put("username", getIntent().getExtras().getString("username"));
-                    gamePOSTJSON.put("accesstoken", getIntent().getExtras().getString("accesstoken"));
-                    gamePOSTJSON.put("owner", owner);
-                    gamePOSTJSON.put("position",
-                            new JSONObject()
-                                    .put("lat", lastKnownLatLng.latitude).put("lng", lastKnownLatLng.longitude));
-
-                    response = new ServerService(certStream, trustStream){
-                        @Override
-                        public void onResponseReceived(String s){
-                            response = s;
-                        }
-                    }.execute("players", "POST", gamePOSTJSON.toString()).get();
+                    positionBody = positionWriter.at(lastKnownLatLng.latitude, lastKnownLatLng.longitude);
                 } catch (Exception e) {
                 }
 
@@ -536,76 +819,80 @@ public class MazePlayerActivity extends AppCompatActivity
             Toast.makeText(this, "Please return to your previous location", Toast.LENGTH_SHORT).show();
             lastValidLocation.setVisible(true);
         }
+
+        getPlayerPositions(positionBody);
     }
 
-    private boolean isPlayerOnMaze() {
+    private boolean isPlayerOnMaze(LatLng position) {
 
-        if (SphericalUtil.computeDistanceBetween(lastKnownLocation.getPosition(), entrance.getPosition()) < TOLERANCE ||
-                SphericalUtil.computeDistanceBetween(lastKnownLocation.getPosition(), exit.getPosition()) < TOLERANCE) {
+        LocalProjection projection = mazeIndex.getProjection();
+
+        if (projection.distance(position, entrance.getPosition()) < TOLERANCE ||
+                projection.distance(position, exit.getPosition()) < TOLERANCE) {
             return true;
         }
 
-        for (Polyline polyline : maze) {
+        return mazeIndex.isLocationOnMaze(position, TOLERANCE);
+    }
 
-            if (PolyUtil.isLocationOnPath(lastKnownLocation.getPosition(), polyline.getPoints(), polyline.isGeodesic(), TOLERANCE)) {
-                return true;
-            }
+    /**
+     * Fetches the other players positions, sending ours in the same request when given
+     *
+     * @param positionBody Body of the position POST, null to only fetch
+     */
+    private void getPlayerPositions(RequestBody positionBody){
+
+        if (positionBody != null) {
+            // the players come back with the update, or with its retry
+            positionOutbox.offer(positionBody);
+            return;
         }
 
-        return false;
+        // previous request still running, no need to stack another one
+        boolean busy = playersRequest != null && !playersRequest.isDone() || positionOutbox.isBusy();
+        if (!busy) playersRequest = positionExchange.fetchPlayers(playersListener);
     }
 
-    private void refreshStreams(){
+    /** Handles the other players positions **/
+    private final ClientInterface playersListener = new ClientInterface() {
+        @Override
+        public void onResponseReceived(String s){
+            Log.d("RESPONSE", "" + s);
+            if (replayer != null) replayer.markRoundTrip();
+            if (s != null && (s.startsWith("200") || s.startsWith("410"))){
+                timeoutCounter = 0;
+                try{
+                    PlayerTable.Delta delta = playerTable.apply(
+                            ServerService.decodeResponse(s), s.substring(s.indexOf(" - ") + 3));
 
-        try {
-            certStream = getApplicationContext().getAssets().open("testks.bks");
-            trustStream = getApplicationContext().getAssets().open("truststore.bks");
+                    if (delta.stale) {
+                        // our snapshot is too old, ask for everything again
+                        playersRequest = positionExchange.fetchPlayers(playersListener);
+                        return;
+                    }
 
-        } catch (Exception e){
-            e.printStackTrace();
-        }
-    }
+                    if (delta.isEmpty()) return;
 
-    private void getPlayerPositions(){
-        new ServerService(this, certStream, trustStream){
-            @Override
-            public void onResponseReceived(String s){
-                Log.d("RESPONSE", s);
-                if (s.startsWith("200")){
-                    Log.d("INIF", "INIF");
-                    timeoutCounter = 0;
-                    try{
-                        Log.d("inTry", "asdasdasdas");
-                        for(int i = 0;i < otherPlayers.size();++i){
-                            otherPlayers.get(i).remove();
-                            Log.d("InFor", ""+ otherPlayers.size());
-                        }
-                        otherPlayers.clear();
-                        JSONObject players = new JSONObject(s.split("200 - ")[1]);
-                        JSONArray all = players.getJSONArray("players");
-                        for(int i = 0;i < all.length();i++){
-                            JSONObject player = all.getJSONObject(i);
-                            JSONObject position = player.getJSONObject("position");
-                            otherPlayers.add(map.addMarker(new MarkerOptions()
-                                .position(new LatLng(position.getDouble("lat"), position.getDouble("lng") ))
-                                .icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_YELLOW))));
-                        }
-                        Log.d("OtherPlayers", "" + otherPlayers.size());
-                    }catch(Exception e){
-                        return;
+                    // only touch the markers of players that changed
+                    for (PlayerTable.Player player : delta.changed) {
+                        otherPlayers.update(player.username, new LatLng(player.lat, player.lng));
                     }
-                }else{
-                    timeoutCounter++;
-                    if(timeoutCounter > 5){
-                        //exit
+                    for (String username : delta.left) {
+                        otherPlayers.remove(username);
                     }
+                    Log.d("OtherPlayers", "" + otherPlayers.size());
+                }catch(Exception e){
+                    return;
+                }
+            }else{
+                // the outbox sends our position again, only tell the player once
+                if (++timeoutCounter == MAX_TIMEOUTS) {
+                    Toast.makeText(MazePlayerActivity.this, getText(R.string.connection_lost), Toast.LENGTH_LONG).show();
                 }
-                
-                
             }
-        }.execute("players?owner=" + owner, "GET");
-        //TODO FIX THIS NO SERVER, não está a add players
-    }
+        }
+    };
+    //TODO FIX THIS NO SERVER, não está a add players
 
     /*private void sendPlayerPosition(){
 
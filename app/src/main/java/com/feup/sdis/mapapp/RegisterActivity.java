@@ -11,14 +11,9 @@ import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.feup.sdis.mapapp.client.ServerService;
-
-import org.json.JSONObject;
-
-import java.io.InputStream;
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import com.feup.sdis.mapapp.client.ClientInterface;
+import com.feup.sdis.mapapp.client.GameRequests;
+import com.feup.sdis.mapapp.client.ServerClient;
 
 /**
  * Created by Rui on 27/05/2017.
@@ -26,26 +21,12 @@ import java.security.NoSuchAlgorithmException;
 
 public class RegisterActivity extends AppCompatActivity {
 
-    private InputStream certStream;
-
-    private InputStream trustStream;
-
-    private String response;
-
     @Override
     public void onCreate (Bundle savedInstanceState){
         super.onCreate(savedInstanceState);
 
         setContentView(R.layout.activity_register);
 
-        try {
-            this.certStream = this.getApplicationContext().getAssets().open("testks.bks");
-            this.trustStream = this.getApplicationContext().getAssets().open("truststore.bks");
-
-        } catch (Exception e){
-            e.printStackTrace();
-        }
-
         Button loginBtn = (Button) findViewById(R.id.btn_signup);
         loginBtn.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -73,65 +54,37 @@ public class RegisterActivity extends AppCompatActivity {
         String username = userText.getText().toString();
         String userpass = userPass.getText().toString();
 
-        JSONObject userJSON = new JSONObject();
         try {
-            userJSON.put("username", username);
-            userJSON.put("userhash", bin2hex(getHash(userpass)));
-
-            try {
-                certStream = getApplicationContext().getAssets().open("testks.bks");
-                trustStream = getApplicationContext().getAssets().open("truststore.bks");
-
-            } catch (Exception e){
-                e.printStackTrace();
-            }
-
-            response = new ServerService(certStream, trustStream){
+            ServerClient.enqueue("users", "PUT", GameRequests.user(username, GameRequests.userhash(userpass)), new ClientInterface() {
                 @Override
                 public void onResponseReceived(String s){
-                    response = s;
+                    onSignupResponse(s);
                 }
-            }.execute("users", "PUT", userJSON.toString()).get();
-
-            Log.i("Register", response);
-
-            if (response.startsWith("201")){
-                Toast.makeText(RegisterActivity.this, getText(R.string.signup_succ), Toast.LENGTH_SHORT).show();
-                Intent intent = new Intent(RegisterActivity.this, LoginActivity.class);
-                startActivity(intent);
-                this.finish();
-
-            }
-            else if (response.startsWith("409")){
-                Toast.makeText(RegisterActivity.this, getText(R.string.signup_fail_user), Toast.LENGTH_SHORT).show();
-                return;
-            }
-            else{
-                Toast.makeText(RegisterActivity.this, getText(R.string.signup_fail), Toast.LENGTH_SHORT).show();
-                return;
-            }
+            });
         } catch (Exception e ){
             e.printStackTrace();
         }
-
-        Log.i("Userr", response);
-
     }
 
-    public byte[] getHash(String password){
-        MessageDigest sys = null;
-        try {
-            sys = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e){
-            e.printStackTrace();
-        }
+    private void onSignupResponse(String response) {
 
-        sys.reset();
-        return sys.digest(password.getBytes());
-    }
+        Log.i("Register", "" + response);
 
-    public String bin2hex(byte[] data) {
-        return String.format("%0" + (data.length * 2) + 'x', new BigInteger(1, data));
+        if (response == null) {
+            Toast.makeText(RegisterActivity.this, getText(R.string.signup_fail), Toast.LENGTH_SHORT).show();
+        }
+        else if (response.startsWith("201")){
+            Toast.makeText(RegisterActivity.this, getText(R.string.signup_succ), Toast.LENGTH_SHORT).show();
+            Intent intent = new Intent(RegisterActivity.this, LoginActivity.class);
+            startActivity(intent);
+            this.finish();
+        }
+        else if (response.startsWith("409")){
+            Toast.makeText(RegisterActivity.this, getText(R.string.signup_fail_user), Toast.LENGTH_SHORT).show();
+        }
+        else{
+            Toast.makeText(RegisterActivity.this, getText(R.string.signup_fail), Toast.LENGTH_SHORT).show();
+        }
     }
 
     public boolean validateFields(){
@@ -159,16 +112,4 @@ public class RegisterActivity extends AppCompatActivity {
         return validated;
     }
 
-    @Override
-    public void onStart(){
-        super.onStart();
-        try {
-            this.certStream = this.getApplicationContext().getAssets().open("testks.bks");
-            this.trustStream = this.getApplicationContext().getAssets().open("truststore.bks");
-
-        } catch (Exception e){
-            e.printStackTrace();
-        }
-    }
-
 }
@@ -2,27 +2,28 @@ package com.feup.sdis.mapapp;
 
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.graphics.Color;
 import android.os.Bundle;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.text.InputType;
 import android.util.Log;
 import android.view.View;
-import android.view.ViewGroup;
+import android.widget.AdapterView;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.LinearLayout;
-import android.widget.LinearLayout.LayoutParams;
+import android.widget.ListView;
 import android.widget.Toast;
 
 import com.feup.sdis.mapapp.client.ActivityToken;
-import com.feup.sdis.mapapp.client.ServerService;
+import com.feup.sdis.mapapp.client.ClientInterface;
+import com.feup.sdis.mapapp.client.MapCache;
+import com.feup.sdis.mapapp.client.ResponseHandler;
+import com.feup.sdis.mapapp.client.ServerClient;
 
-import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.InputStream;
+import java.util.Map;
 
 /**
  * Created by Utilizador on 21-05-2017.
@@ -30,18 +31,34 @@ import java.io.InputStream;
 
 public class SelectMapActivity extends AppCompatActivity {
 
-    private InputStream certStream;
-    private InputStream trustStream;
-
     private String[] maps;
 
-    String response;
+    private GameListAdapter games;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_select_map);
 
+        games = new GameListAdapter(this);
+
+        ListView list = (ListView) findViewById(R.id.list_games);
+        list.setAdapter(games);
+        list.setOnScrollListener(games);
+        list.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                Intent intent = ActivityToken.passUserTokenMap(
+                        SelectMapActivity.this,
+                        MazePlayerActivity.class,
+                        getIntent().getExtras().getString("accesstoken"),
+                        getIntent().getExtras().getString("username"),
+                        games.getItem(position).mapname);
+                startActivity(intent);
+                finish();
+            }
+        });
+
         final String username = getIntent().getExtras().getString("username");
         final String accesstoken = getIntent().getExtras().getString("accesstoken");
 
@@ -62,55 +79,7 @@ public class SelectMapActivity extends AppCompatActivity {
                         public void onClick(DialogInterface dialog, int i) {
 
                             String mapname = nameInput.getText().toString();
-
-                            try{
-
-                                refreshStreams();
-
-                                new ServerService(certStream, trustStream){
-                                    @Override
-                                    public void onResponseReceived(String s){
-                                        response = s;
-                                    }
-                                }.execute("maps?name=" + mapname, "GET").get();
-                                if (response.startsWith("404")){
-                                    Toast toast = Toast.makeText(SelectMapActivity.this, getText(R.string.map_404), Toast.LENGTH_LONG);
-                                    toast.show();
-                                    return;
-                                }
-
-                                JSONObject gameJSON = new JSONObject();
-                                gameJSON.put("username", username);
-                                gameJSON.put("accesstoken", accesstoken);
-                                gameJSON.put("mapname", mapname);
-
-                                refreshStreams();
-
-                                response = new ServerService(certStream, trustStream){
-                                    @Override
-                                    public void onResponseReceived(String s){
-                                        response = s;
-                                    }
-                                }.execute("game", "PUT", gameJSON.toString()).get();
-
-                                if (response.startsWith("200")){
-                                    Toast toast = Toast.makeText(SelectMapActivity.this, getText(R.string.creation_succ), Toast.LENGTH_LONG);
-                                    toast.show();
-                                    finish();
-                                } else {
-                                    Toast toast = Toast.makeText(SelectMapActivity.this, getText(R.string.creation_fail), Toast.LENGTH_LONG);
-                                    toast.show();
-                                    finish();
-                                }
-
-                            } catch( org.json.JSONException e ){
-                                e.printStackTrace();
-                            } catch (java.util.concurrent.ExecutionException e){
-                                e.printStackTrace();
-                            } catch( java.lang.InterruptedException e){
-                                e.printStackTrace();
-                            }
-
+                            checkMapAndCreateGame(username, accesstoken, mapname);
                     }
                 });
                 builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -125,75 +94,82 @@ public class SelectMapActivity extends AppCompatActivity {
         });
     }
 
-    @Override
-    public void onStart(){
-        super.onStart();
-        refreshStreams();
+    /**
+     * Creates a new game on the given map, if the map exists.
+     * The map goes through the cache, so opening the game right after doesn't download it again
+     */
+    private void checkMapAndCreateGame(final String username, final String accesstoken, final String mapname) {
+
+        MapCache.get().load(mapname, new ResponseHandler() {
+            @Override
+            public void onResponse(final int code, Map<String, String> headers, InputStream body) {
+                ServerClient.postToMain(new Runnable() {
+                    @Override
+                    public void run() {
+                        onMapChecked(code, username, accesstoken, mapname);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                onResponse(-1, null, null);
+            }
+        });
+    }
+
+    private void onMapChecked(int code, final String username, final String accesstoken, final String mapname) {
+
+        if (code < 0 || code == 404){
+            Toast toast = Toast.makeText(SelectMapActivity.this, getText(R.string.map_404), Toast.LENGTH_LONG);
+            toast.show();
+            return;
+        }
 
         try {
+            JSONObject gameJSON = new JSONObject();
+            gameJSON.put("username", username);
+            gameJSON.put("accesstoken", accesstoken);
+            gameJSON.put("mapname", mapname);
 
-            response = new ServerService(certStream, trustStream){
+            ServerClient.enqueue("game", "PUT", gameJSON.toString(), new ClientInterface() {
                 @Override
-                public void onResponseReceived(String s){
-                    response = s;
-                }
-            }.execute("game", "GET").get();
-
-            JSONObject gamesJSON = new JSONObject(response.split("200 - ")[1]);
-
-            if (gamesJSON.getJSONArray("games") != null){
-                JSONArray gamesArray = gamesJSON.getJSONArray("games");
-
-                for (int i=0; i<gamesArray.length(); i++){
-
-                    JSONObject gameJSON = gamesArray.getJSONObject(i);
-                    String owner = gameJSON.getString("owner");
-                    final String map = gameJSON.getString("mapname");
-
-                    Button btnMapName = new Button (this);
-
-                    btnMapName.setText("Map: " + map + "\n Created by: " + owner);
-                    btnMapName.setTextColor(Color.WHITE);
-                    btnMapName.setBackgroundColor(Color.parseColor("#75c4bc"));
-                    LinearLayout ll = (LinearLayout) findViewById(R.id.linlayout);
-
-                    LayoutParams lp = new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT);
-                    lp.setMargins(10, 10, 0, 0);
-                    btnMapName.setLayoutParams(lp);
-                    ll.addView(btnMapName, lp);
-
-                    btnMapName.setOnClickListener(new View.OnClickListener() {
-                        @Override
-                        public void onClick(View v) {
-                            Intent intent = ActivityToken.passUserTokenMap(
-                                    SelectMapActivity.this,
-                                    MazePlayerActivity.class,
-                                    getIntent().getExtras().getString("accesstoken"),
-                                    getIntent().getExtras().getString("username"),
-                                    map);
-                            startActivity(intent);
-                            finish();
-                        }
-                    });
+                public void onResponseReceived(String s) {
+                    onGameCreated(s);
                 }
+            });
 
-            } else {
-            }
-
-
-        } catch ( Exception e ){
+        } catch( org.json.JSONException e ){
             e.printStackTrace();
         }
     }
 
-    private void refreshStreams(){
-        try {
-            certStream = getApplicationContext().getAssets().open("testks.bks");
-            trustStream = getApplicationContext().getAssets().open("truststore.bks");
+    private void onGameCreated(String response) {
 
-        } catch (Exception e){
-            e.printStackTrace();
+        if (response != null && response.startsWith("200")){
+            Toast toast = Toast.makeText(SelectMapActivity.this, getText(R.string.creation_succ), Toast.LENGTH_LONG);
+            toast.show();
+            finish();
+        } else {
+            Toast toast = Toast.makeText(SelectMapActivity.this, getText(R.string.creation_fail), Toast.LENGTH_LONG);
+            toast.show();
+            finish();
         }
     }
 
-}
\ No newline at end of file
+    @Override
+    public void onStart(){
+        super.onStart();
+
+        // every start shows a fresh first page instead of adding to the old list
+        games.reload();
+    }
+
+    @Override
+    public void onStop(){
+        super.onStop();
+
+        games.cancel();
+    }
+
+}
@@ -0,0 +1,55 @@
+package com.feup.sdis.mapapp.client;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Bodies of the user and game requests, shared by the activities and the load tools so both
+ * send exactly what the server expects
+ */
+public final class GameRequests {
+
+    private GameRequests() {
+    }
+
+    /**
+     * @return Hex SHA-256 of the password, the "userhash" the server stores
+     */
+    public static String userhash(String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(password.getBytes("UTF-8"));
+            return String.format("%0" + (hash.length * 2) + 'x', new BigInteger(1, hash));
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Body of "users" PUT (register) and POST (login)
+     */
+    public static String user(String username, String userhash) throws JSONException {
+        return new JSONObject()
+                .put("username", username)
+                .put("userhash", userhash)
+                .toString();
+    }
+
+    /**
+     * Body of "game" POST (join) and "players" POST (position update)
+     */
+    public static String position(String username, String accesstoken, String owner, double lat, double lng)
+            throws JSONException {
+        return new JSONObject()
+                .put("username", username)
+                .put("accesstoken", accesstoken)
+                .put("owner", owner)
+                .put("position", new JSONObject().put("lat", lat).put("lng", lng))
+                .toString();
+    }
+}
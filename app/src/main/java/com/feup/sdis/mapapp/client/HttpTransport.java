@@ -0,0 +1,437 @@
+package com.feup.sdis.mapapp.client;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Persistent HTTPS transport to the server.
+ *
+ * Connections are never disconnected after a request. Response bodies are read to the end
+ * and closed instead, which hands the socket back to the platform keep-alive pool so the next
+ * request to the same host skips the TCP and TLS setup. The pool is bounded to
+ * {@link #MAX_IDLE_CONNECTIONS} idle sockets per host and evicts sockets idle for longer
+ * than {@link #KEEP_ALIVE_DURATION}. A pooled socket the server already closed is detected on
+ * first use and the request is retried once on a fresh connection, if sending it again can't
+ * apply it twice: a GET or DELETE, or a POST or PUT whose body could not be written. A request
+ * that failed on a new connection or timed out is not retried.
+ */
+public final class HttpTransport {
+
+    /** Default server address, every path is relative to it **/
+    public static final String SERVER_URL = "https://172.30.2.216:8000/";
+
+    /** Server address in use, {@link #SERVER_URL} unless a debug build points it elsewhere **/
+    private static volatile String serverUrl = SERVER_URL;
+
+    /** Max idle connections kept per host **/
+    public static final int MAX_IDLE_CONNECTIONS = 4;
+
+    /** Time an idle connection is kept alive, in milliseconds **/
+    public static final long KEEP_ALIVE_DURATION = 30 * 1000;
+
+    /** Connect timeout, in milliseconds **/
+    private static final int CONNECT_TIMEOUT = 10 * 1000;
+
+    /** Read timeout, in milliseconds **/
+    private static final int READ_TIMEOUT = 15 * 1000;
+
+    /** Size of the buffers used to read response bodies **/
+    static final int BUFFER_SIZE = 8 * 1024;
+
+    /** Buffer each request thread encodes {@link RequestBody} instances into **/
+    private static final ThreadLocal<byte[]> BODY_BUFFER = new ThreadLocal<>();
+
+    /** Timed socket factory of {@link #factoryContext}, guarded by the class **/
+    private static SSLSocketFactory factory = null;
+
+    private static SSLContext factoryContext = null;
+
+    /** Hostname verifier shared by every request **/
+    private static final HostnameVerifier VERIFIER = new OurHostnameVerifier();
+
+    static {
+        // configure the platform connection pool before the first connection is opened
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+        System.setProperty("http.keepAliveDuration", String.valueOf(KEEP_ALIVE_DURATION));
+    }
+
+    private HttpTransport() {
+    }
+
+    /**
+     * Points every later request to another server, like a local stub one to replay traces against
+     *
+     * @param url Server address ending with '/', null for {@link #SERVER_URL}
+     */
+    public static void setServerUrl(String url) {
+        serverUrl = url == null ? SERVER_URL : url;
+    }
+
+    /**
+     * @return Server address in use
+     */
+    public static String getServerUrl() {
+        return serverUrl;
+    }
+
+    /**
+     * Sends a request to the server and reads its response
+     *
+     * @param path   Path relative to {@link #getServerUrl()}, with the query string
+     * @param method GET, POST, PUT or DELETE
+     * @param body   Request body for POST and PUT, ignored otherwise
+     * @return The server response
+     */
+    public static ServerResponse execute(String path, String method, String body)
+            throws IOException, GeneralSecurityException {
+        return execute(path, method, body, null);
+    }
+
+    /**
+     * Sends a request with extra headers to the server and reads its response
+     *
+     * @param path    Path relative to {@link #getServerUrl()}, with the query string
+     * @param method  GET, POST, PUT or DELETE
+     * @param body    Request body for POST and PUT, ignored otherwise
+     * @param headers Request headers, may be null
+     * @return The server response
+     */
+    public static ServerResponse execute(String path, String method, String body, Map<String, String> headers)
+            throws IOException, GeneralSecurityException {
+
+        return execute(path, method, body == null ? null : body.getBytes("UTF-8"), headers);
+    }
+
+    /**
+     * Sends a request to the server and reads its response, encoding the body into the buffer
+     * of the current thread instead of a new array
+     *
+     * @param path   Path relative to {@link #getServerUrl()}, with the query string
+     * @param method POST or PUT
+     * @param body   Request body
+     * @return The server response
+     */
+    public static ServerResponse execute(String path, String method, RequestBody body)
+            throws IOException, GeneralSecurityException {
+
+        byte[] buffer = BODY_BUFFER.get();
+        if (buffer == null || buffer.length < body.maxLength()) {
+            buffer = new byte[Math.max(body.maxLength(), 256)];
+            BODY_BUFFER.set(buffer);
+        }
+
+        return execute(path, method, buffer, body.write(buffer), null);
+    }
+
+    /**
+     * Sends a request with a binary body to the server and reads its response.
+     * The body type must be given in a Content-Type header
+     *
+     * @param path    Path relative to {@link #getServerUrl()}, with the query string
+     * @param method  GET, POST, PUT or DELETE
+     * @param body    Request body for POST and PUT, ignored otherwise
+     * @param headers Request headers, may be null
+     * @return The server response
+     */
+    public static ServerResponse execute(String path, String method, byte[] body, Map<String, String> headers)
+            throws IOException, GeneralSecurityException {
+        return execute(path, method, body, body == null ? 0 : body.length, headers);
+    }
+
+    /**
+     * @param length Bytes of the body to send, from its start
+     */
+    private static ServerResponse execute(String path, String method, byte[] body, int length,
+                                          Map<String, String> headers)
+            throws IOException, GeneralSecurityException {
+
+        RequestMetrics.Call call = RequestMetrics.get().begin(path, method);
+
+        try {
+            HttpsURLConnection connection = connect(path, method, body, length, headers, call);
+            int code = connection.getResponseCode();
+            checkSession(path, code);
+
+            String response = readBody(connection, code, call);
+            call.succeeded();
+
+            return new ServerResponse(code, response, headers(connection));
+        } finally {
+            call.end();
+        }
+    }
+
+    /**
+     * Sends a request to the server and hands the response body to the given handler as it
+     * arrives, without buffering it in memory first
+     *
+     * @param path    Path relative to {@link #getServerUrl()}, with the query string
+     * @param method  GET, POST, PUT or DELETE
+     * @param body    Request body for POST and PUT, ignored otherwise
+     * @param headers Request headers, may be null
+     * @param handler Reads the response body, called on the current thread. If it throws, the
+     *                connection is closed instead of reading the rest of the body
+     * @return The HTTP response code
+     */
+    public static int stream(String path, String method, String body, Map<String, String> headers,
+                             ResponseHandler handler) throws IOException, GeneralSecurityException {
+
+        RequestMetrics.Call call = RequestMetrics.get().begin(path, method);
+
+        try {
+            byte[] bytes = body == null ? null : body.getBytes("UTF-8");
+            HttpsURLConnection connection = connect(path, method, bytes, bytes == null ? 0 : bytes.length,
+                    headers, call);
+            int code = connection.getResponseCode();
+            checkSession(path, code);
+
+            if (code >= 400) {
+                drain(call.meter(connection.getErrorStream()));
+                handler.onResponse(code, headers(connection), null);
+                call.succeeded();
+                return code;
+            }
+
+            InputStream in = new BufferedInputStream(call.meter(connection.getInputStream()), BUFFER_SIZE);
+            try {
+                handler.onResponse(code, headers(connection), in);
+            } catch (IOException | RuntimeException e) {
+                // the rest may be a whole payload, like a cancelled prefetch, drop the socket instead
+                connection.disconnect();
+                throw e;
+            }
+
+            // whatever the handler left unread must be consumed to reuse the connection
+            drain(in);
+
+            call.succeeded();
+            return code;
+        } finally {
+            call.end();
+        }
+    }
+
+    /**
+     * Ends the stored session when the server refuses its token, so the next start asks for a
+     * login again. A 403 on "users" is a failed login, not a refused token
+     */
+    private static void checkSession(String path, int code) {
+        if (code == 403 && !path.startsWith("users")) {
+            MyApp.endSession();
+        }
+    }
+
+    /**
+     * Sends the request line, headers and body, retrying once on a stale pooled connection
+     *
+     * @return The connection, with the response code already received
+     */
+    private static HttpsURLConnection connect(String path, String method, byte[] body, int length,
+                                              Map<String, String> headers, RequestMetrics.Call call)
+            throws IOException, GeneralSecurityException {
+
+        boolean hasBody;
+
+        switch (method) {
+            case "GET":
+            case "DELETE":
+                hasBody = false;
+                break;
+            case "POST":
+            case "PUT":
+                hasBody = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported method " + method);
+        }
+
+        try {
+            return send(path, method, hasBody ? body : null, length, headers, call);
+        } catch (StaleConnectionException e) {
+            // the pooled connection was most likely closed by the server while idle
+            Log.i("Transport", "Retrying " + method + " " + path + " on a new connection: " + e.getMessage());
+            call.retried();
+            return send(path, method, hasBody ? body : null, length, headers, call);
+        }
+    }
+
+    private static HttpsURLConnection send(String path, String method, byte[] bytes, int length,
+                                           Map<String, String> headers, RequestMetrics.Call call)
+            throws IOException, GeneralSecurityException {
+
+        HttpsURLConnection connection = open(path, method);
+        int code;
+
+        int socketsBefore = RequestMetrics.socketsOpened();
+        boolean written = false;
+
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+
+        try {
+            if (bytes != null) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(length);
+            }
+
+            connection.connect();
+            call.connected();
+
+            if (bytes != null) {
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(bytes, 0, length);
+                } finally {
+                    out.close();
+                }
+                call.sent(length);
+            }
+            written = true;
+
+            code = connection.getResponseCode();
+            call.firstByte(code);
+
+        } catch (IOException e) {
+            connection.disconnect();
+
+            // only a pooled socket can be stale, and the server may have read a whole body
+            boolean pooled = RequestMetrics.socketsOpened() == socketsBefore;
+            boolean resendable = bytes == null || !written;
+            if (pooled && resendable && !(e instanceof SocketTimeoutException)) {
+                throw new StaleConnectionException(e);
+            }
+            throw e;
+        }
+
+        return connection;
+    }
+
+    /**
+     * Opens a connection to the server, reusing a pooled socket when there is one
+     */
+    static HttpsURLConnection open(String path, String method) throws IOException, GeneralSecurityException {
+
+        URL url = new URL(serverUrl + path);
+
+        HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
+        connection.setSSLSocketFactory(socketFactory());
+        connection.setHostnameVerifier(VERIFIER);
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setRequestMethod(method);
+
+        return connection;
+    }
+
+    /**
+     * Socket factory of the shared SSLContext, with its handshakes timed by {@link RequestMetrics}.
+     * The same instance is returned until the context changes, since the connection pool only
+     * reuses sockets of the same factory
+     */
+    private static SSLSocketFactory socketFactory() throws IOException, GeneralSecurityException {
+
+        SSLContext context = SSLContextHolder.getContext();
+
+        synchronized (HttpTransport.class) {
+            if (context != factoryContext) {
+                factory = RequestMetrics.get().timed(context.getSocketFactory());
+                factoryContext = context;
+            }
+            return factory;
+        }
+    }
+
+    /**
+     * Collects the response headers, names are case insensitive
+     */
+    private static Map<String, String> headers(HttpsURLConnection connection) {
+
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            // the status line has a null name
+            if (header.getKey() != null && !header.getValue().isEmpty()) {
+                headers.put(header.getKey(), header.getValue().get(0));
+            }
+        }
+
+        return headers;
+    }
+
+    /**
+     * Reads the whole response body and closes it so the connection goes back to the pool.
+     * Error bodies are drained but not returned
+     */
+    private static String readBody(HttpsURLConnection connection, int code, RequestMetrics.Call call)
+            throws IOException {
+
+        if (code >= 400) {
+            drain(call.meter(connection.getErrorStream()));
+            return null;
+        }
+
+        InputStream in = call.meter(connection.getInputStream());
+        try {
+            Reader reader = new InputStreamReader(in, "UTF-8");
+            StringBuilder response = new StringBuilder(Math.max(connection.getContentLength(), 16));
+            char[] buffer = new char[BUFFER_SIZE];
+            int read;
+
+            while ((read = reader.read(buffer)) != -1) {
+                response.append(buffer, 0, read);
+            }
+
+            return response.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+
+        if (in == null) {
+            return;
+        }
+
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (in.read(buffer) != -1) {
+                // discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Thrown when a request failed on a pooled socket before the server could have applied it,
+     * a GET or DELETE or a body that was not written whole, so it is safe to resend it
+     */
+    private static class StaleConnectionException extends IOException {
+
+        StaleConnectionException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+}
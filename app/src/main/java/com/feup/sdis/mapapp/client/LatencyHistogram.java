@@ -0,0 +1,137 @@
+package com.feup.sdis.mapapp.client;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Histogram of durations in microseconds, in a fixed array of log-linear buckets.
+ *
+ * Values under 8 us have a bucket each, then every power of two is split in 8 buckets, so any
+ * value is known within 12.5%, up to 2^36 us (about 19 hours); longer durations land in the
+ * last bucket. Recording is a few shifts and an array increment, without allocations.
+ * Not thread safe, {@link RequestMetrics} records under the lock of the owning endpoint
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /** Highest power of two with its own buckets */
+    private static final int MAX_EXPONENT = 35;
+
+    static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+
+    private long count = 0, sum = 0, max = 0;
+
+    /**
+     * @param micros Duration in microseconds, negative ones count as 0
+     */
+    public void record(long micros) {
+
+        if (micros < 0) micros = 0;
+
+        counts[index(micros)]++;
+        count++;
+        sum += micros;
+        if (micros > max) max = micros;
+    }
+
+    static int index(long value) {
+
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+
+        int shift = exponent - SUB_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return Smallest value of a bucket
+     */
+    static long lowerBound(int index) {
+
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << shift;
+    }
+
+    /**
+     * @return Largest value of a bucket
+     */
+    static long upperBound(int index) {
+        if (index == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return lowerBound(index + 1) - 1;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param fraction 0.5 for the median, 0.99 for the 99th percentile
+     * @return Upper bound of the bucket holding the nearest rank, never above the max, 0 if empty
+     */
+    public long percentile(double fraction) {
+
+        if (count == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+
+        return max;
+    }
+
+    /**
+     * @return Summary with the non empty buckets as [lower bound, count] pairs, so snapshots of
+     * several runs can be merged
+     */
+    public JSONObject toJson() throws JSONException {
+
+        JSONArray buckets = new JSONArray();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] != 0) {
+                buckets.put(new JSONArray().put(lowerBound(i)).put(counts[i]));
+            }
+        }
+
+        return new JSONObject()
+                .put("count", count)
+                .put("mean", Math.round(getMean()))
+                .put("p50", percentile(0.5))
+                .put("p90", percentile(0.9))
+                .put("p99", percentile(0.99))
+                .put("max", max)
+                .put("buckets", buckets);
+    }
+}
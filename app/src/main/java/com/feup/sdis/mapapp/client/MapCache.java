@@ -0,0 +1,518 @@
+package com.feup.sdis.mapapp.client;
+
+import android.util.Log;
+
+import com.feup.sdis.mapapp.maze.MazeCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+/**
+ * Cache of map payloads, keyed by map name.
+ *
+ * Maps are kept in two layers: a small in-memory LRU for the current session and an LRU on
+ * disk, under the app cache dir, capped at {@link #MAX_DISK_BYTES}. A map found on disk is
+ * revalidated with If-None-Match / If-Modified-Since, so a known maze costs a 304 and no
+ * payload bytes. A map validated less than {@link #FRESH_FOR} ago is served from memory without
+ * a request. If the server can't be reached the last stored copy is served. A map asked for
+ * while it is being fetched waits for that fetch and is then served from memory
+ */
+public class MapCache {
+
+    /** Max bytes of map payloads kept on disk **/
+    private static final long MAX_DISK_BYTES = 8 * 1024 * 1024;
+
+    /** Max maps kept in memory **/
+    private static final int MAX_MEMORY_ENTRIES = 8;
+
+    /** How long, in milliseconds, a validated map is served without asking the server **/
+    private static final long FRESH_FOR = 5 * 60 * 1000;
+
+    /** Directory under the cache dir holding the maps **/
+    private static final String DIRECTORY = "maps";
+
+    /** Binary maze form first, JSON for servers that don't have it **/
+    private static final String ACCEPT = MazeCodec.CONTENT_TYPE + ", application/json;q=0.5";
+
+    private static final String BODY_SUFFIX = ".body";
+
+    private static final String META_SUFFIX = ".meta";
+
+    private static volatile MapCache instance;
+
+    /**
+     * A stored map payload and its validators
+     */
+    private static class Entry {
+
+        final byte[] body;
+
+        final String etag;
+
+        final String lastModified;
+
+        /** Media type of the body, JSON or the binary maze form **/
+        final String contentType;
+
+        /** When the entry was last confirmed by the server, 0 if never in this session **/
+        long validatedAt;
+
+        Entry(byte[] body, String etag, String lastModified, String contentType, long validatedAt) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.validatedAt = validatedAt;
+        }
+    }
+
+    /** Maps of this session, least recently used first **/
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_MEMORY_ENTRIES;
+        }
+    };
+
+    /**
+     * A fetch running for a map
+     */
+    private static final class Fetch {
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        /** True once someone waits for it **/
+        volatile boolean awaited = false;
+    }
+
+    /** Maps being fetched, guarded by this **/
+    private final Map<String, Fetch> fetching = new HashMap<>();
+
+    private final File directory;
+
+    private MapCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return The cache of the app
+     */
+    public static MapCache get() {
+
+        if (instance == null) {
+            synchronized (MapCache.class) {
+                if (instance == null) {
+                    instance = new MapCache(new File(MyApp.getContext().getCacheDir(), DIRECTORY));
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Loads a map without blocking and streams its payload to the given handler, from the cache
+     * when it is still valid. The handler runs on a background thread, as with
+     * {@link ServerClient#enqueueStream}, and a cached payload is given to it with code 200
+     *
+     * @param mapName Name of the map
+     * @param handler Reads the map payload
+     * @return Future of the response code, -1 if the map could not be loaded
+     */
+    public Future<Integer> load(final String mapName, final ResponseHandler handler) {
+        return ServerClient.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return fetch(mapName, handler);
+            }
+        });
+    }
+
+    /**
+     * Loads a map on the calling thread, otherwise like {@link #load}
+     *
+     * @param mapName Name of the map
+     * @param handler Reads the map payload, on the calling thread
+     * @return The response code, -1 if the map could not be loaded
+     */
+    public int loadNow(String mapName, ResponseHandler handler) {
+        return fetch(mapName, handler);
+    }
+
+    /**
+     * Forgets everything stored about a map
+     */
+    public synchronized void remove(String mapName) {
+        memory.remove(mapName);
+        bodyFile(mapName).delete();
+        metaFile(mapName).delete();
+    }
+
+    /**
+     * Fetches a map, or waits for the fetch of it already running and then looks again
+     */
+    private int fetch(String mapName, ResponseHandler handler) {
+
+        Fetch own = new Fetch();
+        Fetch running;
+        synchronized (this) {
+            running = fetching.get(mapName);
+            if (running == null) {
+                fetching.put(mapName, own);
+            }
+        }
+
+        if (running != null) {
+            running.awaited = true;
+            try {
+                running.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                handler.onFailure(e);
+                return -1;
+            }
+            return fetch(mapName, handler);
+        }
+
+        try {
+            return fetchOnce(mapName, handler);
+        } finally {
+            synchronized (this) {
+                fetching.remove(mapName);
+            }
+            own.done.countDown();
+        }
+    }
+
+    /**
+     * @return True if a map is being fetched and someone else waits for it
+     */
+    synchronized boolean isAwaited(String mapName) {
+        Fetch running = fetching.get(mapName);
+        return running != null && running.awaited;
+    }
+
+    private int fetchOnce(final String mapName, final ResponseHandler handler) {
+
+        final Entry cached = lookup(mapName);
+
+        if (cached != null && System.currentTimeMillis() - cached.validatedAt < FRESH_FOR) {
+            return serve(cached, handler);
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Accept", ACCEPT);
+        if (cached != null) {
+            if (cached.etag != null) headers.put("If-None-Match", cached.etag);
+            if (cached.lastModified != null) headers.put("If-Modified-Since", cached.lastModified);
+        }
+
+        // set once the handler got a response, so a failure later on is not answered twice
+        final boolean[] delivered = {false};
+
+        try {
+            return HttpTransport.stream("maps?name=" + mapName, "GET", null, headers, new ResponseHandler() {
+                @Override
+                public void onResponse(int code, Map<String, String> headers, InputStream body) throws IOException {
+
+                    if (code == 304 && cached != null) {
+                        cached.validatedAt = System.currentTimeMillis();
+                        touch(mapName);
+                        delivered[0] = true;
+                        handler.onResponse(200, headersOf(cached), new ByteArrayInputStream(cached.body));
+                        return;
+                    }
+
+                    if (code == 404) {
+                        remove(mapName);
+                    }
+
+                    if (code != 200 || body == null) {
+                        delivered[0] = true;
+                        handler.onResponse(code, headers, body);
+                        return;
+                    }
+
+                    // the handler reads the payload as it arrives, a copy is kept on the way
+                    TeeInputStream tee = new TeeInputStream(body);
+                    delivered[0] = true;
+                    handler.onResponse(code, headers, tee);
+                    tee.drain();
+
+                    store(mapName, new Entry(tee.copy.toByteArray(), headers.get("ETag"),
+                            headers.get("Last-Modified"), headers.get("Content-Type"), System.currentTimeMillis()));
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    handler.onFailure(e);
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+
+            if (!delivered[0] && cached != null) {
+                Log.i("MapCache", "Serving stored copy of " + mapName + ": " + e.getMessage());
+                return serve(cached, handler);
+            }
+
+            handler.onFailure(e);
+            return -1;
+        }
+    }
+
+    private static int serve(Entry entry, ResponseHandler handler) {
+        try {
+            handler.onResponse(200, headersOf(entry), new ByteArrayInputStream(entry.body));
+            return 200;
+        } catch (IOException e) {
+            handler.onFailure(e);
+            return -1;
+        }
+    }
+
+    /**
+     * @return The headers a stored entry is served with
+     */
+    private static Map<String, String> headersOf(Entry entry) {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (entry.contentType != null) {
+            headers.put("Content-Type", entry.contentType);
+        }
+        return headers;
+    }
+
+    /**
+     * Finds a map in memory or on disk
+     *
+     * @return The stored entry, null if there is none
+     */
+    private synchronized Entry lookup(String mapName) {
+
+        Entry entry = memory.get(mapName);
+        if (entry != null) {
+            return entry;
+        }
+
+        File body = bodyFile(mapName);
+        File meta = metaFile(mapName);
+        if (!body.exists() || !meta.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(meta));
+            String etag = in.readUTF();
+            String lastModified = in.readUTF();
+            String contentType = in.readUTF();
+            in.close();
+
+            byte[] bytes = new byte[(int) body.length()];
+            in = new DataInputStream(new FileInputStream(body));
+            in.readFully(bytes);
+
+            entry = new Entry(bytes, etag.isEmpty() ? null : etag,
+                    lastModified.isEmpty() ? null : lastModified, contentType.isEmpty() ? null : contentType, 0);
+            memory.put(mapName, entry);
+            touch(mapName);
+            return entry;
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            body.delete();
+            meta.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Keeps a map in memory and, when the server gave validators for it, on disk
+     */
+    private synchronized void store(String mapName, Entry entry) {
+
+        memory.put(mapName, entry);
+
+        // without validators the stored copy could never be revalidated
+        if (entry.etag == null && entry.lastModified == null) {
+            bodyFile(mapName).delete();
+            metaFile(mapName).delete();
+            return;
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(bodyFile(mapName)));
+            out.write(entry.body);
+            out.close();
+
+            out = new DataOutputStream(new FileOutputStream(metaFile(mapName)));
+            out.writeUTF(entry.etag == null ? "" : entry.etag);
+            out.writeUTF(entry.lastModified == null ? "" : entry.lastModified);
+            out.writeUTF(entry.contentType == null ? "" : entry.contentType);
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            bodyFile(mapName).delete();
+            metaFile(mapName).delete();
+        } finally {
+            closeQuietly(out);
+        }
+
+        trim();
+    }
+
+    /**
+     * Deletes the least recently used maps until the disk cap is met
+     */
+    private void trim() {
+
+        File[] bodies = directory.listFiles();
+        if (bodies == null) {
+            return;
+        }
+
+        long total = 0;
+        for (File file : bodies) {
+            String name = file.getName();
+            if (!name.endsWith(BODY_SUFFIX) && !name.endsWith(META_SUFFIX)) {
+                // left over from an older layout
+                file.delete();
+                continue;
+            }
+            total += file.length();
+        }
+
+        if (total <= MAX_DISK_BYTES) {
+            return;
+        }
+
+        Arrays.sort(bodies, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long ta = a.lastModified(), tb = b.lastModified();
+                return ta < tb ? -1 : (ta == tb ? 0 : 1);
+            }
+        });
+
+        for (File file : bodies) {
+            if (total <= MAX_DISK_BYTES) {
+                break;
+            }
+            String name = file.getName();
+            if (!name.endsWith(BODY_SUFFIX)) {
+                continue;
+            }
+
+            File meta = new File(directory, name.substring(0, name.length() - BODY_SUFFIX.length()) + META_SUFFIX);
+            total -= file.length() + meta.length();
+            file.delete();
+            meta.delete();
+        }
+    }
+
+    /**
+     * Marks a map as recently used on disk
+     */
+    private void touch(String mapName) {
+        bodyFile(mapName).setLastModified(System.currentTimeMillis());
+    }
+
+    private File bodyFile(String mapName) {
+        return new File(directory, fileName(mapName) + BODY_SUFFIX);
+    }
+
+    private File metaFile(String mapName) {
+        return new File(directory, fileName(mapName) + META_SUFFIX);
+    }
+
+    private static String fileName(String mapName) {
+        try {
+            return URLEncoder.encode(mapName, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return String.valueOf(mapName.hashCode());
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Keeps a copy of every byte read from a stream
+     */
+    private static class TeeInputStream extends FilterInputStream {
+
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream(HttpTransport.BUFFER_SIZE);
+
+        TeeInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) copy.write(b);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) copy.write(buffer, offset, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes still have to be kept
+            byte[] buffer = new byte[(int) Math.min(n, HttpTransport.BUFFER_SIZE)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Reads whatever the handler left unread, so the copy holds the whole payload
+         */
+        void drain() throws IOException {
+            byte[] buffer = new byte[HttpTransport.BUFFER_SIZE];
+            while (read(buffer, 0, buffer.length) >= 0) {
+                // keep reading
+            }
+        }
+    }
+}
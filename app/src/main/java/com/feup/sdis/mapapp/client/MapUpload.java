@@ -0,0 +1,80 @@
+package com.feup.sdis.mapapp.client;
+
+import android.util.Log;
+
+import com.feup.sdis.mapapp.maze.MazeCodec;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Sends a new maze to the "maps" endpoint.
+ *
+ * The maze goes in the binary {@link MazeCodec} form, with Content-Type set to it. A server that
+ * answers 415 doesn't have the binary form: the maze is sent again as JSON, and the JSON form is
+ * used from then on. Any other answer, a 400 included, is the answer to the maze and goes to the
+ * caller as it is, since the server may have rejected or even stored it
+ */
+public final class MapUpload {
+
+    /** False once the server turned down the binary form **/
+    private static volatile boolean binarySupported = true;
+
+    private MapUpload() {
+    }
+
+    /**
+     * Sends a maze without blocking
+     *
+     * @param maze     Maze to send, with the "username", "accesstoken" and "name" fields
+     * @param json     Same maze in the JSON form, sent if the binary one is not supported
+     * @param callback Receives the response on the main thread as "code - body", null on failure
+     * @return Future of the response
+     */
+    public static Future<String> send(final MazeCodec.Maze maze, final String json, final ClientInterface callback) {
+
+        return ServerClient.submit(new Callable<String>() {
+            @Override
+            public String call() {
+
+                final String response = put(maze, json);
+
+                ServerClient.postToMain(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResponseReceived(response);
+                    }
+                });
+
+                return response;
+            }
+        });
+    }
+
+    private static String put(MazeCodec.Maze maze, String json) {
+
+        try {
+            if (binarySupported) {
+                Map<String, String> headers = new HashMap<>();
+                headers.put("Content-Type", MazeCodec.CONTENT_TYPE);
+
+                ServerResponse response = HttpTransport.execute("maps", "PUT", MazeCodec.encode(maze, true), headers);
+
+                if (response.code != 415) {
+                    return response.toString();
+                }
+
+                Log.i("MapUpload", "Binary mazes not supported, sending JSON from now on");
+                binarySupported = false;
+            }
+
+            return HttpTransport.execute("maps", "PUT", json, null).toString();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.feup.sdis.mapapp.client;
+
+import android.util.JsonReader;
+
+import com.feup.sdis.mapapp.maze.MazeCodec;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.PolyUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses a maze response from the "maps" endpoint while it is being downloaded.
+ *
+ * Each entry of "lines" is decoded as soon as it is read and handed to the listener on the
+ * main thread, so the first lines are drawn before the rest of the payload arrives.
+ * Both the JSON form and the binary {@link MazeCodec} form are read, by Content-Type. The
+ * lines of the binary form are handed over once its checksum passed, a corrupt or truncated
+ * body only ends with a failed {@link Listener#onComplete(int)}
+ */
+public class MazeReader implements ResponseHandler {
+
+    /**
+     * Receives the maze pieces on the main thread, in the order they were read
+     */
+    public interface Listener {
+
+        /** A decoded maze line **/
+        public void onLine(List<LatLng> line);
+
+        /** Entrance, exit and owner of the maze **/
+        public void onInfo(double startlat, double startlng, double finishlat, double finishlng, String owner);
+
+        /** Called last. Code is the HTTP response code, -1 if the download failed **/
+        public void onComplete(int code);
+    }
+
+    private final Listener listener;
+
+    /** True once the listener was told the download ended **/
+    private volatile boolean completed = false;
+
+    public MazeReader(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void onResponse(int code, Map<String, String> headers, InputStream body) throws IOException {
+
+        if (body != null && code == 200 && isBinary(headers)) {
+            readBinary(body);
+        } else if (body != null && code == 200) {
+            JsonReader reader = new JsonReader(new InputStreamReader(body, "UTF-8"));
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+
+                if (name.equals("lines")) {
+                    readLines(reader);
+                } else if (name.equals("map")) {
+                    readInfo(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+
+        complete(code);
+    }
+
+    @Override
+    public void onFailure(Exception e) {
+        complete(-1);
+    }
+
+    /**
+     * @return True if the response holds the binary form of the maze
+     */
+    public static boolean isBinary(Map<String, String> headers) {
+        String type = headers == null ? null : headers.get("Content-Type");
+        return type != null && type.startsWith(MazeCodec.CONTENT_TYPE);
+    }
+
+    private void readBinary(InputStream body) throws IOException {
+
+        // lines are only handed over once the trailer proved the body whole
+        final MazeCodec.Maze[] header = new MazeCodec.Maze[1];
+        final List<List<LatLng>> lines = new ArrayList<>();
+
+        MazeCodec.decode(body, new MazeCodec.Visitor() {
+            @Override
+            public void onHeader(MazeCodec.Maze maze) {
+                header[0] = maze;
+            }
+
+            @Override
+            public void onLine(List<LatLng> line) {
+                lines.add(line);
+            }
+        });
+
+        MazeCodec.Maze maze = header[0];
+        postInfo(maze.startlat, maze.startlng, maze.finishlat, maze.finishlng, maze.fields.get("owner"));
+
+        ServerClient.postToMain(new Runnable() {
+            @Override
+            public void run() {
+                for (List<LatLng> line : lines) {
+                    listener.onLine(line);
+                }
+            }
+        });
+    }
+
+    private void readLines(JsonReader reader) throws IOException {
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+
+            String code = null;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("draw")) {
+                    code = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (code != null) {
+                final List<LatLng> line = PolyUtil.decode(code);
+
+                ServerClient.postToMain(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onLine(line);
+                    }
+                });
+            }
+        }
+        reader.endArray();
+    }
+
+    private void readInfo(JsonReader reader) throws IOException {
+
+        double startlat = 0, startlng = 0, finishlat = 0, finishlng = 0;
+        String owner = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "startlat":
+                    startlat = reader.nextDouble();
+                    break;
+                case "startlng":
+                    startlng = reader.nextDouble();
+                    break;
+                case "finishlat":
+                    finishlat = reader.nextDouble();
+                    break;
+                case "finishlng":
+                    finishlng = reader.nextDouble();
+                    break;
+                case "owner":
+                    owner = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        postInfo(startlat, startlng, finishlat, finishlng, owner);
+    }
+
+    private void postInfo(final double startlat, final double startlng, final double finishlat,
+                          final double finishlng, final String owner) {
+
+        ServerClient.postToMain(new Runnable() {
+            @Override
+            public void run() {
+                listener.onInfo(startlat, startlng, finishlat, finishlng, owner);
+            }
+        });
+    }
+
+    private void complete(final int code) {
+
+        if (completed) {
+            return;
+        }
+        completed = true;
+
+        ServerClient.postToMain(new Runnable() {
+            @Override
+            public void run() {
+                listener.onComplete(code);
+            }
+        });
+    }
+}
@@ -3,16 +3,26 @@ package com.feup.sdis.mapapp.client;
 import android.app.Application;
 import android.content.Context;
 
+import com.feup.sdis.mapapp.BuildConfig;
+
+import java.io.File;
+
 /**
  * Created by Rui on 06/06/2017.
  */
 
 public class MyApp extends Application {
     private static MyApp instance;
-    private static String username;
-    private static String accessToken;
+    private static volatile String username;
+    private static volatile String accessToken;
     private static String mapName;
 
+    /** Wall clock end of the current session, in milliseconds **/
+    private static volatile long sessionExpiry = 0;
+
+    /** Persists the session, set in {@link #onCreate()} **/
+    private static SessionStore sessions;
+
     public static MyApp getInstance() {
         return instance;
     }
@@ -34,10 +44,54 @@ public class MyApp extends Application {
         return mapName;
     }
 
+    /** Time between request metrics snapshots, in milliseconds **/
+    private static final long METRICS_FLUSH_PERIOD = 30 * 1000;
+
     @Override
     public void onCreate() {
         instance = this;
         super.onCreate();
+
+        // a stored session lets MainActivity skip the login
+        sessions = new SessionStore(this);
+        SessionStore.Session session = sessions.load();
+        if (session != null) {
+            username = session.username;
+            accessToken = session.accessToken;
+            sessionExpiry = session.expiresAt;
+        }
+
+        if (BuildConfig.DEBUG) {
+            // pull with adb shell run-as com.feup.sdis.mapapp cat files/request-metrics.json
+            RequestMetrics.get().startFlushing(new File(getFilesDir(), "request-metrics.json"), METRICS_FLUSH_PERIOD);
+        }
+    }
+
+    /**
+     * @return True if a user is logged in and the session did not expire
+     */
+    public static boolean hasSession() {
+        return username != null && accessToken != null && System.currentTimeMillis() < sessionExpiry;
+    }
+
+    /**
+     * Starts the session of a user who just logged in, and stores it for the next starts
+     */
+    public static void startSession(String name, String token) {
+        SessionStore.Session session = sessions.save(name, token);
+        username = name;
+        accessToken = token;
+        sessionExpiry = session.expiresAt;
+    }
+
+    /**
+     * Ends the current session, like when the server refuses its token
+     */
+    public static void endSession() {
+        username = null;
+        accessToken = null;
+        sessionExpiry = 0;
+        if (sessions != null) sessions.clear();
     }
 
     public static void setUsername(String name){
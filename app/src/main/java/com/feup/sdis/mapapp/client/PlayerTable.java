@@ -0,0 +1,192 @@
+package com.feup.sdis.mapapp.client;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Local copy of the other players positions in a game, kept up to date with delta snapshots.
+ *
+ * Once a snapshot version is known, requests carry "since=version" and the server only answers
+ * with what changed since then:
+ * <pre>
+ * {"version": 42, "full": false,
+ *  "players": [{"username": "a", "position": {"lat": 41.17, "lng": -8.59}}],
+ *  "left": ["b"]}
+ * </pre>
+ * A response without "version" or with "full": true is a full snapshot and replaces the table.
+ * A 410 response, or "stale": true, means our version is too old and a full resync is needed
+ */
+public class PlayerTable {
+
+    /**
+     * Last known position of a player
+     */
+    public static class Player {
+
+        public final String username;
+
+        public double lat;
+
+        public double lng;
+
+        Player(String username, double lat, double lng) {
+            this.username = username;
+            this.lat = lat;
+            this.lng = lng;
+        }
+    }
+
+    /**
+     * What changed after applying a response
+     */
+    public static class Delta {
+
+        /** Players that joined or moved **/
+        public final List<Player> changed = new ArrayList<>();
+
+        /** Usernames of the players that left **/
+        public final List<String> left = new ArrayList<>();
+
+        /** True if the table version was stale and needs a full resync **/
+        public boolean stale = false;
+
+        public boolean isEmpty() {
+            return changed.isEmpty() && left.isEmpty();
+        }
+    }
+
+    /** Players by username, in arrival order **/
+    private final Map<String, Player> players = new LinkedHashMap<>();
+
+    /** Snapshot version of the table, -1 if unknown **/
+    private long version = -1;
+
+    /**
+     * @return Query parameter to append to a players request, empty while no version is known
+     */
+    public String sinceParam() {
+        return version < 0 ? "" : "&since=" + version;
+    }
+
+    /**
+     * @param owner Owner of the game
+     * @return Path of the players request for this table
+     */
+    public String query(String owner) {
+        return "players?owner=" + owner + sinceParam();
+    }
+
+    /**
+     * @return Snapshot version of the table, -1 if unknown
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return All known players
+     */
+    public Collection<Player> getPlayers() {
+        return players.values();
+    }
+
+    /**
+     * Forgets the snapshot version so the next request asks for a full snapshot
+     */
+    public void invalidate() {
+        version = -1;
+    }
+
+    /**
+     * Applies a players response to the table
+     *
+     * @param code HTTP response code
+     * @param body Response body
+     * @return What changed in the table
+     */
+    public Delta apply(int code, String body) throws JSONException {
+
+        Delta delta = new Delta();
+
+        if (code == 410) {
+            invalidate();
+            delta.stale = true;
+            return delta;
+        }
+
+        JSONObject snapshot = new JSONObject(body);
+
+        if (snapshot.optBoolean("stale", false)) {
+            invalidate();
+            delta.stale = true;
+            return delta;
+        }
+
+        boolean full = !snapshot.has("version") || snapshot.optBoolean("full", false);
+        Set<String> seen = full ? new HashSet<String>() : null;
+
+        JSONArray all = snapshot.optJSONArray("players");
+        if (all != null) {
+            for (int i = 0; i < all.length(); i++) {
+
+                JSONObject player = all.getJSONObject(i);
+                JSONObject position = player.getJSONObject("position");
+                String username = player.optString("username", "#" + i);
+
+                double lat = position.getDouble("lat");
+                double lng = position.getDouble("lng");
+
+                Player known = players.get(username);
+                if (known == null) {
+                    known = new Player(username, lat, lng);
+                    players.put(username, known);
+                    delta.changed.add(known);
+                } else if (known.lat != lat || known.lng != lng) {
+                    known.lat = lat;
+                    known.lng = lng;
+                    delta.changed.add(known);
+                }
+
+                if (seen != null) {
+                    seen.add(username);
+                }
+            }
+        }
+
+        if (full) {
+            // everyone missing from a full snapshot left
+            Iterator<String> it = players.keySet().iterator();
+            while (it.hasNext()) {
+                String username = it.next();
+                if (!seen.contains(username)) {
+                    it.remove();
+                    delta.left.add(username);
+                }
+            }
+        } else {
+            JSONArray left = snapshot.optJSONArray("left");
+            if (left != null) {
+                for (int i = 0; i < left.length(); i++) {
+                    String username = left.getString(i);
+                    if (players.remove(username) != null) {
+                        delta.left.add(username);
+                    }
+                }
+            }
+        }
+
+        version = snapshot.optLong("version", -1);
+
+        return delta;
+    }
+}
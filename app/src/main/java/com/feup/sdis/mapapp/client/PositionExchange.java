@@ -0,0 +1,115 @@
+package com.feup.sdis.mapapp.client;
+
+import android.util.Log;
+
+import java.util.concurrent.Future;
+
+/**
+ * Sends the player position and receives the other players positions in a single round trip.
+ *
+ * The position is POSTed to "players?exchange=1". A server that supports it answers with the
+ * same body as a GET of "players?owner=", including the delta snapshots of {@link PlayerTable}. If the answer has no "players" array the server does
+ * not know the exchange mode, so this and every later update fall back to a POST followed by
+ * a GET. A POST that fails in that mode is answered to the callback instead of the GET, so the
+ * caller can send the position again
+ */
+public class PositionExchange {
+
+    /** Path used by the combined request **/
+    public static final String EXCHANGE_PATH = "players?exchange=1";
+
+    /** False once the server answered an exchange without the players list **/
+    private volatile boolean supported = true;
+
+    /** Owner of the game being played **/
+    private final String owner;
+
+    /** Players we already know, used to ask only for what changed **/
+    private final PlayerTable table;
+
+    public PositionExchange(String owner, PlayerTable table) {
+        this.owner = owner;
+        this.table = table;
+    }
+
+    /**
+     * @return True while the server is assumed to support the combined request
+     */
+    public boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * Sends our position and fetches the other players positions
+     *
+     * @param positionBody Body of the position POST
+     * @param callback     Receives the players response as "code - body", like a GET of "players?owner="
+     * @return Future of the request whose response goes to the callback
+     */
+    public Future<String> exchange(final RequestBody positionBody, final ClientInterface callback) {
+
+        if (!supported) {
+            return postThenFetch(positionBody, callback);
+        }
+
+        return ServerClient.enqueue(EXCHANGE_PATH + table.sinceParam(), "POST", positionBody, new ClientInterface() {
+            @Override
+            public void onResponseReceived(String s) {
+
+                if (s == null || hasPlayers(s)) {
+                    callback.onResponseReceived(s);
+                    return;
+                }
+
+                int code = ServerService.decodeResponse(s);
+
+                if (code / 100 == 2 || code == 404 || code == 405 || code == 501) {
+                    // server does not know the combined request, use two calls from now on
+                    Log.i("Exchange", "Server does not support position exchange (" + code + ")");
+                    supported = false;
+
+                    if (code / 100 != 2) {
+                        // the position was refused along with the exchange, send it again
+                        postThenFetch(positionBody, callback);
+                    } else {
+                        fetchPlayers(callback);
+                    }
+                } else {
+                    callback.onResponseReceived(s);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends our position alone, then fetches the other players once the server answered
+     *
+     * @return Future of the position POST
+     */
+    private Future<String> postThenFetch(RequestBody positionBody, final ClientInterface callback) {
+        return ServerClient.enqueue("players", "POST", positionBody, new ClientInterface() {
+            @Override
+            public void onResponseReceived(String s) {
+                if (s == null || ServerService.decodeResponse(s) >= 500) {
+                    callback.onResponseReceived(s);
+                } else {
+                    fetchPlayers(callback);
+                }
+            }
+        });
+    }
+
+    /**
+     * Fetches the other players positions without sending ours
+     *
+     * @param callback Receives the players response as "code - body"
+     */
+    public Future<String> fetchPlayers(ClientInterface callback) {
+        return ServerClient.enqueue(table.query(owner), "GET", callback);
+    }
+
+    private static boolean hasPlayers(String response) {
+        return response.startsWith("410") || response.startsWith("200")
+                && (response.contains("\"players\"") || response.contains("\"version\""));
+    }
+}
@@ -0,0 +1,247 @@
+package com.feup.sdis.mapapp.client;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Sends the position updates of one game, keeping only the latest one not sent yet.
+ *
+ * One update is in flight at a time, through {@link PositionExchange}. A position offered
+ * meanwhile replaces the waiting one, which is counted as dropped: an old fix is worth
+ * nothing once a newer one exists. A failed update, with no response or a 5xx, 408 or 429, is
+ * kept unless a newer one arrived, and sent again after an exponential backoff of
+ * {@link #BASE_DELAY} to {@link #MAX_DELAY}, half of it random so players that lost the same
+ * Wi-Fi don't all come back at once. While the device has no network nothing is sent, and a
+ * waiting position goes out as soon as connectivity returns. A dead network thus costs one
+ * position in memory and no handshakes.
+ *
+ * Used from the main thread only, where the responses of {@link ServerClient} arrive
+ */
+public class PositionOutbox {
+
+    /** Backoff after the first failure, in milliseconds **/
+    private static final long BASE_DELAY = 1000;
+
+    /** Longest backoff, in milliseconds **/
+    private static final long MAX_DELAY = 30 * 1000;
+
+    private final PositionExchange exchange;
+
+    /** Receives the players responses of every update, failed ones included **/
+    private final ClientInterface listener;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final Random random = new Random();
+
+    /** Latest position not sent yet, null if none **/
+    private RequestBody waiting = null;
+
+    /** True while an update is in flight **/
+    private boolean sending = false;
+
+    /** Failures in a row, sets the backoff **/
+    private int failures = 0;
+
+    /** True while waiting for the backoff to end **/
+    private boolean backingOff = false;
+
+    private boolean online = true;
+
+    private boolean closed = false;
+
+    private Context context = null;
+
+    private long sent = 0, rejected = 0, dropped = 0, retries = 0;
+
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            backingOff = false;
+            flush();
+        }
+    };
+
+    private final BroadcastReceiver connectivity = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            boolean wasOnline = online;
+            online = isConnected(context);
+            if (online && !wasOnline) {
+                Log.i("Outbox", "Network back, sending now");
+                failures = 0;
+                handler.removeCallbacks(retry);
+                backingOff = false;
+                flush();
+            }
+        }
+    };
+
+    /**
+     * @param exchange Sends the updates and fetches the other players along
+     * @param listener Receives every players response on the main thread, null if one failed
+     */
+    public PositionOutbox(PositionExchange exchange, ClientInterface listener) {
+        this.exchange = exchange;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts following the connectivity of the device
+     */
+    public void start(Context context) {
+        this.context = context.getApplicationContext();
+        online = isConnected(this.context);
+        this.context.registerReceiver(connectivity, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /**
+     * Drops the waiting position and ignores the response in flight
+     */
+    public void close() {
+        closed = true;
+        waiting = null;
+        handler.removeCallbacks(retry);
+        if (context != null) {
+            context.unregisterReceiver(connectivity);
+            context = null;
+        }
+    }
+
+    /**
+     * Queues a position, sent right away unless an update is in flight, a failure is being
+     * backed off or the device is offline
+     */
+    public void offer(RequestBody position) {
+        if (closed) return;
+        if (waiting != null) dropped++;
+        waiting = position;
+        flush();
+    }
+
+    /**
+     * @return True while an update is in flight or waits for a retry, the players are
+     * fetched along with it
+     */
+    public boolean isBusy() {
+        return sending || backingOff;
+    }
+
+    /**
+     * @return Positions waiting to be sent, 0 or 1
+     */
+    public int queueDepth() {
+        return waiting == null ? 0 : 1;
+    }
+
+    /**
+     * @return Positions replaced by a newer one before they were sent, or after they failed
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    /**
+     * @return Updates the server accepted
+     */
+    public long sent() {
+        return sent;
+    }
+
+    /**
+     * @return Updates the server refused for good, like a 400 or 403, not retried
+     */
+    public long rejected() {
+        return rejected;
+    }
+
+    /**
+     * @return Updates that failed and were retried or replaced
+     */
+    public long retries() {
+        return retries;
+    }
+
+    @Override
+    public String toString() {
+        return "depth " + queueDepth() + ", sent " + sent + ", rejected " + rejected + ", dropped " + dropped
+                + ", retries " + retries + (online ? "" : ", offline");
+    }
+
+    private void flush() {
+
+        if (closed || sending || backingOff || !online || waiting == null) return;
+
+        final RequestBody position = waiting;
+        waiting = null;
+        sending = true;
+
+        exchange.exchange(position, new ClientInterface() {
+            @Override
+            public void onResponseReceived(String s) {
+
+                sending = false;
+                if (closed) return;
+
+                if (isRetryable(s)) {
+                    retries++;
+                    if (waiting == null) {
+                        waiting = position;
+                    } else {
+                        dropped++;
+                    }
+                    backOff();
+                } else {
+                    if (isAccepted(s)) {
+                        sent++;
+                    } else {
+                        rejected++;
+                    }
+                    failures = 0;
+                }
+
+                listener.onResponseReceived(s);
+                flush();
+            }
+        });
+    }
+
+    private void backOff() {
+
+        long delay = Math.min(MAX_DELAY, BASE_DELAY << Math.min(failures, 16));
+        failures++;
+        delay = delay / 2 + (long) (random.nextDouble() * delay / 2);
+
+        Log.i("Outbox", "Update failed, next try in " + delay + " ms (" + this + ")");
+        backingOff = true;
+        handler.postDelayed(retry, delay);
+    }
+
+    private static boolean isRetryable(String response) {
+        if (response == null) return true;
+        int code = ServerService.decodeResponse(response);
+        return code >= 500 || code == 408 || code == 429;
+    }
+
+    /** A 410 only says the players snapshot is stale, the position was stored **/
+    private static boolean isAccepted(String response) {
+        int code = ServerService.decodeResponse(response);
+        return code / 100 == 2 || code == 410;
+    }
+
+    private static boolean isConnected(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = cm == null ? null : cm.getActiveNetworkInfo();
+        // without network information assume there is one and let the requests fail
+        return cm == null || network != null && network.isConnected();
+    }
+}
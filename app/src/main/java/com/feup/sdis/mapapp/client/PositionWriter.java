@@ -0,0 +1,195 @@
+package com.feup.sdis.mapapp.client;
+
+import org.json.JSONException;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Encodes position updates without building JSON objects for every fix.
+ *
+ * The body is byte for byte the one of {@link GameRequests#position}:
+ * <pre>
+ * {"username":"a","accesstoken":"t","owner":"o","position":{"lat":41.17,"lng":-8.59}}
+ * </pre>
+ * Everything up to the latitude is the same for the whole game and encoded once. A fix is a
+ * {@link Position} holding the two coordinates, which the request thread writes into its
+ * reused buffer when the request is sent, formatting the numbers in a reused StringBuilder
+ */
+public final class PositionWriter {
+
+    private static final byte[] LNG = ascii(",\"lng\":");
+
+    private static final byte[] END = ascii("}}");
+
+    /** Longest number, like "-2.2250738585072014E-308" **/
+    private static final int MAX_NUMBER = 24;
+
+    /** Number formatting buffer of each request thread **/
+    private static final ThreadLocal<StringBuilder> DIGITS = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(MAX_NUMBER);
+        }
+    };
+
+    /** UTF-8 of the body up to the latitude value **/
+    private final byte[] prefix;
+
+    /**
+     * @param username    Player username, left out of the body if null like JSONObject does
+     * @param accesstoken Player access token, left out if null
+     * @param owner       Owner of the game, left out if null
+     */
+    public PositionWriter(String username, String accesstoken, String owner) {
+
+        StringBuilder out = new StringBuilder("{");
+        field(out, "username", username);
+        field(out, "accesstoken", accesstoken);
+        field(out, "owner", owner);
+        out.append("\"position\":{\"lat\":");
+
+        try {
+            prefix = out.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return Body of a position update
+     * @throws JSONException If a coordinate is NaN or infinite, as JSONObject does
+     */
+    public Position at(double lat, double lng) throws JSONException {
+        check(lat);
+        check(lng);
+        return new Position(lat, lng);
+    }
+
+    /**
+     * Position update of the player, encoded when sent
+     */
+    public final class Position implements RequestBody {
+
+        private final double lat;
+
+        private final double lng;
+
+        Position(double lat, double lng) {
+            this.lat = lat;
+            this.lng = lng;
+        }
+
+        @Override
+        public int maxLength() {
+            return prefix.length + LNG.length + END.length + 2 * MAX_NUMBER;
+        }
+
+        @Override
+        public int write(byte[] buffer) {
+            System.arraycopy(prefix, 0, buffer, 0, prefix.length);
+            int at = number(lat, buffer, prefix.length);
+            System.arraycopy(LNG, 0, buffer, at, LNG.length);
+            at = number(lng, buffer, at + LNG.length);
+            System.arraycopy(END, 0, buffer, at, END.length);
+            return at + END.length;
+        }
+
+        @Override
+        public String toString() {
+            byte[] buffer = new byte[maxLength()];
+            try {
+                return new String(buffer, 0, write(buffer), "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Writes a number as JSONObject.numberToString does: integral values as longs, negative
+     * zero as "-0", anything else as Double.toString
+     *
+     * @return Index after the number
+     */
+    private static int number(double value, byte[] buffer, int at) {
+
+        StringBuilder digits = DIGITS.get();
+        digits.setLength(0);
+
+        long whole = (long) value;
+        if (Double.doubleToLongBits(value) == Double.doubleToLongBits(-0d)) {
+            digits.append("-0");
+        } else if (value == whole) {
+            digits.append(whole);
+        } else {
+            digits.append(value);
+        }
+
+        for (int i = 0; i < digits.length(); i++) {
+            buffer[at++] = (byte) digits.charAt(i);
+        }
+        return at;
+    }
+
+    private static void check(double value) throws JSONException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new JSONException("Forbidden numeric value: " + value);
+        }
+    }
+
+    private static void field(StringBuilder out, String name, String value) {
+        if (value == null) return;
+        quote(out, name);
+        out.append(':');
+        quote(out, value);
+        out.append(',');
+    }
+
+    /**
+     * Quotes a string with the escapes of the Android JSONStringer
+     */
+    private static void quote(StringBuilder out, String value) {
+
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    out.append('\\').append(c);
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    private static byte[] ascii(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,394 @@
+package com.feup.sdis.mapapp.client;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Uses the idle time around the login to get the first requests of a session ready.
+ *
+ * {@link #warmUp()} builds the TLS context and opens a connection while the user types the
+ * credentials, so the login finds a pooled socket, or at least a TLS session to resume.
+ * {@link #afterLogin(String)} fetches the first page of games, handed once to whoever asks for
+ * the same path with {@link #take(String)}, and stores the maps of the first
+ * {@link #MAX_MAPS} games in {@link MapCache}.
+ *
+ * Prefetches run one at a time on a single low priority thread. A request waits until no
+ * foreground request is in flight and its body is read at most at {@link #MAX_RATE} bytes per
+ * second, pausing whenever a foreground request starts, so it never competes with what the
+ * user is waiting for. A login fetches at most {@link #MAX_BYTES}, and {@link #cancel()} drops
+ * whatever is left
+ */
+public final class Prefetcher {
+
+    /** Smallest request that opens a connection, sent by {@link #warmUp()} **/
+    private static final String WARM_UP_PATH = "game?offset=0&limit=1";
+
+    /** Games whose maps are fetched after a login, from the top of the first page **/
+    private static final int MAX_MAPS = 3;
+
+    /** Max body bytes fetched after a login **/
+    private static final long MAX_BYTES = 512 * 1024;
+
+    /** Max body bytes read per second **/
+    private static final int MAX_RATE = 64 * 1024;
+
+    /** Bytes read between two rate and foreground checks **/
+    private static final int CHUNK = 4 * 1024;
+
+    /** How long, in milliseconds, a prefetched page is handed out **/
+    private static final long PAGE_FRESH_FOR = 30 * 1000;
+
+    /** Time between two checks for foreground requests, in milliseconds **/
+    private static final long POLL_INTERVAL = 100;
+
+    /** Time a prefetch waits for the foreground before giving up, in milliseconds **/
+    private static final long MAX_WAIT = 10 * 1000;
+
+    private static final Prefetcher INSTANCE = new Prefetcher();
+
+    /**
+     * Body of a prefetched response, as "code - body"
+     */
+    private static final class Page {
+
+        final String response;
+
+        final long fetchedAt;
+
+        Page(String response, long fetchedAt) {
+            this.response = response;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Prefetcher");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    /** Prefetched responses by path, guarded by this **/
+    private final Map<String, Page> pages = new HashMap<>();
+
+    /** Prefetches queued or running, guarded by this **/
+    private final List<Future<?>> pending = new ArrayList<>();
+
+    /** Bumped by {@link #cancel()}, a prefetch stops once it changed since it was queued **/
+    private volatile int generation = 0;
+
+    /** Prefetch requests in flight, counted in {@link RequestMetrics#inFlight()} as well **/
+    private volatile int ownInFlight = 0;
+
+    private Prefetcher() {
+    }
+
+    public static Prefetcher get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Builds the TLS context and opens a pooled connection to the server, without blocking
+     */
+    public void warmUp() {
+        submit(new Task() {
+            @Override
+            void run(Budget budget) throws Exception {
+                SSLContextHolder.getContext();
+                fetch(WARM_UP_PATH, budget);
+            }
+        });
+    }
+
+    /**
+     * Fetches the first page of games and the maps most likely to be opened, without blocking
+     *
+     * @param gamesPath Path of the first page of games, as its list requests it
+     */
+    public void afterLogin(final String gamesPath) {
+        submit(new Task() {
+            @Override
+            void run(Budget budget) throws Exception {
+
+                String response = fetch(gamesPath, budget);
+                if (response == null || ServerService.decodeResponse(response) != 200) {
+                    return;
+                }
+
+                synchronized (Prefetcher.this) {
+                    pages.put(gamesPath, new Page(response, System.currentTimeMillis()));
+                }
+
+                for (String mapName : firstMaps(response)) {
+                    fetchMap(mapName, budget);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands out a prefetched response, once
+     *
+     * @param path Path of the request
+     * @return The response as "code - body", null if it was not prefetched or is too old
+     */
+    public synchronized String take(String path) {
+        Page page = pages.remove(path);
+        if (page == null || System.currentTimeMillis() - page.fetchedAt > PAGE_FRESH_FOR) {
+            return null;
+        }
+        return page.response;
+    }
+
+    /**
+     * Drops the queued prefetches and stops the running one
+     */
+    public synchronized void cancel() {
+        generation++;
+        for (Future<?> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+    }
+
+    /**
+     * A prefetch and the bytes it may still read
+     */
+    private abstract class Task implements Runnable {
+
+        private final int queuedIn = generation;
+
+        private Future<?> future;
+
+        abstract void run(Budget budget) throws Exception;
+
+        @Override
+        public void run() {
+            try {
+                run(new Budget(queuedIn));
+            } catch (InterruptedIOException e) {
+                Log.i("Prefetcher", "Stopped: " + e.getMessage());
+            } catch (Exception e) {
+                Log.w("Prefetcher", "Prefetch failed", e);
+            } finally {
+                synchronized (Prefetcher.this) {
+                    pending.remove(future);
+                }
+            }
+        }
+    }
+
+    private synchronized void submit(Task task) {
+        task.future = executor.submit(task);
+        pending.add(task.future);
+    }
+
+    /**
+     * Bytes left to a prefetch, checked along with the cancellation and the foreground
+     */
+    private final class Budget {
+
+        private final int generation;
+
+        private long bytesLeft = MAX_BYTES;
+
+        Budget(int generation) {
+            this.generation = generation;
+        }
+
+        boolean spent() {
+            return bytesLeft <= 0;
+        }
+
+        /**
+         * Blocks while requests other than the prefetch ones are in flight
+         *
+         * @throws InterruptedIOException If the prefetch was cancelled or waited too long
+         */
+        void yieldToForeground() throws InterruptedIOException {
+
+            long waited = 0;
+            while (true) {
+                if (generation != Prefetcher.this.generation || Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("cancelled");
+                }
+                if (RequestMetrics.get().inFlight() <= ownInFlight) {
+                    return;
+                }
+                if (waited >= MAX_WAIT) {
+                    throw new InterruptedIOException("foreground busy for " + waited + " ms");
+                }
+                sleep(POLL_INTERVAL);
+                waited += POLL_INTERVAL;
+            }
+        }
+
+        /**
+         * Accounts bytes just read and sleeps long enough to keep to {@link #MAX_RATE}
+         */
+        void spend(int bytes) throws InterruptedIOException {
+            bytesLeft -= bytes;
+            if (bytesLeft < 0) {
+                throw new InterruptedIOException("budget of " + MAX_BYTES + " bytes spent");
+            }
+            sleep(bytes * 1000L / MAX_RATE);
+        }
+
+        /**
+         * @param mapName Map the body belongs to, read at full speed once a foreground load
+         *                waits for it. Null for other bodies
+         * @return Stream reading the given body in chunks, within the budget
+         */
+        InputStream throttle(InputStream in, final String mapName) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    if (mapName != null && MapCache.get().isAwaited(mapName)) {
+                        return super.read(buffer, offset, length);
+                    }
+                    yieldToForeground();
+                    int read = super.read(buffer, offset, Math.min(length, CHUNK));
+                    if (read > 0) spend(read);
+                    return read;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    byte[] buffer = new byte[CHUNK];
+                    long skipped = 0;
+                    int read;
+                    while (skipped < n && (read = read(buffer, 0, (int) Math.min(CHUNK, n - skipped))) > 0) {
+                        skipped += read;
+                    }
+                    return skipped;
+                }
+            };
+        }
+    }
+
+    /**
+     * Sends a GET once the foreground is idle and reads its body within the budget
+     *
+     * @return The response as "code - body", null if there is no budget left
+     */
+    private String fetch(String path, final Budget budget) throws Exception {
+
+        if (budget.spent()) return null;
+        budget.yieldToForeground();
+
+        final int[] code = {-1};
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        ownInFlight++;
+        try {
+            HttpTransport.stream(path, "GET", null, null, new ResponseHandler() {
+                @Override
+                public void onResponse(int status, Map<String, String> headers, InputStream in) throws IOException {
+                    code[0] = status;
+                    if (in != null) copy(budget.throttle(in, null), body);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                }
+            });
+        } finally {
+            ownInFlight--;
+        }
+
+        return code[0] + " - " + (code[0] >= 400 ? null : body.toString("UTF-8"));
+    }
+
+    /**
+     * Stores a map in the cache once the foreground is idle, reading it within the budget
+     */
+    private void fetchMap(final String mapName, final Budget budget) throws Exception {
+
+        if (budget.spent()) return;
+        budget.yieldToForeground();
+
+        ownInFlight++;
+        try {
+            int code = MapCache.get().loadNow(mapName, new ResponseHandler() {
+                @Override
+                public void onResponse(int status, Map<String, String> headers, InputStream in) throws IOException {
+                    // the cache keeps what is read through it
+                    if (in != null) copy(budget.throttle(in, mapName), null);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                }
+            });
+            Log.i("Prefetcher", "Map " + mapName + ": " + code);
+        } finally {
+            ownInFlight--;
+        }
+    }
+
+    /**
+     * @return Distinct map names of the first {@link #MAX_MAPS} games of a page
+     */
+    private static List<String> firstMaps(String response) {
+
+        List<String> maps = new ArrayList<>();
+        try {
+            JSONArray games = new JSONObject(response.substring(response.indexOf(" - ") + 3)).optJSONArray("games");
+            for (int i = 0; games != null && i < games.length() && maps.size() < MAX_MAPS; i++) {
+                String mapName = games.getJSONObject(i).optString("mapname", null);
+                if (mapName != null && !maps.contains(mapName)) {
+                    maps.add(mapName);
+                }
+            }
+        } catch (Exception e) {
+            Log.w("Prefetcher", "Unexpected games page", e);
+        }
+        return maps;
+    }
+
+    /**
+     * Reads a stream to the end, keeping the bytes if out is not null
+     */
+    private static void copy(InputStream in, ByteArrayOutputStream out) throws IOException {
+        byte[] buffer = new byte[CHUNK];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (out != null) out.write(buffer, 0, read);
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        if (millis <= 0) return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("cancelled");
+        }
+    }
+}
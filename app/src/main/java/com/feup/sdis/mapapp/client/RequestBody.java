@@ -0,0 +1,21 @@
+package com.feup.sdis.mapapp.client;
+
+/**
+ * Request body encoded at send time, straight into a buffer the request thread reuses
+ */
+public interface RequestBody {
+
+    /**
+     * @return Upper bound of the encoded size, in bytes
+     */
+    public int maxLength();
+
+    /**
+     * Called on the request thread, once per attempt
+     *
+     * @param buffer Buffer of at least {@link #maxLength()} bytes
+     * @return Number of bytes written at the start of the buffer
+     */
+    public int write(byte[] buffer);
+
+}
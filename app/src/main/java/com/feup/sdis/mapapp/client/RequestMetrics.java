@@ -0,0 +1,473 @@
+package com.feup.sdis.mapapp.client;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Latency, byte and status counters of every request, per endpoint and method.
+ *
+ * An endpoint is the first path segment ("users", "maps", "game", "players"). Each request
+ * made through {@link HttpTransport} is split in phases:
+ * <ul>
+ * <li>connect: opening the connection, ~0 on a pooled socket, TCP and TLS setup otherwise</li>
+ * <li>first byte: sending the request until the status line arrives</li>
+ * <li>read: reading the body, including the parsing done while streaming it</li>
+ * </ul>
+ * TLS handshakes are timed on their own, for every endpoint together, since a handshake
+ * belongs to a connection and not to a request.
+ *
+ * Recording takes a lock per endpoint and method, never held across I/O, and a few array
+ * increments. Snapshots are JSON, cumulative since the process started, and can be flushed to
+ * a file periodically with {@link #startFlushing(File, long)}
+ */
+public final class RequestMetrics {
+
+    private static final RequestMetrics INSTANCE = new RequestMetrics();
+
+    /** Stats by endpoint and method, like "players POST" */
+    private final ConcurrentHashMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    /** TLS handshake durations, guarded by itself */
+    private final LatencyHistogram handshakes = new LatencyHistogram();
+
+    /** Sockets each thread opened through {@link #timed}, tells a new connection from a pooled one */
+    private static final ThreadLocal<int[]> SOCKETS_OPENED = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    /** Requests started and not yet ended, on every endpoint */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /** Time the process started recording, in milliseconds since the epoch */
+    private final long since = System.currentTimeMillis();
+
+    /** True if something was recorded since the last flush */
+    private volatile boolean dirty = false;
+
+    private ScheduledExecutorService flusher = null;
+
+    private RequestMetrics() {
+    }
+
+    public static RequestMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts timing a request
+     *
+     * @param path   Path of the request, with the query string
+     * @param method HTTP method
+     */
+    public Call begin(String path, String method) {
+
+        String key = endpointOf(path) + " " + method;
+
+        Endpoint endpoint = endpoints.get(key);
+        if (endpoint == null) {
+            Endpoint created = new Endpoint();
+            endpoint = endpoints.putIfAbsent(key, created);
+            if (endpoint == null) endpoint = created;
+        }
+
+        return new Call(endpoint);
+    }
+
+    /**
+     * @return Requests in flight right now, on every endpoint
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return First path segment, without the query string
+     */
+    static String endpointOf(String path) {
+
+        int end = path.length();
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '?' || c == '/' || c == '#') {
+                end = i;
+                break;
+            }
+        }
+
+        return end == 0 ? "/" : path.substring(0, end);
+    }
+
+    /**
+     * One request being timed. Phases are marked by {@link HttpTransport} as they happen, and
+     * {@link #end()} must be called once whatever the outcome
+     */
+    public final class Call {
+
+        private final Endpoint endpoint;
+
+        private final long start = System.nanoTime();
+
+        private long connected = -1, firstByte = -1;
+
+        private long sent = 0, received = 0;
+
+        private int code = -1;
+
+        private boolean retried = false, succeeded = false, ended = false;
+
+        Call(Endpoint endpoint) {
+            this.endpoint = endpoint;
+            endpoint.started();
+            inFlight.incrementAndGet();
+        }
+
+        /** The connection is open, pooled or new **/
+        void connected() {
+            connected = System.nanoTime();
+        }
+
+        /** The request failed on a stale pooled connection and is being sent again **/
+        void retried() {
+            retried = true;
+        }
+
+        void sent(int bytes) {
+            sent += bytes;
+        }
+
+        /** The status line arrived **/
+        void firstByte(int code) {
+            this.code = code;
+            firstByte = System.nanoTime();
+        }
+
+        /**
+         * @return Stream counting the bytes read from the given response body
+         */
+        InputStream meter(InputStream in) {
+
+            if (in == null) return null;
+
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) received++;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int read = super.read(buffer, offset, length);
+                    if (read > 0) received += read;
+                    return read;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    long skipped = super.skip(n);
+                    received += skipped;
+                    return skipped;
+                }
+            };
+        }
+
+        /** The body was read whole **/
+        void succeeded() {
+            succeeded = true;
+        }
+
+        /**
+         * Records the request, as an error if {@link #succeeded()} was not called
+         */
+        void end() {
+
+            if (ended) return;
+            ended = true;
+
+            long end = System.nanoTime();
+            endpoint.record(this, end);
+            inFlight.decrementAndGet();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Stats of one endpoint and method, guarded by itself
+     */
+    private static final class Endpoint {
+
+        private final LatencyHistogram connect = new LatencyHistogram();
+        private final LatencyHistogram firstByte = new LatencyHistogram();
+        private final LatencyHistogram read = new LatencyHistogram();
+        private final LatencyHistogram total = new LatencyHistogram();
+
+        private long requests = 0, errors = 0, retries = 0;
+        private long bytesSent = 0, bytesReceived = 0;
+        private int inFlight = 0;
+
+        /** Response count by status code, in two parallel arrays since only a handful are seen */
+        private int[] codes = new int[4];
+        private long[] codeCounts = new long[4];
+        private int codeSize = 0;
+
+        synchronized void started() {
+            inFlight++;
+        }
+
+        synchronized void record(Call call, long end) {
+
+            inFlight--;
+            requests++;
+            bytesSent += call.sent;
+            bytesReceived += call.received;
+            if (call.retried) retries++;
+            if (!call.succeeded) errors++;
+            if (call.code >= 0) count(call.code);
+
+            if (call.connected >= 0) {
+                connect.record((call.connected - call.start) / 1000);
+                if (call.firstByte >= 0) {
+                    firstByte.record((call.firstByte - call.connected) / 1000);
+                }
+            }
+            if (call.succeeded) {
+                if (call.firstByte >= 0) {
+                    read.record((end - call.firstByte) / 1000);
+                }
+                total.record((end - call.start) / 1000);
+            }
+        }
+
+        private void count(int code) {
+
+            for (int i = 0; i < codeSize; i++) {
+                if (codes[i] == code) {
+                    codeCounts[i]++;
+                    return;
+                }
+            }
+
+            if (codeSize == codes.length) {
+                codes = Arrays.copyOf(codes, codeSize * 2);
+                codeCounts = Arrays.copyOf(codeCounts, codeSize * 2);
+            }
+            codes[codeSize] = code;
+            codeCounts[codeSize++] = 1;
+        }
+
+        synchronized JSONObject toJson() throws JSONException {
+
+            JSONObject status = new JSONObject();
+            for (int i = 0; i < codeSize; i++) {
+                status.put(String.valueOf(codes[i]), codeCounts[i]);
+            }
+
+            return new JSONObject()
+                    .put("requests", requests)
+                    .put("errors", errors)
+                    .put("retries", retries)
+                    .put("inFlight", inFlight)
+                    .put("bytesSent", bytesSent)
+                    .put("bytesReceived", bytesReceived)
+                    .put("status", status)
+                    .put("connect", connect.toJson())
+                    .put("firstByte", firstByte.toJson())
+                    .put("read", read.toJson())
+                    .put("total", total.toJson());
+        }
+    }
+
+    /**
+     * @return Every counter so far, durations in microseconds
+     */
+    public JSONObject snapshot() throws JSONException {
+
+        JSONObject byEndpoint = new JSONObject();
+
+        // sorted, so consecutive snapshots are easy to diff
+        Map<String, Endpoint> sorted = new TreeMap<>(endpoints);
+        for (Map.Entry<String, Endpoint> entry : sorted.entrySet()) {
+            byEndpoint.put(entry.getKey(), entry.getValue().toJson());
+        }
+
+        JSONObject tls;
+        synchronized (handshakes) {
+            tls = handshakes.toJson();
+        }
+
+        return new JSONObject()
+                .put("since", since)
+                .put("at", System.currentTimeMillis())
+                .put("tlsHandshake", tls)
+                .put("endpoints", byEndpoint);
+    }
+
+    /**
+     * Writes a snapshot to a file, replacing it whole
+     */
+    public void flushTo(File file) throws IOException, JSONException {
+
+        dirty = false;
+        byte[] bytes = snapshot().toString(2).getBytes("UTF-8");
+
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            throw new IOException("Can't replace " + file);
+        }
+    }
+
+    /**
+     * Flushes a snapshot to a file periodically, if anything was recorded since the last one
+     *
+     * @param file   Destination, replaced on every flush
+     * @param period Time between flushes, in milliseconds
+     */
+    public synchronized void startFlushing(final File file, long period) {
+
+        if (flusher != null) return;
+
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "RequestMetrics");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (!dirty) return;
+                try {
+                    flushTo(file);
+                } catch (Exception e) {
+                    Log.w("RequestMetrics", "Can't flush to " + file, e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Sockets the current thread opened through a {@link #timed} factory so far
+     */
+    static int socketsOpened() {
+        return SOCKETS_OPENED.get()[0];
+    }
+
+    /**
+     * Wraps a socket factory so the TLS handshakes of its sockets are timed
+     */
+    SSLSocketFactory timed(SSLSocketFactory factory) {
+        return new TimedSocketFactory(factory);
+    }
+
+    private final class TimedSocketFactory extends SSLSocketFactory {
+
+        private final SSLSocketFactory delegate;
+
+        TimedSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        private Socket timed(Socket socket) {
+
+            SOCKETS_OPENED.get()[0]++;
+
+            if (!(socket instanceof SSLSocket)) return socket;
+
+            // the handshake starts when the connection first writes, right after this
+            final long created = System.nanoTime();
+
+            ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                @Override
+                public void handshakeCompleted(HandshakeCompletedEvent event) {
+                    synchronized (handshakes) {
+                        handshakes.record((System.nanoTime() - created) / 1000);
+                    }
+                    dirty = true;
+                }
+            });
+
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return timed(delegate.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return timed(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return timed(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return timed(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return timed(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return timed(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
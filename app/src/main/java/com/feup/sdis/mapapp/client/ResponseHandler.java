@@ -0,0 +1,26 @@
+package com.feup.sdis.mapapp.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Reads a response body as it arrives from the server
+ */
+public interface ResponseHandler {
+
+    /**
+     * Called on the request thread once the response code is known
+     *
+     * @param code    HTTP response code
+     * @param headers Response headers, names are case insensitive
+     * @param body    Response body, null for error responses
+     */
+    public void onResponse(int code, Map<String, String> headers, InputStream body) throws IOException;
+
+    /**
+     * Called on the request thread if the request or the body reading failed
+     */
+    public void onFailure(Exception e);
+
+}
@@ -0,0 +1,154 @@
+package com.feup.sdis.mapapp.client;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Holds the TLS credentials and socket factory used to reach the server.
+ * The keystores are parsed and the SSLContext is built only once per process,
+ * so every request shares the same session cache and can resume TLS sessions
+ */
+public final class SSLContextHolder {
+
+    /** Client keystore, in the app assets */
+    public static final String KEYSTORE_ASSET = "testks.bks";
+
+    /** Truststore with the server self-signed certificate, in the app assets */
+    public static final String TRUSTSTORE_ASSET = "truststore.bks";
+
+    /** Number of TLS sessions kept for resumption */
+    private static final int SESSION_CACHE_SIZE = 16;
+
+    /** Time a TLS session can be resumed, in seconds */
+    private static final int SESSION_TIMEOUT = 60 * 60;
+
+    /** boa passe **/
+    private static final char[] PASSWORD = "123456".toCharArray();
+
+    /** Shared context, built on first use */
+    private static volatile SSLContext context = null;
+
+    private SSLContextHolder() {
+    }
+
+    /**
+     * Returns the process wide socket factory, building it on first use
+     *
+     * @return Socket factory backed by the shared SSLContext
+     */
+    public static SSLSocketFactory getSocketFactory() throws IOException, GeneralSecurityException {
+        return getContext().getSocketFactory();
+    }
+
+    /**
+     * Returns the process wide SSLContext, building it on first use
+     *
+     * @return Shared SSLContext
+     */
+    public static SSLContext getContext() throws IOException, GeneralSecurityException {
+
+        SSLContext ctx = context;
+        if (ctx != null) {
+            return ctx;
+        }
+
+        synchronized (SSLContextHolder.class) {
+            if (context == null) {
+                AssetManager assets = MyApp.getContext().getAssets();
+                InputStream keyStream = null, trustStream = null;
+                try {
+                    keyStream = assets.open(KEYSTORE_ASSET);
+                    trustStream = assets.open(TRUSTSTORE_ASSET);
+                    context = buildContext(keyStream, trustStream);
+                } finally {
+                    // buildContext closes both too, this covers a failed open
+                    closeQuietly(keyStream);
+                    closeQuietly(trustStream);
+                }
+            }
+            return context;
+        }
+    }
+
+    /**
+     * Builds a TLS context from the given BKS keystore and truststore.
+     * Both streams are closed before returning
+     *
+     * @param keyStream   Client keystore
+     * @param trustStream Truststore
+     * @return A new SSLContext with session resumption enabled
+     */
+    public static SSLContext buildContext(InputStream keyStream, InputStream trustStream)
+            throws IOException, GeneralSecurityException {
+
+        long start = System.nanoTime();
+
+        try {
+            // Load KeyStore With Bouncy Castle protocol BKS
+            KeyStore keystore = KeyStore.getInstance("BKS");
+            keystore.load(keyStream, PASSWORD);
+
+            // Load TrustStore because server uses self-signed certificate
+            KeyStore trustStore = KeyStore.getInstance("BKS");
+            trustStore.load(trustStream, PASSWORD);
+
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance("X509");
+            kmf.init(keystore, PASSWORD);
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance("X509");
+            tmf.init(trustStore);
+
+            // Load SSL Context
+            SSLContext sslctx = SSLContext.getInstance("TLS");
+            sslctx.init(
+                    kmf.getKeyManagers(),
+                    tmf.getTrustManagers(),
+                    new SecureRandom()
+            );
+
+            // keep sessions around so later handshakes are abbreviated
+            SSLSessionContext sessions = sslctx.getClientSessionContext();
+            if (sessions != null) {
+                sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+                sessions.setSessionTimeout(SESSION_TIMEOUT);
+            }
+
+            Log.i("SSL", "TLS context built in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+            return sslctx;
+
+        } finally {
+            closeQuietly(keyStream);
+            closeQuietly(trustStream);
+        }
+    }
+
+    /**
+     * Drops the shared context, the next request builds a new one
+     */
+    public static synchronized void reset() {
+        context = null;
+    }
+
+    private static void closeQuietly(InputStream stream) {
+        if (stream == null) {
+            return;
+        }
+        try {
+            stream.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.feup.sdis.mapapp.client;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Non-blocking client for the server.
+ *
+ * Requests run on a small background pool and their responses are delivered to the
+ * given {@link ClientInterface} on the main thread, so activities never wait for a round trip.
+ * Responses use the same "code - body" format as {@link ServerService}, null on failure.
+ * GETs go through {@link SingleFlight}, so identical ones in flight or answered in the last
+ * seconds share one network call
+ */
+public final class ServerClient {
+
+    /** Max requests running at the same time **/
+    private static final int MAX_CONCURRENT_REQUESTS = 4;
+
+    /** Threads that run the requests **/
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS);
+
+    /** Posts callbacks to the main thread **/
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    /** Joins identical GETs **/
+    private static final SingleFlight GETS = new SingleFlight();
+
+    private ServerClient() {
+    }
+
+    /**
+     * Sends a GET or DELETE request without blocking. A GET joins an identical one in flight
+     * or gets a response received just now
+     *
+     * @param path     Path relative to the server address
+     * @param method   HTTP method
+     * @param callback Receives the response on the main thread, may be null
+     * @return Future of the response. Cancelling it also drops the callback
+     */
+    public static Future<String> enqueue(String path, String method, ClientInterface callback) {
+        if ("GET".equals(method)) {
+            return GETS.get(path, callback);
+        }
+        return enqueue(path, method, (String) null, callback);
+    }
+
+    /**
+     * Sends a request without blocking
+     *
+     * @param path     Path relative to the server address
+     * @param method   HTTP method
+     * @param body     Request body for POST and PUT
+     * @param callback Receives the response on the main thread, may be null
+     * @return Future of the response. Cancelling it also drops the callback
+     */
+    public static Future<String> enqueue(final String path, final String method, final String body,
+                                         final ClientInterface callback) {
+        GETS.invalidate(path);
+        return enqueue(new Callable<String>() {
+            @Override
+            public String call() {
+                try {
+                    return request(path, method, body);
+                } finally {
+                    // GETs started while it was written may have read the old state
+                    GETS.invalidate(path);
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends a request without blocking, its body encoded on the request thread
+     *
+     * @param path     Path relative to the server address
+     * @param method   POST or PUT
+     * @param body     Request body
+     * @param callback Receives the response on the main thread, may be null
+     * @return Future of the response. Cancelling it also drops the callback
+     */
+    public static Future<String> enqueue(final String path, final String method, final RequestBody body,
+                                         final ClientInterface callback) {
+        GETS.invalidate(path);
+        return enqueue(new Callable<String>() {
+            @Override
+            public String call() {
+                try {
+                    return HttpTransport.execute(path, method, body).toString();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    return null;
+                } finally {
+                    GETS.invalidate(path);
+                }
+            }
+        }, callback);
+    }
+
+    private static Future<String> enqueue(Callable<String> request, final ClientInterface callback) {
+
+        FutureTask<String> task = new FutureTask<String>(request) {
+            @Override
+            protected void done() {
+                if (callback == null || isCancelled()) {
+                    return;
+                }
+
+                final String response = getQuietly(this);
+
+                MAIN_HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResponseReceived(response);
+                    }
+                });
+            }
+        };
+
+        EXECUTOR.execute(task);
+        return task;
+    }
+
+    /**
+     * Sends a request without blocking and streams its body to the given handler.
+     * The handler runs on the background thread and is responsible for posting its own results
+     *
+     * @param path    Path relative to the server address
+     * @param method  HTTP method
+     * @param body    Request body for POST and PUT
+     * @param handler Reads the response body
+     * @return Future of the response code, -1 if the request failed
+     */
+    public static Future<Integer> enqueueStream(final String path, final String method, final String body,
+                                                final ResponseHandler handler) {
+
+        FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                try {
+                    return HttpTransport.stream(path, method, body, null, handler);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    handler.onFailure(e);
+                    return -1;
+                }
+            }
+        });
+
+        EXECUTOR.execute(task);
+        return task;
+    }
+
+    /**
+     * Runs a task on the request threads
+     *
+     * @return Future of the task result
+     */
+    static <T> Future<T> submit(Callable<T> task) {
+        return EXECUTOR.submit(task);
+    }
+
+    /**
+     * Runs a task on the request threads
+     */
+    static void execute(Runnable task) {
+        EXECUTOR.execute(task);
+    }
+
+    /**
+     * Posts a task to the main thread
+     */
+    public static void postToMain(Runnable runnable) {
+        MAIN_HANDLER.post(runnable);
+    }
+
+    /**
+     * Sends a request and blocks until the response arrives. Never call it from the main thread
+     *
+     * @return The response as "code - body", null if the request failed
+     */
+    public static String request(String path, String method, String body) {
+
+        try {
+            return HttpTransport.execute(path, method, body).toString();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static String getQuietly(Future<String> future) {
+        try {
+            return future.get();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
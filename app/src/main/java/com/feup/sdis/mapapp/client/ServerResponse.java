@@ -0,0 +1,37 @@
+package com.feup.sdis.mapapp.client;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Status code and body of a response returned by the server
+ */
+public class ServerResponse {
+
+    /** HTTP response code **/
+    public final int code;
+
+    /** Response body, null if there was none or it could not be read **/
+    public final String body;
+
+    /** Response headers, names are case insensitive **/
+    public final Map<String, String> headers;
+
+    public ServerResponse(int code, String body) {
+        this(code, body, Collections.<String, String>emptyMap());
+    }
+
+    public ServerResponse(int code, String body, Map<String, String> headers) {
+        this.code = code;
+        this.body = body;
+        this.headers = headers;
+    }
+
+    /**
+     * Formats the response the way activities expect it, "code - body"
+     */
+    @Override
+    public String toString() {
+        return String.valueOf(code) + " - " + body;
+    }
+}
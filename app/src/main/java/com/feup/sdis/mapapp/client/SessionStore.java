@@ -0,0 +1,207 @@
+package com.feup.sdis.mapapp.client;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Keeps the logged in user across process restarts, so a warm start skips the login round trip.
+ *
+ * The session is kept in a private preferences file along with its expiry. From Android M the
+ * access token is encrypted with an AES/GCM key of the AndroidKeyStore, which never leaves the
+ * device, so a copied or restored preferences file gives nothing away; older versions rely on
+ * the app sandbox alone. The server does not say when a token expires, so a session is trusted
+ * for {@link #SESSION_TTL} after the login and ended earlier when the server refuses the token
+ */
+public final class SessionStore {
+
+    /** Time a session is trusted after the login, in milliseconds **/
+    public static final long SESSION_TTL = 12 * 60 * 60 * 1000;
+
+    private static final String PREFERENCES = "session";
+
+    private static final String KEY_USERNAME = "username";
+
+    private static final String KEY_TOKEN = "token";
+
+    private static final String KEY_EXPIRES = "expires";
+
+    /** How the token is stored, {@link #SCHEME_KEYSTORE} or {@link #SCHEME_PLAIN} **/
+    private static final String KEY_SCHEME = "scheme";
+
+    private static final String SCHEME_KEYSTORE = "keystore";
+
+    private static final String SCHEME_PLAIN = "plain";
+
+    private static final String KEYSTORE = "AndroidKeyStore";
+
+    private static final String KEY_ALIAS = "session-token";
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    /** GCM authentication tag length, in bits **/
+    private static final int TAG_LENGTH = 128;
+
+    /**
+     * Logged in user
+     */
+    public static final class Session {
+
+        public final String username;
+
+        public final String accessToken;
+
+        /** Wall clock time the session ends, in milliseconds **/
+        public final long expiresAt;
+
+        Session(String username, String accessToken, long expiresAt) {
+            this.username = username;
+            this.accessToken = accessToken;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @return True until the session expires. A clock set back by more than the whole
+         * session length also ends it
+         */
+        public boolean isValid(long now) {
+            return now < expiresAt && expiresAt - now <= SESSION_TTL;
+        }
+    }
+
+    private final SharedPreferences preferences;
+
+    public SessionStore(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Stores a new session, replacing the previous one
+     *
+     * @return The stored session
+     */
+    public Session save(String username, String accessToken) {
+
+        long expiresAt = System.currentTimeMillis() + SESSION_TTL;
+
+        String sealed = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            try {
+                sealed = encrypt(accessToken);
+            } catch (GeneralSecurityException | IOException e) {
+                Log.w("Session", "Keystore unavailable, keeping the token in private storage only", e);
+            }
+        }
+
+        preferences.edit()
+                .putString(KEY_USERNAME, username)
+                .putLong(KEY_EXPIRES, expiresAt)
+                .putString(KEY_SCHEME, sealed != null ? SCHEME_KEYSTORE : SCHEME_PLAIN)
+                .putString(KEY_TOKEN, sealed != null ? sealed : accessToken)
+                .apply();
+
+        return new Session(username, accessToken, expiresAt);
+    }
+
+    /**
+     * @return The stored session, null if there is none or it expired
+     */
+    public Session load() {
+
+        String username = preferences.getString(KEY_USERNAME, null);
+        String token = preferences.getString(KEY_TOKEN, null);
+        String scheme = preferences.getString(KEY_SCHEME, SCHEME_PLAIN);
+        long expiresAt = preferences.getLong(KEY_EXPIRES, 0);
+
+        if (username == null || token == null) return null;
+
+        Session session = null;
+        if (SCHEME_PLAIN.equals(scheme)) {
+            session = new Session(username, token, expiresAt);
+        } else if (SCHEME_KEYSTORE.equals(scheme) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            try {
+                session = new Session(username, decrypt(token), expiresAt);
+            } catch (GeneralSecurityException | IOException | IllegalArgumentException e) {
+                // key gone, like after a restore on another device
+                Log.w("Session", "Stored token can't be decrypted", e);
+            }
+        }
+
+        if (session == null || !session.isValid(System.currentTimeMillis())) {
+            clear();
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Forgets the stored session
+     */
+    public void clear() {
+        preferences.edit().clear().apply();
+    }
+
+    /**
+     * @return IV and ciphertext of the token, in Base64 and separated by ':'
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static String encrypt(String token) throws GeneralSecurityException, IOException {
+
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, key());
+        byte[] sealed = cipher.doFinal(token.getBytes("UTF-8"));
+
+        return Base64.encodeToString(cipher.getIV(), Base64.NO_WRAP) + ":"
+                + Base64.encodeToString(sealed, Base64.NO_WRAP);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static String decrypt(String stored) throws GeneralSecurityException, IOException {
+
+        int separator = stored.indexOf(':');
+        if (separator < 0) throw new GeneralSecurityException("Malformed stored token");
+
+        byte[] iv = Base64.decode(stored.substring(0, separator), Base64.NO_WRAP);
+        byte[] sealed = Base64.decode(stored.substring(separator + 1), Base64.NO_WRAP);
+
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, key(), new GCMParameterSpec(TAG_LENGTH, iv));
+        return new String(cipher.doFinal(sealed), "UTF-8");
+    }
+
+    /**
+     * @return The token key, created on first use
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static SecretKey key() throws GeneralSecurityException, IOException {
+
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+        keyStore.load(null);
+
+        if (!keyStore.containsAlias(KEY_ALIAS)) {
+            KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+            generator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS,
+                    KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                    .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                    .build());
+            return generator.generateKey();
+        }
+
+        return (SecretKey) keyStore.getKey(KEY_ALIAS, null);
+    }
+}
@@ -0,0 +1,257 @@
+package com.feup.sdis.mapapp.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Shares GET requests between callers, keyed by method and URL.
+ *
+ * A GET asked for while the same one is in flight joins it instead of being sent again, and
+ * every caller gets the one response. A successful response is also handed to callers asking
+ * within {@link #SHARE_FOR}, so activities opening one after the other don't fetch the same
+ * bytes twice, except for the {@link #LIVE} endpoints whose answers change all the time.
+ * Any other method sent to an endpoint, when queued and again once answered, drops what is
+ * kept for it and detaches the GETs of that endpoint in flight: their callers still get their
+ * answer, but later callers send a new request and the answer, possibly read before the
+ * change, is not kept.
+ *
+ * Each caller gets its own future. Cancelling it drops its callback, and the request itself
+ * is cancelled once no caller is left waiting for it
+ */
+final class SingleFlight {
+
+    /** How long, in milliseconds, a successful response is handed to new callers **/
+    private static final long SHARE_FOR = 3 * 1000;
+
+    /** Max responses kept for sharing **/
+    private static final int MAX_RESULTS = 16;
+
+    /** Endpoints whose responses are only shared while in flight **/
+    private static final Set<String> LIVE = new HashSet<>(Arrays.asList("players"));
+
+    /**
+     * A response kept for sharing
+     */
+    private static final class Result {
+
+        final String endpoint;
+
+        final String response;
+
+        final long receivedAt;
+
+        Result(String endpoint, String response, long receivedAt) {
+            this.endpoint = endpoint;
+            this.response = response;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    /** Requests in flight by key, guarded by this **/
+    private final Map<String, Flight> flights = new HashMap<>();
+
+    /** Recent responses by key, least recently used first, guarded by this **/
+    private final LinkedHashMap<String, Result> results = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+            return size() > MAX_RESULTS;
+        }
+    };
+
+    /**
+     * Sends a GET, unless the same one is in flight or was answered just now
+     *
+     * @param path     Path relative to the server address
+     * @param callback Receives the response on the main thread, may be null
+     * @return Future of the response for this caller
+     */
+    Future<String> get(final String path, ClientInterface callback) {
+
+        String key = key(path, "GET");
+        Call call = new Call(callback);
+        Flight started = null;
+
+        synchronized (this) {
+            Result result = results.get(key);
+            if (result != null && System.currentTimeMillis() - result.receivedAt < SHARE_FOR) {
+                call.complete(result.response);
+                return call;
+            }
+
+            Flight flight = flights.get(key);
+            if (flight == null) {
+                flight = new Flight(key, RequestMetrics.endpointOf(path), new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return ServerClient.request(path, "GET", null);
+                    }
+                });
+                flights.put(key, flight);
+                started = flight;
+            }
+
+            call.flight = flight;
+            flight.calls.add(call);
+        }
+
+        if (started != null) {
+            ServerClient.execute(started);
+        }
+        return call;
+    }
+
+    /**
+     * Drops the responses kept for the endpoint of a path and detaches its requests in flight,
+     * called before it is changed
+     */
+    synchronized void invalidate(String path) {
+        String endpoint = RequestMetrics.endpointOf(path);
+        for (Iterator<Result> kept = results.values().iterator(); kept.hasNext(); ) {
+            if (kept.next().endpoint.equals(endpoint)) {
+                kept.remove();
+            }
+        }
+        for (Iterator<Flight> running = flights.values().iterator(); running.hasNext(); ) {
+            Flight flight = running.next();
+            if (flight.endpoint.equals(endpoint)) {
+                flight.stale = true;
+                running.remove();
+            }
+        }
+    }
+
+    private static String key(String path, String method) {
+        return method + " " + HttpTransport.getServerUrl() + path;
+    }
+
+    /**
+     * The one request sent for every caller of a key
+     */
+    private final class Flight extends FutureTask<String> {
+
+        private final String key;
+
+        private final String endpoint;
+
+        /** Callers waiting for the response, guarded by the SingleFlight **/
+        private final List<Call> calls = new ArrayList<>();
+
+        /** True once the endpoint changed while in flight, guarded by the SingleFlight **/
+        private boolean stale = false;
+
+        Flight(String key, String endpoint, Callable<String> request) {
+            super(request);
+            this.key = key;
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        protected void done() {
+
+            String response = null;
+            if (!isCancelled()) {
+                try {
+                    response = get();
+                } catch (Exception e) {
+                    response = null;
+                }
+            }
+
+            List<Call> waiting;
+            synchronized (SingleFlight.this) {
+                if (flights.get(key) == this) {
+                    flights.remove(key);
+                }
+                if (response != null && response.startsWith("2") && !stale && !LIVE.contains(endpoint)) {
+                    results.put(key, new Result(endpoint, response, System.currentTimeMillis()));
+                }
+                waiting = new ArrayList<>(calls);
+                calls.clear();
+            }
+
+            for (Call call : waiting) {
+                call.complete(response);
+            }
+        }
+    }
+
+    /**
+     * The future of one caller, completed with the shared response
+     */
+    private final class Call extends FutureTask<String> {
+
+        private final ClientInterface callback;
+
+        /** Request this caller waits for, null if answered from a kept response **/
+        private Flight flight;
+
+        Call(ClientInterface callback) {
+            super(new Callable<String>() {
+                @Override
+                public String call() {
+                    throw new IllegalStateException("Completed by its flight only");
+                }
+            });
+            this.callback = callback;
+        }
+
+        void complete(String response) {
+            set(response);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+
+            if (!super.cancel(mayInterruptIfRunning)) {
+                return false;
+            }
+
+            Flight abandoned = null;
+            synchronized (SingleFlight.this) {
+                if (flight != null && flight.calls.remove(this) && flight.calls.isEmpty()) {
+                    if (flights.get(flight.key) == flight) {
+                        flights.remove(flight.key);
+                    }
+                    abandoned = flight;
+                }
+            }
+
+            if (abandoned != null) {
+                abandoned.cancel(mayInterruptIfRunning);
+            }
+            return true;
+        }
+
+        @Override
+        protected void done() {
+            if (callback == null || isCancelled()) {
+                return;
+            }
+
+            String response;
+            try {
+                response = get();
+            } catch (Exception e) {
+                response = null;
+            }
+
+            final String delivered = response;
+            ServerClient.postToMain(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onResponseReceived(delivered);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.feup.sdis.mapapp.location;
+
+/**
+ * Picks how often, and how accurately, the player location is sampled.
+ *
+ * Each fix updates a smoothed walking speed, and the interval is the time the player needs to
+ * cover half the distance to the next decision (the nearest junction or the edge of the maze
+ * corridor), so they are sampled at least twice before reaching it. The player is sampled as
+ * fast as allowed near the exit or a decision, and slowly after standing still for a while.
+ * Accuracy stays high even then: coarse fixes would fail the on-maze checks and hide the player
+ * walking off again.
+ *
+ * Plain Java on purpose, so simulated location feeds can drive it on a JVM. The priority has the
+ * same value as the LocationRequest one
+ */
+public class LocationScheduler {
+
+    /** Same value as LocationRequest.PRIORITY_HIGH_ACCURACY */
+    public static final int PRIORITY_HIGH_ACCURACY = 100;
+
+    /** Interval before the first fixes, in milliseconds */
+    public static final long DEFAULT_INTERVAL = 2000;
+
+    /** Shortest interval, in milliseconds */
+    public static final long MIN_INTERVAL = 1000;
+
+    /** Longest interval while walking, in milliseconds */
+    public static final long MAX_INTERVAL = 8000;
+
+    /** Interval while standing still, in milliseconds */
+    public static final long IDLE_INTERVAL = 15000;
+
+    /** Below this speed, in meters per second, the player is standing still */
+    static final double IDLE_SPEED = 0.3;
+
+    /** Time standing still, in milliseconds, before sampling slows down */
+    static final long IDLE_AFTER = 10000;
+
+    /** Largest move, in meters, taken as jitter of an inaccurate fix */
+    static final double MAX_JITTER = 10;
+
+    /** Distance to a decision, in meters, under which sampling is as fast as allowed */
+    static final double NEAR_DECISION = 10;
+
+    /** Distance to the exit, in meters, under which sampling is as fast as allowed */
+    static final double NEAR_EXIT = 30;
+
+    /** Part of the time to the next decision used as the interval */
+    private static final double LOOKAHEAD = 0.5;
+
+    /** Weight of the newest speed sample */
+    private static final double SPEED_SMOOTHING = 0.5;
+
+    /** Relative interval change under which the current request is kept */
+    private static final double CHANGE_THRESHOLD = 0.25;
+
+    private long interval = DEFAULT_INTERVAL;
+
+    /** Smoothed speed in meters per second, negative until two fixes were seen */
+    private double speed = -1;
+
+    /** Last fix, -1 time if none */
+    private long lastTime = -1;
+    private double lastX, lastY;
+
+    /** Time the player stopped moving, -1 while moving */
+    private long stillSince = -1;
+
+    /**
+     * Takes a new fix into account
+     *
+     * @param time       Time of the fix, in milliseconds
+     * @param x          Meters east of any fixed origin
+     * @param y          Meters north of the same origin
+     * @param accuracy   Accuracy of the fix in meters, moves within it, up to {@link #MAX_JITTER}, are ignored
+     * @param toDecision Meters to the nearest junction or corridor edge, infinite if unknown
+     * @param toExit     Meters to the exit, infinite if unknown
+     * @return True if the interval changed and location updates must be requested again
+     */
+    public boolean onFix(long time, double x, double y, double accuracy, double toDecision, double toExit) {
+
+        double jitter = Math.min(accuracy, MAX_JITTER);
+
+        if (lastTime >= 0 && time > lastTime) {
+
+            double moved = Math.hypot(x - lastX, y - lastY);
+
+            // jitter inside the accuracy circle is not movement
+            if (moved <= jitter) {
+                moved = 0;
+            }
+
+            double sample = moved * 1000 / (time - lastTime);
+            speed = speed < 0 ? sample : SPEED_SMOOTHING * sample + (1 - SPEED_SMOOTHING) * speed;
+        }
+
+        // a fix within the accuracy of the last one doesn't move the reference point, so slow
+        // walking still adds up
+        if (lastTime < 0 || Math.hypot(x - lastX, y - lastY) > jitter) {
+            lastX = x;
+            lastY = y;
+        }
+        lastTime = time;
+
+        if (speed >= 0 && speed < IDLE_SPEED) {
+            if (stillSince < 0) stillSince = time;
+        } else {
+            stillSince = -1;
+        }
+
+        boolean idle = stillSince >= 0 && time - stillSince >= IDLE_AFTER;
+
+        long nextInterval;
+
+        if (toExit <= NEAR_EXIT) {
+            nextInterval = MIN_INTERVAL;
+        } else if (idle) {
+            nextInterval = IDLE_INTERVAL;
+        } else if (toDecision <= NEAR_DECISION) {
+            nextInterval = MIN_INTERVAL;
+        } else if (speed < 0) {
+            nextInterval = DEFAULT_INTERVAL;
+        } else {
+            double horizon = Math.min(toDecision, toExit);
+            double seconds = horizon / Math.max(speed, IDLE_SPEED) * LOOKAHEAD;
+            nextInterval = (long) Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, seconds * 1000));
+        }
+
+        boolean changed = Math.abs(nextInterval - interval) >= interval * CHANGE_THRESHOLD;
+
+        if (changed) {
+            interval = nextInterval;
+        }
+
+        return changed;
+    }
+
+    /**
+     * @return Interval to request location updates at, in milliseconds
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return Shortest interval other requests may deliver fixes at, in milliseconds
+     */
+    public long getFastestInterval() {
+        return Math.max(MIN_INTERVAL, interval / 2);
+    }
+
+    /**
+     * @return Priority to request location updates with, high accuracy even while standing still
+     */
+    public int getPriority() {
+        return PRIORITY_HIGH_ACCURACY;
+    }
+
+    /**
+     * @return Smoothed speed in meters per second, 0 before two fixes were seen
+     */
+    public double getSpeed() {
+        return Math.max(speed, 0);
+    }
+}
@@ -0,0 +1,242 @@
+package com.feup.sdis.mapapp.location;
+
+import com.feup.sdis.mapapp.maze.LocalProjection;
+import com.google.android.gms.maps.model.LatLng;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A recorded or synthetic sequence of location fixes, and its compact file form.
+ *
+ * <pre>
+ * magic      'G' 'T'
+ * version    1 byte, {@link #VERSION}
+ * fixes      until the end of the file, each one
+ *            time      zig-zag varint, milliseconds since the fix before it
+ *            lat, lng  zig-zag varints, degrees * 10^6 since the fix before it
+ *            accuracy  varint, decimeters
+ * </pre>
+ * The first fix is relative to time 0 and to 0, 0. Fixes are appended as they come, so a trace
+ * cut short by the app being killed is still readable up to its last whole fix. A fix a second
+ * takes about 6 bytes
+ */
+public class LocationTrace {
+
+    public static final int VERSION = 1;
+
+    /** Scale of the stored coordinates, about 11 cm */
+    private static final double SCALE = 1e6;
+
+    /**
+     * One location fix
+     */
+    public static class Fix {
+
+        /** Time since the start of the trace, in milliseconds */
+        public final long time;
+
+        public final double lat, lng;
+
+        /** Accuracy in meters, 0 if unknown */
+        public final float accuracy;
+
+        public Fix(long time, double lat, double lng, float accuracy) {
+            this.time = time;
+            this.lat = lat;
+            this.lng = lng;
+            this.accuracy = accuracy;
+        }
+    }
+
+    private final List<Fix> fixes;
+
+    public LocationTrace(List<Fix> fixes) {
+        this.fixes = Collections.unmodifiableList(fixes);
+    }
+
+    /**
+     * @return Fixes in time order
+     */
+    public List<Fix> getFixes() {
+        return fixes;
+    }
+
+    /**
+     * @return Time of the last fix, in milliseconds
+     */
+    public long getDuration() {
+        return fixes.isEmpty() ? 0 : fixes.get(fixes.size() - 1).time;
+    }
+
+    /**
+     * Reads a whole trace, ignoring a last fix cut in half
+     *
+     * @param stream Trace file, closed by the caller
+     */
+    public static LocationTrace read(InputStream stream) throws IOException {
+
+        InputStream in = new BufferedInputStream(stream);
+
+        if (in.read() != 'G' || in.read() != 'T') {
+            throw new IOException("Not a location trace");
+        }
+        int version = in.read();
+        if (version != VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+
+        List<Fix> fixes = new ArrayList<>();
+        long time = 0, lat = 0, lng = 0;
+
+        while (true) {
+            int first = in.read();
+            if (first < 0) {
+                break;
+            }
+            try {
+                time += readSigned(in, first);
+                lat += readSigned(in, in.read());
+                lng += readSigned(in, in.read());
+                long accuracy = readVarint(in, in.read());
+                fixes.add(new Fix(time, lat / SCALE, lng / SCALE, accuracy / 10f));
+            } catch (EOFException e) {
+                break;
+            }
+        }
+
+        return new LocationTrace(fixes);
+    }
+
+    /**
+     * Builds a trace of a player walking along a path at a constant speed
+     *
+     * @param path     Points to walk through, in order
+     * @param speed    Walking speed, in meters per second
+     * @param interval Time between fixes, in milliseconds
+     * @param accuracy Accuracy given to every fix, in meters. The positions are exact
+     */
+    public static LocationTrace walk(List<LatLng> path, double speed, long interval, float accuracy) {
+
+        List<Fix> fixes = new ArrayList<>();
+        if (path.isEmpty()) {
+            return new LocationTrace(fixes);
+        }
+
+        LocalProjection projection = LocalProjection.around(Collections.singletonList(path));
+        double step = speed * interval / 1000;
+
+        // distance left to walk before the next fix
+        double untilFix = 0;
+        long time = 0;
+
+        for (int i = 0; i + 1 < path.size(); i++) {
+            LatLng a = path.get(i), b = path.get(i + 1);
+            double length = projection.distance(a, b);
+            double at = untilFix;
+
+            while (at <= length) {
+                double t = length == 0 ? 0 : at / length;
+                fixes.add(new Fix(time, a.latitude + t * (b.latitude - a.latitude),
+                        a.longitude + t * (b.longitude - a.longitude), accuracy));
+                time += interval;
+                at += step;
+            }
+
+            untilFix = at - length;
+        }
+
+        LatLng last = path.get(path.size() - 1);
+        fixes.add(new Fix(time, last.latitude, last.longitude, accuracy));
+
+        return new LocationTrace(fixes);
+    }
+
+    /**
+     * Appends fixes to a trace file as they come
+     */
+    public static class Writer {
+
+        private final OutputStream out;
+
+        private long lastTime = 0, lastLat = 0, lastLng = 0;
+
+        /**
+         * Writes the header
+         *
+         * @param stream Destination, closed by {@link #close()}
+         */
+        public Writer(OutputStream stream) throws IOException {
+            out = new BufferedOutputStream(stream);
+            out.write('G');
+            out.write('T');
+            out.write(VERSION);
+        }
+
+        public void write(Fix fix) throws IOException {
+
+            long lat = Math.round(fix.lat * SCALE);
+            long lng = Math.round(fix.lng * SCALE);
+
+            writeSigned(out, fix.time - lastTime);
+            writeSigned(out, lat - lastLat);
+            writeSigned(out, lng - lastLng);
+            writeVarint(out, Math.max(0, Math.round(fix.accuracy * 10)));
+
+            lastTime = fix.time;
+            lastLat = lat;
+            lastLng = lng;
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeSigned(OutputStream out, long value) throws IOException {
+        // zig-zag, so small negative deltas stay short
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * @param b First byte of the varint, already read
+     */
+    private static long readVarint(InputStream in, int b) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            b = in.read();
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long readSigned(InputStream in, int b) throws IOException {
+        long value = readVarint(in, b);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
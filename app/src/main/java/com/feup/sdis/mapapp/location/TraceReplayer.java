@@ -0,0 +1,328 @@
+package com.feup.sdis.mapapp.location;
+
+import android.location.Location;
+import android.os.Build;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.location.LocationListener;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Feeds a {@link LocationTrace} to a location listener on the main thread, in place of the
+ * fused location provider, and measures how the listener copes.
+ *
+ * For every fix it measures the time spent in onLocationChanged and what that call allocated
+ * on the main thread (through the Debug allocation counters, so numbers are only comparable
+ * between runs on the same device). The listener calls {@link #markRoundTrip()} when the
+ * network part of a fix is answered, which measures the time from the fix to that answer;
+ * back to back replays wait for it before the next fix, so fixes never overlap their answers.
+ * The distributions are logged under the "Replay" tag and handed to the {@link Listener}
+ * when the trace ends
+ */
+public class TraceReplayer {
+
+    /**
+     * Receives the measures of a replay
+     */
+    public interface Listener {
+        void onReplayFinished(Report report);
+    }
+
+    /** Longest wait for a round trip before the next back to back fix, in milliseconds */
+    private static final long ROUND_TRIP_TIMEOUT = 15000;
+
+    private final LocationTrace trace;
+
+    private final LocationListener target;
+
+    /** Trace time elapsed per real millisecond, 0 to deliver the fixes back to back */
+    private final float speed;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private Listener listener = null;
+
+    /** Index of the next fix to deliver */
+    private int next = 0;
+
+    /** Uptime the trace started at */
+    private long begin;
+
+    /** Time of the last delivered fix, -1 once its round trip is measured */
+    private long lastDelivered = -1;
+
+    private final long[] updateNanos, allocCounts, allocBytes, roundTripNanos;
+
+    private int roundTrips = 0;
+
+    private boolean running = false;
+
+    /**
+     * @param trace  Fixes to replay
+     * @param target Receives the fixes, usually the activity that would get them from the provider
+     * @param speed  Replay speed, 1 for real time, 0 to deliver each fix once the round trip of the
+     *               last one is measured (or after {@link #ROUND_TRIP_TIMEOUT} if it sends nothing)
+     */
+    public TraceReplayer(LocationTrace trace, LocationListener target, float speed) {
+        this.trace = trace;
+        this.target = target;
+        this.speed = speed;
+
+        int count = trace.getFixes().size();
+        updateNanos = new long[count];
+        allocCounts = new long[count];
+        allocBytes = new long[count];
+        roundTripNanos = new long[count];
+    }
+
+    /**
+     * Starts delivering fixes
+     *
+     * @param listener Receives the measures at the end, may be null
+     */
+    public void start(Listener listener) {
+
+        if (running) return;
+
+        this.listener = listener;
+        running = true;
+        next = 0;
+        roundTrips = 0;
+        begin = SystemClock.uptimeMillis();
+
+        Log.i("Replay", "Replaying " + trace.getFixes().size() + " fixes, "
+                + trace.getDuration() / 1000 + " s at " + speed + "x");
+
+        AllocCounter.start();
+        schedule();
+    }
+
+    /**
+     * Stops delivering fixes, without reporting
+     */
+    public void stop() {
+        if (!running) return;
+        running = false;
+        handler.removeCallbacks(deliver);
+        handler.removeCallbacks(resume);
+        AllocCounter.stop();
+    }
+
+    public LocationTrace getTrace() {
+        return trace;
+    }
+
+    public float getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @return True until the last fix is delivered or the replay is stopped
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Measures the round trip of the last fix, only the first call after each fix counts.
+     * Back to back, the next fix is delivered now
+     */
+    public void markRoundTrip() {
+        if (!running || lastDelivered < 0) return;
+        roundTripNanos[roundTrips++] = System.nanoTime() - lastDelivered;
+        lastDelivered = -1;
+
+        if (speed <= 0) {
+            handler.removeCallbacks(resume);
+            schedule();
+        }
+    }
+
+    private void schedule() {
+
+        if (next >= trace.getFixes().size()) {
+            finish();
+            return;
+        }
+
+        if (speed <= 0) {
+            handler.post(deliver);
+        } else {
+            handler.postAtTime(deliver, begin + (long) (trace.getFixes().get(next).time / speed));
+        }
+    }
+
+    private final Runnable deliver = new Runnable() {
+        @Override
+        public void run() {
+
+            if (!running) return;
+
+            int index = next++;
+            Location location = toLocation(trace.getFixes().get(index));
+
+            AllocCounter.reset();
+            long start = System.nanoTime();
+
+            target.onLocationChanged(location);
+
+            long end = System.nanoTime();
+            allocCounts[index] = AllocCounter.count();
+            allocBytes[index] = AllocCounter.bytes();
+            updateNanos[index] = end - start;
+            lastDelivered = start;
+
+            if (speed <= 0) {
+                // the next fix would overwrite the delivery time, wait for the answer to this one
+                handler.postDelayed(resume, ROUND_TRIP_TIMEOUT);
+            } else {
+                schedule();
+            }
+        }
+    };
+
+    /** Moves on to the next back to back fix when the last one got no answer */
+    private final Runnable resume = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) return;
+            lastDelivered = -1;
+            schedule();
+        }
+    };
+
+    /**
+     * Allocation counters of the current thread.
+     *
+     * The Debug thread counters are deprecated, but they are the only per-thread ones: the
+     * runtime stats replacing them need API 23 and count every thread of the process, so they
+     * would charge each fix with what the request threads allocate meanwhile. The deprecated
+     * calls are kept here only
+     */
+    @SuppressWarnings("deprecation")
+    private static final class AllocCounter {
+
+        private AllocCounter() {
+        }
+
+        static void start() {
+            Debug.startAllocCounting();
+        }
+
+        static void stop() {
+            Debug.stopAllocCounting();
+        }
+
+        static void reset() {
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+        }
+
+        static long count() {
+            return Debug.getThreadAllocCount();
+        }
+
+        static long bytes() {
+            return Debug.getThreadAllocSize();
+        }
+    }
+
+    private static Location toLocation(LocationTrace.Fix fix) {
+
+        Location location = new Location("replay");
+        location.setLatitude(fix.lat);
+        location.setLongitude(fix.lng);
+        if (fix.accuracy > 0) {
+            location.setAccuracy(fix.accuracy);
+        }
+        location.setTime(System.currentTimeMillis());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+        }
+        return location;
+    }
+
+    private void finish() {
+
+        stop();
+
+        Report report = new Report(updateNanos, allocCounts, allocBytes,
+                Arrays.copyOf(roundTripNanos, roundTrips));
+
+        Log.i("Replay", report.toString());
+
+        if (listener != null) {
+            listener.onReplayFinished(report);
+        }
+    }
+
+    /**
+     * Distributions measured over a replay, all arrays sorted
+     */
+    public static class Report {
+
+        /** Time spent in onLocationChanged per fix, in nanoseconds */
+        public final long[] updateNanos;
+
+        /** Objects allocated on the main thread per fix */
+        public final long[] allocCounts;
+
+        /** Bytes allocated on the main thread per fix */
+        public final long[] allocBytes;
+
+        /** Time from a fix to its network answer, in nanoseconds, for the fixes that got one */
+        public final long[] roundTripNanos;
+
+        Report(long[] updateNanos, long[] allocCounts, long[] allocBytes, long[] roundTripNanos) {
+            this.updateNanos = sorted(updateNanos);
+            this.allocCounts = sorted(allocCounts);
+            this.allocBytes = sorted(allocBytes);
+            this.roundTripNanos = sorted(roundTripNanos);
+        }
+
+        /**
+         * @param values   Sorted values
+         * @param fraction 0.5 for the median, 0.99 for the 99th percentile
+         * @return Nearest rank percentile, 0 if there are no values
+         */
+        public static long percentile(long[] values, double fraction) {
+            if (values.length == 0) return 0;
+            int rank = (int) Math.ceil(fraction * values.length) - 1;
+            return values[Math.max(0, Math.min(values.length - 1, rank))];
+        }
+
+        public static double mean(long[] values) {
+            if (values.length == 0) return 0;
+            double sum = 0;
+            for (long value : values) sum += value;
+            return sum / values.length;
+        }
+
+        private static long[] sorted(long[] values) {
+            long[] copy = values.clone();
+            Arrays.sort(copy);
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d fixes, update p50 %d us p90 %d us p99 %d us max %d us, "
+                            + "allocs/fix mean %.1f p99 %d (%.0f bytes mean), "
+                            + "round trip %d answered p50 %d ms p90 %d ms p99 %d ms",
+                    updateNanos.length,
+                    percentile(updateNanos, 0.5) / 1000, percentile(updateNanos, 0.9) / 1000,
+                    percentile(updateNanos, 0.99) / 1000, percentile(updateNanos, 1) / 1000,
+                    mean(allocCounts), percentile(allocCounts, 0.99), mean(allocBytes),
+                    roundTripNanos.length,
+                    percentile(roundTripNanos, 0.5) / 1000000, percentile(roundTripNanos, 0.9) / 1000000,
+                    percentile(roundTripNanos, 0.99) / 1000000);
+        }
+    }
+}
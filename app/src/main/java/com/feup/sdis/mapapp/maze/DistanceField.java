@@ -0,0 +1,291 @@
+package com.feup.sdis.mapapp.maze;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.Arrays;
+
+/**
+ * Walking distance from every node of a {@link MazeGraph} to the exit of the maze, or to the
+ * nearest junction.
+ *
+ * Built once with a single Dijkstra run from the exit (or from every junction). A position is
+ * then answered by finding its nearest segment in a {@link MazeIndex} of the same lines and
+ * interpolating between the two chain nodes around it, so a location fix never runs a path search
+ */
+public class DistanceField {
+
+    /** Graph the distances belong to */
+    private final MazeGraph graph;
+
+    /** Distance of each node to the exit (or nearest junction), in meters, infinite if it can't be reached */
+    private final float[] distance;
+
+    /**
+     * Runs Dijkstra from the exit
+     *
+     * @param graph     Graph of the maze
+     * @param exit      Exit of the maze
+     * @param tolerance Every segment closer than this (in meters) to the exit leads to it.
+     *                  The closest segment always does
+     */
+    public DistanceField(MazeGraph graph, LatLng exit, double tolerance) {
+
+        this(graph);
+
+        Heap heap = new Heap(distance.length);
+
+        double ex = graph.projection.x(exit.longitude);
+        double ey = graph.projection.y(exit.latitude);
+        double toleranceSq = tolerance * tolerance;
+
+        int closest = -1;
+        double closestSq = Double.MAX_VALUE;
+
+        for (int s = 0; s < graph.segmentCount(); s++) {
+            double distanceSq = LocalProjection.distanceSq(ex, ey, graph.x1[s], graph.y1[s], graph.x2[s], graph.y2[s]);
+            if (distanceSq <= toleranceSq) {
+                seed(heap, s, ex, ey);
+            }
+            if (distanceSq < closestSq) {
+                closestSq = distanceSq;
+                closest = s;
+            }
+        }
+
+        if (closest >= 0 && closestSq > toleranceSq) {
+            seed(heap, closest, ex, ey);
+        }
+
+        run(heap);
+    }
+
+    private DistanceField(MazeGraph graph) {
+        this.graph = graph;
+        this.distance = new float[graph.nodeCount()];
+        Arrays.fill(distance, Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Runs Dijkstra from every junction and dead end, ie every node where the player has a
+     * choice to make. A node counts its distinct neighbours, so a node in the middle of a line
+     * is never one
+     *
+     * @param graph Graph of the maze
+     * @return Walking distance to the nearest junction
+     */
+    public static DistanceField toJunctions(MazeGraph graph) {
+
+        DistanceField field = new DistanceField(graph);
+        Heap heap = new Heap(field.distance.length);
+
+        for (int node = 0; node < field.distance.length; node++) {
+            if (graph.degree(node) != 2) {
+                field.distance[node] = 0;
+                heap.update(node, 0);
+            }
+        }
+
+        field.run(heap);
+        return field;
+    }
+
+    private void run(Heap heap) {
+
+        while (!heap.isEmpty()) {
+            int node = heap.poll();
+            float base = distance[node];
+
+            for (int i = graph.offsets[node]; i < graph.offsets[node + 1]; i++) {
+                int next = graph.adjacency[i];
+                float candidate = (float) (base + graph.lengths[i]);
+                if (candidate < distance[next]) {
+                    distance[next] = candidate;
+                    heap.update(next, candidate);
+                }
+            }
+        }
+    }
+
+    /**
+     * Walking distance to the exit (or nearest junction) from a position, along the nearest line
+     *
+     * @param point     Position of the player
+     * @param index     Index of the same lines the graph was built from
+     * @param tolerance Max distance (in meters) the position can be of the maze
+     * @return Distance in meters, infinite if the position is off the maze or can't reach the exit
+     */
+    public double remaining(LatLng point, MazeIndex index, double tolerance) {
+
+        double px = graph.projection.x(point.longitude);
+        double py = graph.projection.y(point.latitude);
+
+        int segment = index.nearestSegment(px, py, tolerance, false);
+        if (segment < 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        return remaining(segment, px, py);
+    }
+
+    /**
+     * Walking distance to the exit (or nearest junction) from a position, along the given segment
+     *
+     * @param segment Segment id, shared by {@link MazeIndex} and {@link MazeGraph}
+     * @param px      Position meters east of the projection origin
+     * @param py      Position meters north of the projection origin
+     * @return Distance in meters, infinite if the exit can't be reached
+     */
+    public double remaining(int segment, double px, double py) {
+
+        double t = project(segment, px, py);
+        double length = length(segment);
+
+        // chain nodes are ordered by t, find the pair around it
+        int low = graph.chainOffset[segment];
+        int high = graph.chainOffset[segment + 1] - 1;
+        while (high - low > 1) {
+            int middle = (low + high) >>> 1;
+            if (graph.chainT[middle] <= t) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+
+        double before = distance[graph.chainNode[low]] + (t - graph.chainT[low]) * length;
+        double after = distance[graph.chainNode[high]] + (graph.chainT[high] - t) * length;
+
+        return Math.min(before, after);
+    }
+
+    /**
+     * @return Distance of a node to the exit (or nearest junction), in meters
+     */
+    public float nodeDistance(int node) {
+        return distance[node];
+    }
+
+    /**
+     * Starts the search from the point of a segment closest to the exit
+     */
+    private void seed(Heap heap, int segment, double ex, double ey) {
+
+        double t = project(segment, ex, ey);
+        double length = length(segment);
+
+        double cx = graph.x1[segment] + t * (graph.x2[segment] - graph.x1[segment]) - ex;
+        double cy = graph.y1[segment] + t * (graph.y2[segment] - graph.y1[segment]) - ey;
+        double offset = Math.sqrt(cx * cx + cy * cy);
+
+        for (int i = graph.chainOffset[segment]; i < graph.chainOffset[segment + 1]; i++) {
+            int node = graph.chainNode[i];
+            float candidate = (float) (offset + Math.abs(graph.chainT[i] - t) * length);
+            if (candidate < distance[node]) {
+                distance[node] = candidate;
+                heap.update(node, candidate);
+            }
+        }
+    }
+
+    private double project(int s, double px, double py) {
+
+        double dx = graph.x2[s] - graph.x1[s], dy = graph.y2[s] - graph.y1[s];
+        double lengthSq = dx * dx + dy * dy;
+        if (lengthSq == 0) {
+            return 0;
+        }
+        return Math.max(0, Math.min(1, ((px - graph.x1[s]) * dx + (py - graph.y1[s]) * dy) / lengthSq));
+    }
+
+    private double length(int s) {
+        return Math.hypot(graph.x2[s] - graph.x1[s], graph.y2[s] - graph.y1[s]);
+    }
+
+    /**
+     * Binary min-heap of node ids with decrease-key, keyed by their distance
+     */
+    private static class Heap {
+
+        private final int[] heap;
+
+        /** Position of each node in the heap, -1 if not in it */
+        private final int[] position;
+
+        private final float[] key;
+
+        private int size = 0;
+
+        Heap(int capacity) {
+            heap = new int[capacity];
+            position = new int[capacity];
+            key = new float[capacity];
+            Arrays.fill(position, -1);
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Adds a node, or lowers its key if it is already in the heap
+         */
+        void update(int node, float value) {
+            key[node] = value;
+            int at = position[node];
+            if (at < 0) {
+                at = size++;
+                heap[at] = node;
+                position[node] = at;
+            }
+            up(at);
+        }
+
+        int poll() {
+            int top = heap[0];
+            position[top] = -1;
+            size--;
+            if (size > 0) {
+                heap[0] = heap[size];
+                position[heap[0]] = 0;
+                down(0);
+            }
+            return top;
+        }
+
+        private void up(int at) {
+            int node = heap[at];
+            while (at > 0) {
+                int parent = (at - 1) >>> 1;
+                if (key[heap[parent]] <= key[node]) {
+                    break;
+                }
+                heap[at] = heap[parent];
+                position[heap[at]] = at;
+                at = parent;
+            }
+            heap[at] = node;
+            position[node] = at;
+        }
+
+        private void down(int at) {
+            int node = heap[at];
+            while (true) {
+                int child = 2 * at + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && key[heap[child + 1]] < key[heap[child]]) {
+                    child++;
+                }
+                if (key[heap[child]] >= key[node]) {
+                    break;
+                }
+                heap[at] = heap[child];
+                position[heap[at]] = at;
+                at = child;
+            }
+            heap[at] = node;
+            position[node] = at;
+        }
+    }
+}
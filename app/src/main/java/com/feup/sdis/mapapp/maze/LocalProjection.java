@@ -0,0 +1,166 @@
+package com.feup.sdis.mapapp.maze;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.List;
+
+/**
+ * Flat east-north frame, in meters, centered on a maze.
+ *
+ * A maze covers a few hundred meters, so instead of spherical trigonometry every point is
+ * projected once (equirectangular, anchored at the center of the maze bounds) and distances
+ * are plain planar math.
+ *
+ * Error bound: for points within D meters of the center, at center latitude lat0, the relative
+ * error of a distance against the spherical one is below |dLat| * tan(lat0) + (D / R)^2, where
+ * dLat is the largest latitude offset in radians and R the Earth radius. At FEUP (lat0 = 41.18)
+ * and D = 1 km that is under 0.015%, ie less than 5 mm on the 30 m player tolerance
+ */
+public class LocalProjection {
+
+    /** Mean Earth radius, in meters */
+    public static final double EARTH_RADIUS = 6371009;
+
+    /** Origin of the frame, in degrees */
+    private final double originLat, originLng;
+
+    /** Scale from degrees to meters, along each axis */
+    private final double metersPerDegLat, metersPerDegLng;
+
+    /**
+     * @param originLat Latitude of the frame origin
+     * @param originLng Longitude of the frame origin
+     */
+    public LocalProjection(double originLat, double originLng) {
+        this.originLat = originLat;
+        this.originLng = originLng;
+        this.metersPerDegLat = Math.toRadians(EARTH_RADIUS);
+        this.metersPerDegLng = Math.toRadians(EARTH_RADIUS) * Math.cos(Math.toRadians(originLat));
+    }
+
+    /**
+     * Builds a frame anchored at the center of the bounds of the given lines
+     *
+     * @param lines Maze lines, each a list of points
+     */
+    public static LocalProjection around(List<List<LatLng>> lines) {
+
+        double minLat = 90, maxLat = -90, minLng = 180, maxLng = -180;
+        boolean empty = true;
+
+        for (List<LatLng> line : lines) {
+            for (LatLng point : line) {
+                minLat = Math.min(minLat, point.latitude);
+                maxLat = Math.max(maxLat, point.latitude);
+                minLng = Math.min(minLng, point.longitude);
+                maxLng = Math.max(maxLng, point.longitude);
+                empty = false;
+            }
+        }
+
+        if (empty) {
+            return new LocalProjection(0, 0);
+        }
+
+        return new LocalProjection((minLat + maxLat) / 2, (minLng + maxLng) / 2);
+    }
+
+    /**
+     * @return Meters east of the origin
+     */
+    public double x(double lng) {
+        return (lng - originLng) * metersPerDegLng;
+    }
+
+    /**
+     * @return Meters north of the origin
+     */
+    public double y(double lat) {
+        return (lat - originLat) * metersPerDegLat;
+    }
+
+    /**
+     * @return Latitude of a point the given meters north of the origin
+     */
+    public double lat(double y) {
+        return originLat + y / metersPerDegLat;
+    }
+
+    /**
+     * @return Longitude of a point the given meters east of the origin
+     */
+    public double lng(double x) {
+        return originLng + x / metersPerDegLng;
+    }
+
+    /**
+     * @return Distance between two points, in meters
+     */
+    public double distance(LatLng a, LatLng b) {
+        double dx = x(a.longitude) - x(b.longitude);
+        double dy = y(a.latitude) - y(b.latitude);
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Computes whether the given point lies on or near a line, within a tolerance in meters
+     *
+     * @param point     Point to test
+     * @param line      Line points
+     * @param tolerance Max distance (in meters) point can be of line
+     */
+    public boolean isLocationOnPath(LatLng point, List<LatLng> line, double tolerance) {
+
+        double px = x(point.longitude);
+        double py = y(point.latitude);
+        double toleranceSq = tolerance * tolerance;
+
+        int size = line.size();
+        if (size == 0) {
+            return false;
+        }
+
+        LatLng previous = line.get(0);
+        double ax = x(previous.longitude);
+        double ay = y(previous.latitude);
+
+        if (size == 1) {
+            return distanceSq(px, py, ax, ay, ax, ay) <= toleranceSq;
+        }
+
+        for (int i = 1; i < size; i++) {
+            LatLng next = line.get(i);
+            double bx = x(next.longitude);
+            double by = y(next.latitude);
+
+            if (distanceSq(px, py, ax, ay, bx, by) <= toleranceSq) {
+                return true;
+            }
+
+            ax = bx;
+            ay = by;
+        }
+
+        return false;
+    }
+
+    /**
+     * Squared distance from point p to segment ab, all in the flat frame
+     */
+    public static double distanceSq(double px, double py, double ax, double ay, double bx, double by) {
+
+        double dx = bx - ax;
+        double dy = by - ay;
+        double lengthSq = dx * dx + dy * dy;
+
+        double t = 0;
+        if (lengthSq > 0) {
+            t = ((px - ax) * dx + (py - ay) * dy) / lengthSq;
+            t = Math.max(0, Math.min(1, t));
+        }
+
+        double cx = ax + t * dx - px;
+        double cy = ay + t * dy - py;
+        return cx * cx + cy * cy;
+    }
+}
@@ -0,0 +1,371 @@
+package com.feup.sdis.mapapp.maze;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary form of a maze, an alternative to the JSON and encoded polyline one.
+ *
+ * <pre>
+ * magic      'M' 'Z'
+ * version    1 byte, {@link #VERSION}
+ * flags      1 byte, bit 0 set if a CRC32 trailer follows
+ * precision  1 byte, decimal digits kept of each coordinate, 5 to 7
+ * fields     varint count, then count pairs of strings (name, owner, username, ...)
+ * start      lat, lng
+ * finish     lat, lng
+ * lines      varint count, then for each line a varint point count and its points
+ * [crc32]    4 bytes big endian, of every byte before it
+ * </pre>
+ * Strings are a varint byte length followed by UTF-8. Coordinates are degrees * 10^precision
+ * rounded, as zig-zag varints: 7 digits is about 1 cm, 6 digits about 11 cm. Start and finish
+ * are absolute, every line point is a delta from the point before it, starting with the maze
+ * start. At 6 digits a point of a drawn line usually takes 2 bytes, against about 4 characters
+ * for an encoded polyline, which only keeps 5 digits
+ */
+public final class MazeCodec {
+
+    /** Media type of the binary form, for Content-Type and Accept */
+    public static final String CONTENT_TYPE = "application/x-maze";
+
+    public static final int VERSION = 1;
+
+    /** Digits kept by {@link #encode(Maze, boolean)}, well under the 0.5 m line simplification */
+    public static final int DEFAULT_PRECISION = 6;
+
+    private static final int FLAG_CHECKSUM = 1;
+
+    private static final int MIN_PRECISION = 5, MAX_PRECISION = 7;
+
+    /** Size of the decoder read buffer */
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * A whole maze. Lines are empty when given to {@link Visitor#onHeader}
+     */
+    public static class Maze {
+
+        /** Text fields, like "name" and "owner", in the order they are written */
+        public final Map<String, String> fields = new LinkedHashMap<>();
+
+        public double startlat, startlng, finishlat, finishlng;
+
+        public final List<List<LatLng>> lines = new ArrayList<>();
+    }
+
+    /**
+     * Receives a maze while it is being decoded
+     */
+    public interface Visitor {
+
+        /** Fields, start and finish of the maze, before any line **/
+        public void onHeader(Maze maze);
+
+        /** A decoded line **/
+        public void onLine(List<LatLng> line);
+    }
+
+    private MazeCodec() {
+    }
+
+    /**
+     * Encodes a maze with {@link #DEFAULT_PRECISION}
+     *
+     * @param maze     Maze to encode
+     * @param checksum True to add a CRC32 trailer
+     * @return The binary form of the maze
+     */
+    public static byte[] encode(Maze maze, boolean checksum) {
+        return encode(maze, DEFAULT_PRECISION, checksum);
+    }
+
+    /**
+     * @param maze      Maze to encode
+     * @param precision Decimal digits kept of each coordinate, 5 to 7
+     * @param checksum  True to add a CRC32 trailer
+     * @return The binary form of the maze
+     */
+    public static byte[] encode(Maze maze, int precision, boolean checksum) {
+
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("Unsupported precision " + precision);
+        }
+
+        double scale = Math.pow(10, precision);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + 4 * pointCount(maze));
+
+        out.write('M');
+        out.write('Z');
+        out.write(VERSION);
+        out.write(checksum ? FLAG_CHECKSUM : 0);
+        out.write(precision);
+
+        writeVarint(out, maze.fields.size());
+        for (Map.Entry<String, String> field : maze.fields.entrySet()) {
+            writeString(out, field.getKey());
+            writeString(out, field.getValue());
+        }
+
+        long lat = fixed(maze.startlat, scale), lng = fixed(maze.startlng, scale);
+        writeSigned(out, lat);
+        writeSigned(out, lng);
+        writeSigned(out, fixed(maze.finishlat, scale));
+        writeSigned(out, fixed(maze.finishlng, scale));
+
+        writeVarint(out, maze.lines.size());
+        for (List<LatLng> line : maze.lines) {
+            writeVarint(out, line.size());
+            for (LatLng point : line) {
+                long pointLat = fixed(point.latitude, scale), pointLng = fixed(point.longitude, scale);
+                writeSigned(out, pointLat - lat);
+                writeSigned(out, pointLng - lng);
+                lat = pointLat;
+                lng = pointLng;
+            }
+        }
+
+        if (checksum) {
+            CRC32 crc = new CRC32();
+            byte[] bytes = out.toByteArray();
+            crc.update(bytes, 0, bytes.length);
+            long value = crc.getValue();
+            out.write((int) (value >>> 24));
+            out.write((int) (value >>> 16));
+            out.write((int) (value >>> 8));
+            out.write((int) value);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a whole maze
+     *
+     * @throws IOException If the stream ends early, is not a maze or fails its checksum
+     */
+    public static Maze decode(InputStream in) throws IOException {
+
+        final Maze[] result = new Maze[1];
+
+        decode(in, new Visitor() {
+            @Override
+            public void onHeader(Maze maze) {
+                result[0] = maze;
+            }
+
+            @Override
+            public void onLine(List<LatLng> line) {
+                result[0].lines.add(line);
+            }
+        });
+
+        return result[0];
+    }
+
+    /**
+     * Decodes a maze, handing each line to the visitor as soon as it is read.
+     * Lines given before a checksum failure must be discarded by the caller
+     *
+     * @throws IOException If the stream ends early, is not a maze or fails its checksum
+     */
+    public static void decode(InputStream stream, Visitor visitor) throws IOException {
+
+        Input in = new Input(stream);
+
+        if (in.readByte() != 'M' || in.readByte() != 'Z') {
+            throw new IOException("Not a maze");
+        }
+
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported maze version " + version);
+        }
+
+        int flags = in.readByte();
+
+        int precision = in.readByte();
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IOException("Unsupported maze precision " + precision);
+        }
+        double scale = Math.pow(10, precision);
+
+        Maze maze = new Maze();
+
+        int fields = in.readCount();
+        for (int i = 0; i < fields; i++) {
+            String key = in.readString();
+            maze.fields.put(key, in.readString());
+        }
+
+        long lat = in.readSigned(), lng = in.readSigned();
+        maze.startlat = lat / scale;
+        maze.startlng = lng / scale;
+        maze.finishlat = in.readSigned() / scale;
+        maze.finishlng = in.readSigned() / scale;
+
+        visitor.onHeader(maze);
+
+        int lines = in.readCount();
+        for (int i = 0; i < lines; i++) {
+
+            int points = in.readCount();
+            // the count is not trusted for the allocation
+            List<LatLng> line = new ArrayList<>(Math.min(points, 1024));
+
+            for (int j = 0; j < points; j++) {
+                lat += in.readSigned();
+                lng += in.readSigned();
+                line.add(new LatLng(lat / scale, lng / scale));
+            }
+
+            visitor.onLine(line);
+        }
+
+        if ((flags & FLAG_CHECKSUM) != 0) {
+            long expected = in.checksum();
+            long actual = ((long) in.readByte() << 24) | (in.readByte() << 16) | (in.readByte() << 8) | in.readByte();
+            if (actual != expected) {
+                throw new IOException("Maze checksum mismatch");
+            }
+        }
+    }
+
+    private static int pointCount(Maze maze) {
+        int count = 0;
+        for (List<LatLng> line : maze.lines) {
+            count += line.size();
+        }
+        return count;
+    }
+
+    private static long fixed(double degrees, double scale) {
+        return Math.round(degrees * scale);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeSigned(ByteArrayOutputStream out, long value) {
+        // zig-zag, so small negative deltas stay short
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value == null ? new byte[0] : utf8(value);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Buffered reader of the binary form, keeping a CRC32 of the bytes read so far
+     */
+    private static class Input {
+
+        private final InputStream in;
+
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        private int position = 0, limit = 0;
+
+        private final CRC32 crc = new CRC32();
+
+        /** Start of the buffered bytes not yet added to the checksum */
+        private int checked = 0;
+
+        Input(InputStream in) {
+            this.in = in;
+        }
+
+        int readByte() throws IOException {
+            if (position == limit) {
+                fill();
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        long readSigned() throws IOException {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        int readCount() throws IOException {
+            long count = readVarint();
+            if (count > Integer.MAX_VALUE) {
+                throw new IOException("Malformed count " + count);
+            }
+            return (int) count;
+        }
+
+        String readString() throws IOException {
+            int length = readCount();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.min(length, BUFFER_SIZE));
+            while (length > 0) {
+                if (position == limit) {
+                    fill();
+                }
+                int n = Math.min(length, limit - position);
+                bytes.write(buffer, position, n);
+                position += n;
+                length -= n;
+            }
+            return bytes.toString("UTF-8");
+        }
+
+        /**
+         * @return CRC32 of every byte read so far
+         */
+        long checksum() {
+            crc.update(buffer, checked, position - checked);
+            checked = position;
+            return crc.getValue();
+        }
+
+        private void fill() throws IOException {
+            crc.update(buffer, checked, limit - checked);
+
+            int n = in.read(buffer, 0, buffer.length);
+            if (n <= 0) {
+                throw new EOFException("Truncated maze");
+            }
+
+            position = 0;
+            limit = n;
+            checked = 0;
+        }
+    }
+}
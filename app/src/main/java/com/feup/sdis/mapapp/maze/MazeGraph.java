@@ -0,0 +1,698 @@
+package com.feup.sdis.mapapp.maze;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Planar graph of a maze, built once from its lines.
+ *
+ * Nodes are the line points plus a node wherever two segments cross or come within the join
+ * tolerance of each other. Crossing segments are split at a shared node, and near-touching ones
+ * are split at their closest points and joined by a short bridge edge, so strokes that were
+ * meant to meet but stop a little short still connect. Two parts of the same line are only
+ * joined when the way along the line between them is longer than {@link #SAME_LINE_FACTOR}
+ * times the tolerance: short segments of one stroke, or the two sides of a corner, are close
+ * to each other but already connected. Joins are made closest first, and one between two lines
+ * whose ends are both within that distance along their lines of a join already made between
+ * them is dropped, so a stroke ending near a point of another gets one bridge and not one per
+ * nearby segment. Parallel edges left by the joins are merged, keeping the shortest, so the
+ * degree of a node is its number of distinct neighbours.
+ *
+ * Pairs are found with a sweep along x: segments enter in order of their left end, leave once
+ * the sweep passes their right end, and the active ones are kept in an array ordered by their
+ * lowest y. Each segment is found by binary search and only tested against the active segments
+ * whose y range reaches it, so with the short segments of a drawn maze the sweep is
+ * O((n + k) log n), k being the pairs tested, plus the array shifts over the active strip.
+ *
+ * Everything is kept in primitive arrays, segment ids are the same as in {@link MazeIndex}
+ */
+public class MazeGraph {
+
+    /** Split parameters this close to an end of a segment use the end node */
+    private static final double END_EPSILON = 1e-9;
+
+    /**
+     * Parts of a line closer along it than this many tolerances are never joined, nor joined
+     * twice to the same part of another line. Two covers both sides of any corner of 60 degrees
+     * or more
+     */
+    private static final double SAME_LINE_FACTOR = 2;
+
+    /** Flat frame of the maze */
+    final LocalProjection projection;
+
+    /** Node positions, in meters */
+    final double[] nodeX, nodeY;
+
+    /** Edges of node i are adjacency[offsets[i]] to adjacency[offsets[i + 1] - 1] */
+    final int[] offsets, adjacency;
+
+    /** Length of each adjacency entry, in meters */
+    final double[] lengths;
+
+    /** Connected component of each node */
+    final int[] component;
+
+    /** Segment endpoints, in meters */
+    final double[] x1, y1, x2, y2;
+
+    /** Nodes along segment s are chainNode[chainOffset[s]] to chainNode[chainOffset[s + 1] - 1] */
+    final int[] chainOffset, chainNode;
+
+    /** Position of each chain node along its segment, from 0 to 1 */
+    final double[] chainT;
+
+    /** Crossings and bridges found */
+    private final int junctions;
+
+    /**
+     * Builds the graph
+     *
+     * @param lines     Maze lines, each a list of points
+     * @param tolerance Segments closer than this (in meters) are joined
+     */
+    public MazeGraph(List<List<LatLng>> lines, double tolerance) {
+
+        projection = LocalProjection.around(lines);
+
+        int segmentCount = 0, pointCount = 0;
+        for (List<LatLng> line : lines) {
+            segmentCount += segments(line);
+            pointCount += line.size();
+        }
+
+        x1 = new double[segmentCount];
+        y1 = new double[segmentCount];
+        x2 = new double[segmentCount];
+        y2 = new double[segmentCount];
+        int[] nodeA = new int[segmentCount];
+        int[] nodeB = new int[segmentCount];
+        int[] lineOf = new int[segmentCount];
+        double[] arcStart = new double[segmentCount];
+
+        Builder builder = new Builder(pointCount);
+
+        // every line point is a node, consecutive segments of a line share one
+        int id = 0, lineId = 0;
+        for (List<LatLng> line : lines) {
+
+            int first = builder.nodes;
+            double arc = 0;
+            for (LatLng point : line) {
+                builder.addNode(projection.x(point.longitude), projection.y(point.latitude));
+            }
+
+            for (int i = 0; i < segments(line); i++, id++) {
+                int a = first + i;
+                int b = first + Math.min(i + 1, line.size() - 1);
+                nodeA[id] = a;
+                nodeB[id] = b;
+                x1[id] = builder.x[a];
+                y1[id] = builder.y[a];
+                x2[id] = builder.x[b];
+                y2[id] = builder.y[b];
+                lineOf[id] = lineId;
+                arcStart[id] = arc;
+                arc += Math.hypot(x2[id] - x1[id], y2[id] - y1[id]);
+            }
+            lineId++;
+        }
+
+        junctions = sweep(builder, nodeA, nodeB, lineOf, arcStart, tolerance);
+
+        // chain the nodes of every segment in order and link them
+        double[] splitKey = new double[builder.splits];
+        for (int i = 0; i < splitKey.length; i++) {
+            // t is below 1, so this orders by segment then by t
+            splitKey[i] = builder.splitSegment[i] + builder.splitT[i] * 0.5;
+        }
+        int[] order = sortedBy(splitKey);
+
+        chainOffset = new int[segmentCount + 1];
+        chainNode = new int[2 * segmentCount + order.length];
+        chainT = new double[chainNode.length];
+
+        int next = 0, split = 0;
+        for (int s = 0; s < segmentCount; s++) {
+
+            chainOffset[s] = next;
+            chainNode[next] = nodeA[s];
+            chainT[next++] = 0;
+
+            while (split < order.length && builder.splitSegment[order[split]] == s) {
+                chainNode[next] = builder.splitNode[order[split]];
+                chainT[next++] = builder.splitT[order[split]];
+                split++;
+            }
+
+            chainNode[next] = nodeB[s];
+            chainT[next++] = 1;
+
+            double length = Math.hypot(x2[s] - x1[s], y2[s] - y1[s]);
+            for (int i = chainOffset[s] + 1; i < next; i++) {
+                builder.addEdge(chainNode[i - 1], chainNode[i], (chainT[i] - chainT[i - 1]) * length);
+            }
+        }
+        chainOffset[segmentCount] = next;
+
+        nodeX = Arrays.copyOf(builder.x, builder.nodes);
+        nodeY = Arrays.copyOf(builder.y, builder.nodes);
+
+        // adjacency lists, both directions of every edge
+        offsets = new int[builder.nodes + 1];
+        for (int e = 0; e < builder.edges; e++) {
+            offsets[builder.edgeFrom[e] + 1]++;
+            offsets[builder.edgeTo[e] + 1]++;
+        }
+        for (int i = 0; i < builder.nodes; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+
+        int[] entries = new int[2 * builder.edges];
+        double[] entryLengths = new double[2 * builder.edges];
+        int[] fill = Arrays.copyOf(offsets, builder.nodes);
+        for (int e = 0; e < builder.edges; e++) {
+            int a = builder.edgeFrom[e], b = builder.edgeTo[e];
+            entries[fill[a]] = b;
+            entryLengths[fill[a]++] = builder.edgeLength[e];
+            entries[fill[b]] = a;
+            entryLengths[fill[b]++] = builder.edgeLength[e];
+        }
+
+        // merge parallel edges and drop loops, both ends see the same pairs so it stays symmetric
+        int[] slot = new int[builder.nodes];
+        Arrays.fill(slot, -1);
+        int kept = 0;
+        for (int i = 0; i < builder.nodes; i++) {
+            int start = kept;
+            for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+                int other = entries[k];
+                if (other == i) {
+                    continue;
+                }
+                if (slot[other] >= start) {
+                    entryLengths[slot[other]] = Math.min(entryLengths[slot[other]], entryLengths[k]);
+                    continue;
+                }
+                slot[other] = kept;
+                entries[kept] = other;
+                entryLengths[kept++] = entryLengths[k];
+            }
+            offsets[i] = start;
+        }
+        offsets[builder.nodes] = kept;
+
+        adjacency = Arrays.copyOf(entries, kept);
+        lengths = Arrays.copyOf(entryLengths, kept);
+
+        component = new int[builder.nodes];
+        for (int i = 0; i < builder.nodes; i++) {
+            component[i] = builder.find(i);
+        }
+    }
+
+    /**
+     * Checks whether two points are joined by the maze, each within a tolerance of some line
+     *
+     * @param a         First point
+     * @param b         Second point
+     * @param tolerance Max distance (in meters) a point can be of the maze
+     * @return True if some line near a and some line near b are connected
+     */
+    public boolean connects(LatLng a, LatLng b, double tolerance) {
+
+        boolean[] nearA = new boolean[component.length];
+        boolean found = false;
+
+        double toleranceSq = tolerance * tolerance;
+        double ax = projection.x(a.longitude), ay = projection.y(a.latitude);
+        double bx = projection.x(b.longitude), by = projection.y(b.latitude);
+
+        for (int s = 0; s < x1.length; s++) {
+            if (LocalProjection.distanceSq(ax, ay, x1[s], y1[s], x2[s], y2[s]) <= toleranceSq) {
+                nearA[component[chainNode[chainOffset[s]]]] = true;
+                found = true;
+            }
+        }
+
+        if (!found) {
+            return false;
+        }
+
+        for (int s = 0; s < x1.length; s++) {
+            if (nearA[component[chainNode[chainOffset[s]]]]
+                    && LocalProjection.distanceSq(bx, by, x1[s], y1[s], x2[s], y2[s]) <= toleranceSq) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return Flat frame the maze was projected into
+     */
+    public LocalProjection getProjection() {
+        return projection;
+    }
+
+    /**
+     * @return Number of nodes
+     */
+    public int nodeCount() {
+        return nodeX.length;
+    }
+
+    /**
+     * @return Number of edges
+     */
+    public int edgeCount() {
+        return adjacency.length / 2;
+    }
+
+    /**
+     * @return Number of distinct nodes next to a node, not counting itself
+     */
+    int degree(int node) {
+        int count = 0;
+        for (int i = offsets[node]; i < offsets[node + 1]; i++) {
+            int other = adjacency[i];
+            boolean seen = other == node;
+            for (int j = offsets[node]; j < i && !seen; j++) {
+                seen = adjacency[j] == other;
+            }
+            if (!seen) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of segments
+     */
+    public int segmentCount() {
+        return x1.length;
+    }
+
+    /**
+     * @return Number of crossings and bridges between segments
+     */
+    public int junctionCount() {
+        return junctions;
+    }
+
+    /**
+     * Finds every pair of segments within tolerance and joins them
+     *
+     * @return Number of joins made
+     */
+    private int sweep(Builder builder, int[] nodeA, int[] nodeB, int[] lineOf, double[] arcStart,
+                      double tolerance) {
+
+        final int n = x1.length;
+
+        final double[] minX = new double[n], maxX = new double[n], minY = new double[n], maxY = new double[n];
+        double maxHeight = 0;
+
+        for (int s = 0; s < n; s++) {
+            minX[s] = Math.min(x1[s], x2[s]);
+            maxX[s] = Math.max(x1[s], x2[s]);
+            minY[s] = Math.min(y1[s], y2[s]);
+            maxY[s] = Math.max(y1[s], y2[s]);
+            maxHeight = Math.max(maxHeight, maxY[s] - minY[s]);
+        }
+
+        int[] byLeft = sortedBy(minX);
+        int[] byRight = sortedBy(maxX);
+        int leaving = 0;
+
+        // segments the sweep line is crossing, ordered by lowest y then id
+        int[] active = new int[n];
+        int activeCount = 0;
+
+        double toleranceSq = tolerance * tolerance;
+        int joined = 0;
+
+        for (int s : byLeft) {
+
+            // segments ending before this one starts, minus the tolerance, can't reach it
+            while (leaving < n && maxX[byRight[leaving]] < minX[s] - tolerance) {
+                int gone = byRight[leaving++];
+                int at = search(active, activeCount, minY, minY[gone], gone);
+                if (at < activeCount && active[at] == gone) {
+                    System.arraycopy(active, at + 1, active, at, --activeCount - at);
+                }
+            }
+
+            double top = maxY[s] + tolerance;
+
+            for (int i = search(active, activeCount, minY, minY[s] - tolerance - maxHeight, -1); i < activeCount; i++) {
+
+                int other = active[i];
+                if (minY[other] > top) {
+                    break;
+                }
+
+                if (maxY[other] < minY[s] - tolerance) {
+                    continue;
+                }
+
+                // consecutive segments of a line already share a node
+                if (nodeA[s] == nodeB[other] || nodeB[s] == nodeA[other]
+                        || nodeA[s] == nodeA[other] || nodeB[s] == nodeB[other]) {
+                    continue;
+                }
+
+                propose(builder, other, s, lineOf, arcStart, tolerance);
+            }
+
+            int at = search(active, activeCount, minY, minY[s], s);
+            System.arraycopy(active, at, active, at + 1, activeCount++ - at);
+            active[at] = s;
+        }
+
+        return link(builder, nodeA, nodeB, lineOf, arcStart, tolerance);
+    }
+
+    /**
+     * Binary search in the ids ordered by (key, id)
+     *
+     * @return Position of the first id not before (key, id)
+     */
+    private static int search(int[] ids, int count, double[] keys, double key, int id) {
+
+        int low = 0, high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int other = ids[middle];
+            if (keys[other] < key || (keys[other] == key && other < id)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Records the join of two segments if they cross or are within tolerance, unless they are
+     * parts of one line already close along it
+     */
+    private void propose(Builder builder, int a, int b, int[] lineOf, double[] arcStart, double tolerance) {
+
+        double dax = x2[a] - x1[a], day = y2[a] - y1[a];
+        double dbx = x2[b] - x1[b], dby = y2[b] - y1[b];
+
+        double denominator = dax * dby - day * dbx;
+        if (denominator != 0) {
+            double ex = x1[b] - x1[a], ey = y1[b] - y1[a];
+            double ta = (ex * dby - ey * dbx) / denominator;
+            double tb = (ex * day - ey * dax) / denominator;
+
+            if (ta >= 0 && ta <= 1 && tb >= 0 && tb <= 1) {
+                if (alongLine(a, ta, b, tb, lineOf, arcStart) > SAME_LINE_FACTOR * tolerance) {
+                    builder.addJoin(a, ta, b, tb, 0);
+                }
+                return;
+            }
+        }
+
+        // closest pair of points, one of them is always an endpoint
+        double best = Double.MAX_VALUE;
+        double bestTa = 0, bestTb = 0;
+
+        for (int end = 0; end < 4; end++) {
+            boolean onA = end < 2;
+            int from = onA ? b : a;
+            int to = onA ? a : b;
+            double px = (end % 2 == 0) ? x1[from] : x2[from];
+            double py = (end % 2 == 0) ? y1[from] : y2[from];
+
+            double t = project(to, px, py);
+            double cx = x1[to] + t * (x2[to] - x1[to]) - px;
+            double cy = y1[to] + t * (y2[to] - y1[to]) - py;
+            double distanceSq = cx * cx + cy * cy;
+
+            if (distanceSq < best) {
+                best = distanceSq;
+                bestTa = onA ? t : end % 2;
+                bestTb = onA ? end % 2 : t;
+            }
+        }
+
+        if (best <= tolerance * tolerance
+                && alongLine(a, bestTa, b, bestTb, lineOf, arcStart) > SAME_LINE_FACTOR * tolerance) {
+            builder.addJoin(a, bestTa, b, bestTb, Math.sqrt(best));
+        }
+    }
+
+    /**
+     * Makes the recorded joins, closest first, unless both ends of one are within
+     * {@link #SAME_LINE_FACTOR} tolerances along their lines of a join already made between the
+     * same two lines. Segments that cross or touch go through a shared node, the others are
+     * split at their closest points and bridged
+     *
+     * @return Number of joins made
+     */
+    private int link(Builder builder, int[] nodeA, int[] nodeB, int[] lineOf, double[] arcStart, double tolerance) {
+
+        double reach = SAME_LINE_FACTOR * tolerance;
+
+        // positions along the lines of the joins made, by pair of lines, lowest line id first
+        Map<Long, List<double[]>> made = new HashMap<>();
+        int joined = 0;
+
+        for (int j : sortedBy(Arrays.copyOf(builder.joinDistance, builder.joins))) {
+
+            int a = builder.joinA[j], b = builder.joinB[j];
+            double ta = builder.joinTa[j], tb = builder.joinTb[j];
+
+            boolean ordered = lineOf[a] <= lineOf[b];
+            double atLow = arcAt(ordered ? a : b, ordered ? ta : tb, arcStart);
+            double atHigh = arcAt(ordered ? b : a, ordered ? tb : ta, arcStart);
+
+            Long pair = ((long) Math.min(lineOf[a], lineOf[b]) << 32) | Math.max(lineOf[a], lineOf[b]);
+            List<double[]> joins = made.get(pair);
+            if (joins == null) {
+                joins = new ArrayList<>();
+                made.put(pair, joins);
+            }
+
+            boolean near = false;
+            for (double[] join : joins) {
+                if (Math.abs(join[0] - atLow) <= reach && Math.abs(join[1] - atHigh) <= reach) {
+                    near = true;
+                    break;
+                }
+            }
+            if (near) {
+                continue;
+            }
+            joins.add(new double[]{atLow, atHigh});
+            joined++;
+
+            if (builder.joinDistance[j] == 0) {
+                int node = nodeAt(builder, a, ta, nodeA, nodeB, -1);
+                nodeAt(builder, b, tb, nodeA, nodeB, node);
+            } else {
+                int from = nodeAt(builder, a, ta, nodeA, nodeB, -1);
+                int to = nodeAt(builder, b, tb, nodeA, nodeB, -1);
+                if (from != to) {
+                    builder.addEdge(from, to, builder.joinDistance[j]);
+                }
+            }
+        }
+
+        return joined;
+    }
+
+    /**
+     * @return Distance along their line between a point of segment a and one of segment b,
+     * infinite if they are on different lines
+     */
+    private double alongLine(int a, double ta, int b, double tb, int[] lineOf, double[] arcStart) {
+        if (lineOf[a] != lineOf[b]) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Math.abs(arcAt(a, ta, arcStart) - arcAt(b, tb, arcStart));
+    }
+
+    /**
+     * @return Distance along its line from the line start to a point of segment s
+     */
+    private double arcAt(int s, double t, double[] arcStart) {
+        return arcStart[s] + t * Math.hypot(x2[s] - x1[s], y2[s] - y1[s]);
+    }
+
+    /**
+     * Finds or adds the node of a segment at a position along it
+     *
+     * @param node Node to put there, -1 to create one
+     */
+    private int nodeAt(Builder builder, int s, double t, int[] nodeA, int[] nodeB, int node) {
+
+        int end = t <= END_EPSILON ? nodeA[s] : (t >= 1 - END_EPSILON ? nodeB[s] : -1);
+
+        if (end >= 0) {
+            if (node >= 0 && node != end) {
+                builder.addEdge(node, end, 0);
+            }
+            return end;
+        }
+
+        if (node < 0) {
+            node = builder.addNode(x1[s] + t * (x2[s] - x1[s]), y1[s] + t * (y2[s] - y1[s]));
+        }
+        builder.addSplit(s, t, node);
+        return node;
+    }
+
+    /**
+     * @return Position, from 0 to 1, of the point of segment s closest to p
+     */
+    private double project(int s, double px, double py) {
+
+        double dx = x2[s] - x1[s], dy = y2[s] - y1[s];
+        double lengthSq = dx * dx + dy * dy;
+        if (lengthSq == 0) {
+            return 0;
+        }
+        return Math.max(0, Math.min(1, ((px - x1[s]) * dx + (py - y1[s]) * dy) / lengthSq));
+    }
+
+    /**
+     * @return Indexes of the keys, in increasing key order
+     */
+    private static int[] sortedBy(double[] keys) {
+
+        // sort (key, index) pairs packed in longs, keys mapped to longs that keep their order
+        long[] packed = new long[keys.length];
+        int[] order = new int[keys.length];
+
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        for (double key : keys) {
+            min = Math.min(min, key);
+            max = Math.max(max, key);
+        }
+
+        // 2^31 buckets over the key range, ties are broken by index and fixed below
+        double scale = max > min ? ((1L << 31) - 1) / (max - min) : 0;
+        for (int i = 0; i < keys.length; i++) {
+            packed[i] = ((long) ((keys[i] - min) * scale) << 32) | i;
+        }
+        Arrays.sort(packed);
+
+        for (int i = 0; i < keys.length; i++) {
+            order[i] = (int) packed[i];
+        }
+
+        // keys closer than a bucket may be out of order
+        for (int i = 1; i < order.length; i++) {
+            int current = order[i];
+            int j = i - 1;
+            while (j >= 0 && keys[order[j]] > keys[current]) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = current;
+        }
+
+        return order;
+    }
+
+    private static int segments(List<LatLng> line) {
+        return line.size() == 1 ? 1 : Math.max(line.size() - 1, 0);
+    }
+
+    /**
+     * Growable arrays used while the graph is built
+     */
+    private static class Builder {
+
+        double[] x, y;
+        int[] parent;
+        int nodes = 0;
+
+        int[] edgeFrom = new int[64], edgeTo = new int[64];
+        double[] edgeLength = new double[64];
+        int edges = 0;
+
+        int[] splitSegment = new int[16], splitNode = new int[16];
+        double[] splitT = new double[16];
+        int splits = 0;
+
+        /** Joins found by the sweep, made once it is over */
+        int[] joinA = new int[16], joinB = new int[16];
+        double[] joinTa = new double[16], joinTb = new double[16], joinDistance = new double[16];
+        int joins = 0;
+
+        Builder(int capacity) {
+            x = new double[Math.max(capacity, 16)];
+            y = new double[x.length];
+            parent = new int[x.length];
+        }
+
+        int addNode(double px, double py) {
+            if (nodes == x.length) {
+                x = Arrays.copyOf(x, nodes * 2);
+                y = Arrays.copyOf(y, nodes * 2);
+                parent = Arrays.copyOf(parent, nodes * 2);
+            }
+            x[nodes] = px;
+            y[nodes] = py;
+            parent[nodes] = nodes;
+            return nodes++;
+        }
+
+        void addEdge(int a, int b, double length) {
+            if (edges == edgeFrom.length) {
+                edgeFrom = Arrays.copyOf(edgeFrom, edges * 2);
+                edgeTo = Arrays.copyOf(edgeTo, edges * 2);
+                edgeLength = Arrays.copyOf(edgeLength, edges * 2);
+            }
+            edgeFrom[edges] = a;
+            edgeTo[edges] = b;
+            edgeLength[edges++] = length;
+
+            parent[find(a)] = find(b);
+        }
+
+        void addSplit(int s, double t, int node) {
+            if (splits == splitSegment.length) {
+                splitSegment = Arrays.copyOf(splitSegment, splits * 2);
+                splitNode = Arrays.copyOf(splitNode, splits * 2);
+                splitT = Arrays.copyOf(splitT, splits * 2);
+            }
+            splitSegment[splits] = s;
+            splitNode[splits] = node;
+            splitT[splits++] = t;
+        }
+
+        void addJoin(int a, double ta, int b, double tb, double distance) {
+            if (joins == joinA.length) {
+                joinA = Arrays.copyOf(joinA, joins * 2);
+                joinB = Arrays.copyOf(joinB, joins * 2);
+                joinTa = Arrays.copyOf(joinTa, joins * 2);
+                joinTb = Arrays.copyOf(joinTb, joins * 2);
+                joinDistance = Arrays.copyOf(joinDistance, joins * 2);
+            }
+            joinA[joins] = a;
+            joinTa[joins] = ta;
+            joinB[joins] = b;
+            joinTb[joins] = tb;
+            joinDistance[joins++] = distance;
+        }
+
+        int find(int node) {
+            while (parent[node] != node) {
+                parent[node] = parent[parent[node]];
+                node = parent[node];
+            }
+            return node;
+        }
+    }
+}
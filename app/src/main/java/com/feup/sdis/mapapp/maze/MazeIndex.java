@@ -0,0 +1,223 @@
+package com.feup.sdis.mapapp.maze;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uniform grid of the segments of a maze, built once when the maze is loaded.
+ *
+ * Segments are projected once into the {@link LocalProjection} of the maze and bucketed by the
+ * grid cells their bounding box covers. A tolerance query only looks at the cells around the
+ * point, so its cost depends on the local segment density instead of the maze size, and no
+ * polyline points are read back from the map
+ */
+public class MazeIndex {
+
+    /** Max cells along each axis, keeps huge mazes from using tiny cells */
+    private static final int MAX_CELLS_PER_AXIS = 1024;
+
+    /** Flat frame of the maze */
+    private final LocalProjection projection;
+
+    /** Segment endpoints, in meters */
+    private final double[] x1, y1, x2, y2;
+
+    /** Side of a grid cell, in meters */
+    private final double cellSize;
+
+    /** Segment ids by cell key */
+    private final Map<Long, int[]> cells = new HashMap<>();
+
+    /** Query stamp of each segment, so a segment in several cells is only tested once */
+    private final int[] visited;
+
+    /** Current query stamp */
+    private int stamp = 0;
+
+    /**
+     * Builds the index
+     *
+     * @param lines    Maze lines, each a list of points
+     * @param cellSize Preferred side of a grid cell in meters, usually the query tolerance
+     */
+    public MazeIndex(List<List<LatLng>> lines, double cellSize) {
+
+        projection = LocalProjection.around(lines);
+
+        int count = 0;
+        for (List<LatLng> line : lines) {
+            count += segments(line);
+        }
+
+        x1 = new double[count];
+        y1 = new double[count];
+        x2 = new double[count];
+        y2 = new double[count];
+        visited = new int[count];
+
+        double extent = 0;
+        for (List<LatLng> line : lines) {
+            for (LatLng point : line) {
+                extent = Math.max(extent, Math.abs(projection.x(point.longitude)));
+                extent = Math.max(extent, Math.abs(projection.y(point.latitude)));
+            }
+        }
+        this.cellSize = Math.max(cellSize, 2 * extent / MAX_CELLS_PER_AXIS);
+
+        Map<Long, List<Integer>> buckets = new HashMap<>();
+
+        int id = 0;
+        for (List<LatLng> line : lines) {
+            for (int i = 0; i < segments(line); i++, id++) {
+
+                // a single point line is a zero length segment
+                LatLng a = line.get(i);
+                LatLng b = line.get(Math.min(i + 1, line.size() - 1));
+
+                x1[id] = projection.x(a.longitude);
+                y1[id] = projection.y(a.latitude);
+                x2[id] = projection.x(b.longitude);
+                y2[id] = projection.y(b.latitude);
+
+                int minX = cell(Math.min(x1[id], x2[id]));
+                int maxX = cell(Math.max(x1[id], x2[id]));
+                int minY = cell(Math.min(y1[id], y2[id]));
+                int maxY = cell(Math.max(y1[id], y2[id]));
+
+                for (int x = minX; x <= maxX; x++) {
+                    for (int y = minY; y <= maxY; y++) {
+                        Long key = key(x, y);
+                        List<Integer> bucket = buckets.get(key);
+                        if (bucket == null) {
+                            bucket = new ArrayList<>(4);
+                            buckets.put(key, bucket);
+                        }
+                        bucket.add(id);
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<Long, List<Integer>> entry : buckets.entrySet()) {
+            List<Integer> bucket = entry.getValue();
+            int[] ids = new int[bucket.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = bucket.get(i);
+            }
+            cells.put(entry.getKey(), ids);
+        }
+    }
+
+    /**
+     * @return Flat frame the maze was projected into
+     */
+    public LocalProjection getProjection() {
+        return projection;
+    }
+
+    /**
+     * Computes whether the given point lies on or near the maze, within a tolerance in meters
+     *
+     * @param point     Point to test
+     * @param tolerance Max distance (in meters) point can be of maze
+     */
+    public boolean isLocationOnMaze(LatLng point, double tolerance) {
+        return nearestSegment(projection.x(point.longitude), projection.y(point.latitude), tolerance, true) >= 0;
+    }
+
+    /**
+     * Distance from a point to the maze, if it is within a tolerance
+     *
+     * @param point     Point to test
+     * @param tolerance Max distance (in meters) looked at
+     * @return Distance in meters to the closest segment, infinite if none is within tolerance
+     */
+    public double distance(LatLng point, double tolerance) {
+
+        double px = projection.x(point.longitude), py = projection.y(point.latitude);
+
+        int id = nearestSegment(px, py, tolerance, false);
+        if (id < 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        return Math.sqrt(LocalProjection.distanceSq(px, py, x1[id], y1[id], x2[id], y2[id]));
+    }
+
+    /**
+     * Finds the segment closest to a point, among those within a tolerance
+     *
+     * @param px        Point meters east of the projection origin
+     * @param py        Point meters north of the projection origin
+     * @param tolerance Max distance (in meters) of the segment
+     * @param any       If true, returns the first segment found within tolerance, not the closest
+     * @return Segment id, -1 if no segment is within tolerance
+     */
+    public int nearestSegment(double px, double py, double tolerance, boolean any) {
+
+        if (++stamp == Integer.MAX_VALUE) {
+            stamp = 1;
+            Arrays.fill(visited, 0);
+        }
+
+        int minX = cell(px - tolerance);
+        int maxX = cell(px + tolerance);
+        int minY = cell(py - tolerance);
+        int maxY = cell(py + tolerance);
+
+        double best = tolerance * tolerance;
+        int bestId = -1;
+
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+
+                int[] ids = cells.get(key(x, y));
+                if (ids == null) {
+                    continue;
+                }
+
+                for (int id : ids) {
+                    if (visited[id] == stamp) {
+                        continue;
+                    }
+                    visited[id] = stamp;
+
+                    double distanceSq = LocalProjection.distanceSq(px, py, x1[id], y1[id], x2[id], y2[id]);
+                    if (distanceSq <= best) {
+                        if (any) {
+                            return id;
+                        }
+                        best = distanceSq;
+                        bestId = id;
+                    }
+                }
+            }
+        }
+
+        return bestId;
+    }
+
+    /**
+     * @return Number of segments in the index
+     */
+    public int segmentCount() {
+        return visited.length;
+    }
+
+    private static int segments(List<LatLng> line) {
+        return line.size() == 1 ? 1 : Math.max(line.size() - 1, 0);
+    }
+
+    private int cell(double meters) {
+        return (int) Math.floor(meters / cellSize);
+    }
+
+    private static Long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+}
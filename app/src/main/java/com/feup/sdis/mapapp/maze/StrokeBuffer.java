@@ -0,0 +1,186 @@
+package com.feup.sdis.mapapp.maze;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Points of a line being drawn, simplified as they arrive.
+ *
+ * A sample closer than the radial tolerance to the last kept point is dropped. Once the
+ * unsimplified tail of the stroke reaches {@link #TAIL_WINDOW} points it goes through
+ * Douglas-Peucker, and everything but its last point is frozen, so each sample costs a bounded
+ * amount of work no matter how long the stroke is. Distances are computed in a
+ * {@link LocalProjection} anchored at the first point
+ */
+public class StrokeBuffer {
+
+    /** Points in the tail before it is simplified */
+    private static final int TAIL_WINDOW = 16;
+
+    /** Samples closer than this (in meters) to the last kept point are dropped */
+    private final double radialTolerance;
+
+    /** Max distance (in meters) a dropped point can be of the simplified line */
+    private final double simplifyTolerance;
+
+    /** Flat frame of the stroke */
+    private final LocalProjection projection;
+
+    /** Kept points, handed to the polyline as is */
+    private final ArrayList<LatLng> points = new ArrayList<>();
+
+    /** Kept points in the flat frame, in meters */
+    private double[] xs = new double[64], ys = new double[64];
+
+    /** Index of the first point not yet frozen */
+    private int tailStart = 0;
+
+    /** Samples given to {@link #add}, for stats */
+    private int samples = 0;
+
+    /**
+     * @param start             First point of the stroke
+     * @param radialTolerance   Samples closer than this (in meters) to the last point are dropped
+     * @param simplifyTolerance Max distance (in meters) a dropped point can be of the line
+     */
+    public StrokeBuffer(LatLng start, double radialTolerance, double simplifyTolerance) {
+        this.radialTolerance = radialTolerance;
+        this.simplifyTolerance = simplifyTolerance;
+        this.projection = new LocalProjection(start.latitude, start.longitude);
+        append(start);
+        samples = 1;
+    }
+
+    /**
+     * Adds a sample to the end of the stroke
+     *
+     * @return True if the kept points changed
+     */
+    public boolean add(LatLng point) {
+
+        samples++;
+
+        int last = points.size() - 1;
+        double dx = projection.x(point.longitude) - xs[last];
+        double dy = projection.y(point.latitude) - ys[last];
+
+        if (dx * dx + dy * dy < radialTolerance * radialTolerance) {
+            return false;
+        }
+
+        append(point);
+
+        if (points.size() - tailStart >= TAIL_WINDOW) {
+            simplifyTail();
+            tailStart = points.size() - 1;
+        }
+
+        return true;
+    }
+
+    /**
+     * Simplifies whatever is left of the tail, when the stroke ends
+     */
+    public void finish() {
+        simplifyTail();
+        tailStart = points.size() - 1;
+    }
+
+    /**
+     * @return Kept points. The list is owned by the buffer and changes with it
+     */
+    public List<LatLng> getPoints() {
+        return points;
+    }
+
+    /**
+     * @return Samples given to the buffer, including the first point
+     */
+    public int sampleCount() {
+        return samples;
+    }
+
+    /**
+     * @return Points kept so far
+     */
+    public int pointCount() {
+        return points.size();
+    }
+
+    private void append(LatLng point) {
+
+        int size = points.size();
+        if (size == xs.length) {
+            xs = Arrays.copyOf(xs, size * 2);
+            ys = Arrays.copyOf(ys, size * 2);
+        }
+
+        xs[size] = projection.x(point.longitude);
+        ys[size] = projection.y(point.latitude);
+        points.add(point);
+    }
+
+    /**
+     * Runs Douglas-Peucker over the points from {@link #tailStart} to the end
+     */
+    private void simplifyTail() {
+
+        int first = tailStart;
+        int last = points.size() - 1;
+        if (last - first < 2) {
+            return;
+        }
+
+        boolean[] keep = new boolean[last - first + 1];
+        keep[0] = true;
+        keep[keep.length - 1] = true;
+
+        double toleranceSq = simplifyTolerance * simplifyTolerance;
+
+        // ranges still to split, as pairs of indexes
+        int[] stack = new int[2 * keep.length];
+        int top = 0;
+        stack[top++] = first;
+        stack[top++] = last;
+
+        while (top > 0) {
+            int to = stack[--top];
+            int from = stack[--top];
+
+            double farthest = toleranceSq;
+            int split = -1;
+
+            for (int i = from + 1; i < to; i++) {
+                double distanceSq = LocalProjection.distanceSq(xs[i], ys[i], xs[from], ys[from], xs[to], ys[to]);
+                if (distanceSq > farthest) {
+                    farthest = distanceSq;
+                    split = i;
+                }
+            }
+
+            if (split >= 0) {
+                keep[split - first] = true;
+                stack[top++] = from;
+                stack[top++] = split;
+                stack[top++] = split;
+                stack[top++] = to;
+            }
+        }
+
+        // compact the kept points in place
+        int write = first;
+        for (int read = first; read <= last; read++) {
+            if (keep[read - first]) {
+                points.set(write, points.get(read));
+                xs[write] = xs[read];
+                ys[write] = ys[read];
+                write++;
+            }
+        }
+
+        points.subList(write, last + 1).clear();
+    }
+}
@@ -0,0 +1,171 @@
+package com.feup.sdis.mapapp.location;
+
+import com.feup.sdis.mapapp.maze.DistanceField;
+import com.feup.sdis.mapapp.maze.LocalProjection;
+import com.feup.sdis.mapapp.maze.MazeGraph;
+import com.feup.sdis.mapapp.maze.MazeIndex;
+import com.google.android.gms.maps.model.LatLng;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the scheduler with simulated location feeds
+ */
+public class LocationSchedulerTest {
+
+    /** Accuracy of the simulated fixes, in meters */
+    private static final double ACCURACY = 5;
+
+    /**
+     * Player walking east along a corridor, sampled at the interval the scheduler asks for
+     */
+    private static class Feed {
+
+        final LocationScheduler scheduler = new LocationScheduler();
+
+        long time = 0;
+        double x = 0;
+        double toDecision, toExit;
+
+        Feed(double toDecision, double toExit) {
+            this.toDecision = toDecision;
+            this.toExit = toExit;
+        }
+
+        /**
+         * @return True if the last fix changed the request
+         */
+        boolean walk(double speed, int fixes) {
+            boolean changed = false;
+            for (int i = 0; i < fixes; i++) {
+                changed = scheduler.onFix(time, x, 0, ACCURACY, toDecision, toExit);
+                long interval = scheduler.getInterval();
+                double moved = speed * interval / 1000;
+                time += interval;
+                x += moved;
+                toDecision -= moved;
+                toExit -= moved;
+            }
+            return changed;
+        }
+
+        /**
+         * Stays in place, jittering within the accuracy circle
+         */
+        void stand(int fixes) {
+            for (int i = 0; i < fixes; i++) {
+                scheduler.onFix(time, x + (i % 2) * 3, (i % 3) * 2, ACCURACY, toDecision, toExit);
+                time += scheduler.getInterval();
+            }
+        }
+    }
+
+    @Test
+    public void standingStill_slowsDown() throws Exception {
+        Feed feed = new Feed(200, 500);
+        feed.stand(20);
+
+        assertEquals(LocationScheduler.IDLE_INTERVAL, feed.scheduler.getInterval());
+        assertEquals(LocationScheduler.PRIORITY_HIGH_ACCURACY, feed.scheduler.getPriority());
+    }
+
+    @Test
+    public void walkingOffWithCoarseFixes_leavesIdle() throws Exception {
+        Feed feed = new Feed(200, 500);
+        feed.stand(20);
+        assertEquals(LocationScheduler.IDLE_INTERVAL, feed.scheduler.getInterval());
+
+        // 21 m in one idle interval, reported with a 50 m accuracy circle
+        feed.x += 1.4 * LocationScheduler.IDLE_INTERVAL / 1000;
+        assertTrue(feed.scheduler.onFix(feed.time, feed.x, 0, 50, feed.toDecision, feed.toExit));
+        assertTrue(feed.scheduler.getInterval() < LocationScheduler.IDLE_INTERVAL);
+        assertEquals(LocationScheduler.PRIORITY_HIGH_ACCURACY, feed.scheduler.getPriority());
+    }
+
+    @Test
+    public void walkingTowardsJunction_speedsUp() throws Exception {
+        Feed feed = new Feed(200, 500);
+
+        // far from anything, walking at 1.4 m/s
+        feed.walk(1.4, 5);
+        assertEquals(LocationScheduler.PRIORITY_HIGH_ACCURACY, feed.scheduler.getPriority());
+        assertTrue(feed.scheduler.getInterval() > LocationScheduler.DEFAULT_INTERVAL);
+
+        // same walk, a junction 8 meters ahead
+        feed.toDecision = 8;
+        feed.walk(1.4, 1);
+        assertEquals(LocationScheduler.MIN_INTERVAL, feed.scheduler.getInterval());
+    }
+
+    @Test
+    public void runningIsSampledMoreOften() throws Exception {
+        Feed walking = new Feed(60, 500);
+        Feed running = new Feed(60, 500);
+
+        walking.walk(1.2, 3);
+        running.walk(3.5, 3);
+
+        assertTrue(running.scheduler.getInterval() < walking.scheduler.getInterval());
+    }
+
+    @Test
+    public void nearExit_isFastEvenWhenStill() throws Exception {
+        Feed feed = new Feed(200, 20);
+        feed.stand(20);
+
+        assertEquals(LocationScheduler.MIN_INTERVAL, feed.scheduler.getInterval());
+        assertEquals(LocationScheduler.PRIORITY_HIGH_ACCURACY, feed.scheduler.getPriority());
+    }
+
+    @Test
+    public void smallChanges_keepTheRequest() throws Exception {
+        Feed feed = new Feed(400, 1000);
+
+        feed.walk(1.4, 5);
+        long interval = feed.scheduler.getInterval();
+
+        // a bit faster, the interval would change by less than the threshold
+        assertFalse(feed.walk(1.5, 1));
+        assertEquals(interval, feed.scheduler.getInterval());
+    }
+
+    @Test
+    public void drawnCorridor_slowsDownBetweenJunctions() throws Exception {
+
+        // a 200 m corridor drawn every 1.5 m, from a dead end to a crossing
+        final double tolerance = 3.5;
+        LocalProjection frame = new LocalProjection(41.1777, -8.5979);
+        List<LatLng> corridor = new ArrayList<>();
+        for (int i = 0; i <= 133; i++) {
+            corridor.add(new LatLng(frame.lat(0), frame.lng(1.5 * i)));
+        }
+        List<LatLng> crossing = Arrays.asList(
+                new LatLng(frame.lat(-20), frame.lng(200)), new LatLng(frame.lat(20), frame.lng(200)));
+        List<List<LatLng>> lines = Arrays.asList(corridor, crossing);
+
+        MazeIndex index = new MazeIndex(lines, tolerance);
+        DistanceField junctions = DistanceField.toJunctions(new MazeGraph(lines, tolerance));
+
+        LocationScheduler scheduler = new LocationScheduler();
+        long time = 0, slowest = 0;
+        double x = 0;
+
+        while (x < 196) {
+            LatLng position = new LatLng(frame.lat(0), frame.lng(x));
+            scheduler.onFix(time, x, 0, ACCURACY, junctions.remaining(position, index, tolerance), 500);
+            if (x > 60 && x < 140) slowest = Math.max(slowest, scheduler.getInterval());
+            time += scheduler.getInterval();
+            x += 1.4 * scheduler.getInterval() / 1000;
+        }
+
+        // halfway along nothing is near, at the crossing fixes come as fast as they can
+        assertEquals(LocationScheduler.MAX_INTERVAL, slowest);
+        assertEquals(LocationScheduler.MIN_INTERVAL, scheduler.getInterval());
+    }
+}
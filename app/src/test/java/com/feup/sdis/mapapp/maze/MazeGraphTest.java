@@ -0,0 +1,139 @@
+package com.feup.sdis.mapapp.maze;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Builds graphs of small mazes laid out in meters around a fixed origin
+ */
+public class MazeGraphTest {
+
+    /** Join tolerance of the player activity, in meters */
+    private static final double TOLERANCE = 3.5;
+
+    private static final LocalProjection FRAME = new LocalProjection(41.1777, -8.5979);
+
+    private static LatLng at(double x, double y) {
+        return new LatLng(FRAME.lat(y), FRAME.lng(x));
+    }
+
+    private static List<LatLng> line(double... xy) {
+        List<LatLng> line = new ArrayList<>();
+        for (int i = 0; i < xy.length; i += 2) {
+            line.add(at(xy[i], xy[i + 1]));
+        }
+        return line;
+    }
+
+    /**
+     * @return Nodes with more than two distinct neighbours
+     */
+    private static int branchingNodes(MazeGraph graph) {
+        int count = 0;
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            if (graph.offsets[node + 1] - graph.offsets[node] > 2) count++;
+        }
+        return count;
+    }
+
+    private static void assertNoParallelEdges(MazeGraph graph) {
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            for (int i = graph.offsets[node]; i < graph.offsets[node + 1]; i++) {
+                assertTrue(graph.adjacency[i] != node);
+                for (int j = i + 1; j < graph.offsets[node + 1]; j++) {
+                    assertTrue(graph.adjacency[i] != graph.adjacency[j]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void crossingLines_shareOneNode() throws Exception {
+        MazeGraph graph = new MazeGraph(Arrays.asList(line(-20, 0, 20, 0), line(0, -20, 0, 20)), TOLERANCE);
+
+        assertEquals(1, graph.junctionCount());
+        assertEquals(5, graph.nodeCount());
+        assertEquals(4, graph.edgeCount());
+        assertEquals(1, branchingNodes(graph));
+        assertNoParallelEdges(graph);
+        assertTrue(graph.connects(at(-20, 0), at(0, 20), 1));
+    }
+
+    @Test
+    public void nearTouchingEnds_areBridged() throws Exception {
+        // a corridor stopping 2 m short of a wall
+        MazeGraph graph = new MazeGraph(Arrays.asList(line(-20, 0, 20, 0), line(0, 2, 0, 30)), TOLERANCE);
+
+        assertEquals(1, graph.junctionCount());
+        assertEquals(1, branchingNodes(graph));
+        assertNoParallelEdges(graph);
+        assertTrue(graph.connects(at(-20, 0), at(0, 30), 1));
+
+        // further than the tolerance it stays apart
+        MazeGraph apart = new MazeGraph(Arrays.asList(line(-20, 0, 20, 0), line(0, 5, 0, 30)), TOLERANCE);
+
+        assertEquals(0, apart.junctionCount());
+        assertFalse(apart.connects(at(-20, 0), at(0, 30), 1));
+    }
+
+    @Test
+    public void endNearAPointOfAnotherLine_isBridgedOnce() throws Exception {
+        // a corridor stopping 1 m away from a wall sampled every 4 m, near one of its points
+        MazeGraph graph = new MazeGraph(Arrays.asList(line(0, -20, 0, -16, 0, -12, 0, -8, 0, -4, 0, 0, 0, 4, 0, 8),
+                line(1, 1, 5, 1, 9, 1, 13, 1)), TOLERANCE);
+
+        assertEquals(1, graph.junctionCount());
+        assertEquals(graph.nodeCount() - 1, graph.edgeCount());
+        assertNoParallelEdges(graph);
+        assertTrue(graph.connects(at(0, -20), at(13, 1), 1));
+    }
+
+    @Test
+    public void straightLine_hasNoJunctions() throws Exception {
+        double[] xy = new double[200];
+        for (int i = 0; i < 100; i++) {
+            xy[2 * i] = 1.5 * i;
+        }
+        MazeGraph graph = new MazeGraph(Arrays.asList(line(xy)), TOLERANCE);
+
+        assertEquals(0, graph.junctionCount());
+        assertEquals(100, graph.nodeCount());
+        assertEquals(99, graph.edgeCount());
+        assertEquals(0, branchingNodes(graph));
+    }
+
+    @Test
+    public void drawnCorner_hasNoJunctions() throws Exception {
+        // finger drawn L, sampled every half meter and simplified as the builder does
+        StrokeBuffer stroke = new StrokeBuffer(at(0, 0), 1, 0.5);
+        for (int i = 1; i <= 80; i++) {
+            stroke.add(at(0.5 * i, 0.3 * Math.sin(i)));
+        }
+        for (int i = 1; i <= 80; i++) {
+            stroke.add(at(40 + 0.3 * Math.sin(i), 0.5 * i));
+        }
+        stroke.finish();
+
+        MazeGraph graph = new MazeGraph(Arrays.asList(stroke.getPoints()), TOLERANCE);
+
+        assertEquals(0, graph.junctionCount());
+        assertEquals(graph.nodeCount() - 1, graph.edgeCount());
+        assertEquals(0, branchingNodes(graph));
+    }
+
+    @Test
+    public void lineFoldedBackOnItself_isJoined() throws Exception {
+        // the two ends of a U meet, far apart along the line
+        MazeGraph graph = new MazeGraph(Arrays.asList(line(0, 0, 30, 0, 30, 20, 0, 20, 0, 2)), TOLERANCE);
+
+        assertEquals(1, graph.junctionCount());
+        assertNoParallelEdges(graph);
+    }
+}
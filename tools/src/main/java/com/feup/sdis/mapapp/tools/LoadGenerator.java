@@ -0,0 +1,702 @@
+package com.feup.sdis.mapapp.tools;
+
+import com.feup.sdis.mapapp.client.GameRequests;
+import com.feup.sdis.mapapp.client.LatencyHistogram;
+import com.feup.sdis.mapapp.client.PlayerTable;
+import com.feup.sdis.mapapp.location.LocationScheduler;
+import com.feup.sdis.mapapp.location.LocationTrace;
+import com.feup.sdis.mapapp.maze.MazeCodec;
+import com.google.android.gms.maps.model.LatLng;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Headless load generator: simulated players that log in, join a game and walk its maze,
+ * over the same requests as the app.
+ *
+ * Every player registers and logs in through "users", fetches the maze of its game from "maps",
+ * joins at the entrance with a "game" POST, then walks one maze line back and forth. Each
+ * {@link LocationScheduler#DEFAULT_INTERVAL} it POSTs its position to "players?exchange=1" and
+ * applies the answer to its own {@link PlayerTable}, falling back to a "players" POST and GET
+ * when the server does not know the exchange, and sending a plain POST when the previous round
+ * trip is still running, like MazePlayerActivity does. Request bodies come from
+ * {@link GameRequests}.
+ *
+ * Players are callback driven state machines on a {@link NioHttpsClient}, one keep-alive socket
+ * each, so a selector thread and a few workers carry hundreds of them. Latency is measured on
+ * the wire, from the first request byte to the last response byte. An error is a transport
+ * failure, a 5xx, or a 4xx other than the 409 of an existing user and the 410 of a stale snapshot
+ */
+public final class LoadGenerator {
+
+    /** Accuracy given to the walked fixes, in meters **/
+    private static final float ACCURACY = 5;
+
+    /** Games page size, as the game list of the app **/
+    private static final int PAGE_SIZE = 25;
+
+    /** Maze form preference, as MapCache **/
+    private static final String ACCEPT = MazeCodec.CONTENT_TYPE + ", application/json;q=0.5";
+
+    public static void main(String[] args) throws Exception {
+
+        Options options = Options.parse(args);
+        if (options == null) {
+            System.err.println(usage());
+            System.exit(2);
+            return;
+        }
+
+        URI uri = new URI(options.url);
+        int port = uri.getPort() < 0 ? 443 : uri.getPort();
+        SSLContext context = Tls.context(Tls.locate(options.keystore), Tls.locate(options.truststore));
+
+        ExecutorService workers = Executors.newFixedThreadPool(options.threads);
+        ScheduledExecutorService clock = Executors.newSingleThreadScheduledExecutor();
+        NioHttpsClient client = new NioHttpsClient(context, uri.getHost(), port, workers, options.timeout);
+
+        LoadGenerator load = new LoadGenerator(options, client, clock);
+        try {
+            load.run();
+        } finally {
+            clock.shutdownNow();
+            client.close();
+            workers.shutdownNow();
+        }
+    }
+
+    static String usage() {
+        return "usage: LoadGenerator [options]\n"
+                + "  --url URL          server address (https://172.30.2.216:8000/)\n"
+                + "  --players N        simulated players (100)\n"
+                + "  --ramp S           seconds over which the players start (10)\n"
+                + "  --duration S       seconds of the whole run, ramp included (60)\n"
+                + "  --interval MS      position update period (" + LocationScheduler.DEFAULT_INTERVAL + ")\n"
+                + "  --speed M          walking speed in m/s (1.4)\n"
+                + "  --threads N        worker threads for TLS tasks and callbacks (4)\n"
+                + "  --timeout MS       request timeout (15000)\n"
+                + "  --report S         seconds between progress lines (10)\n"
+                + "  --game OWNER       join only the game of this owner (every game, round robin)\n"
+                + "  --prefix NAME      username prefix of the players (loadbot)\n"
+                + "  --keystore PATH    BKS keystore (" + Tls.KEYSTORE + ")\n"
+                + "  --truststore PATH  BKS truststore (" + Tls.TRUSTSTORE + ")";
+    }
+
+    static class Options {
+
+        String url = "https://172.30.2.216:8000/";
+        int players = 100;
+        long ramp = 10;
+        long duration = 60;
+        long interval = LocationScheduler.DEFAULT_INTERVAL;
+        double speed = 1.4;
+        int threads = 4;
+        long timeout = 15000;
+        long report = 10;
+        String game = null;
+        String prefix = "loadbot";
+        String keystore = Tls.KEYSTORE;
+        String truststore = Tls.TRUSTSTORE;
+
+        /**
+         * @return The options, null if the arguments are wrong
+         */
+        static Options parse(String[] args) {
+
+            Options options = new Options();
+            try {
+                for (int i = 0; i < args.length; i++) {
+                    switch (args[i]) {
+                        case "--url": options.url = args[++i]; break;
+                        case "--players": options.players = Integer.parseInt(args[++i]); break;
+                        case "--ramp": options.ramp = Long.parseLong(args[++i]); break;
+                        case "--duration": options.duration = Long.parseLong(args[++i]); break;
+                        case "--interval": options.interval = Long.parseLong(args[++i]); break;
+                        case "--speed": options.speed = Double.parseDouble(args[++i]); break;
+                        case "--threads": options.threads = Integer.parseInt(args[++i]); break;
+                        case "--timeout": options.timeout = Long.parseLong(args[++i]); break;
+                        case "--report": options.report = Long.parseLong(args[++i]); break;
+                        case "--game": options.game = args[++i]; break;
+                        case "--prefix": options.prefix = args[++i]; break;
+                        case "--keystore": options.keystore = args[++i]; break;
+                        case "--truststore": options.truststore = args[++i]; break;
+                        default: return null;
+                    }
+                }
+                new URI(options.url);
+            } catch (RuntimeException | URISyntaxException e) {
+                return null;
+            }
+
+            if (options.players <= 0 || options.interval <= 0 || options.threads <= 0 || options.report <= 0) {
+                return null;
+            }
+            return options;
+        }
+    }
+
+    /**
+     * Counters of one endpoint, guarded by the generator
+     */
+    private static class Endpoint {
+
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        final Map<Integer, Long> codes = new TreeMap<>();
+
+        long requests = 0;
+
+        long errors = 0;
+
+        long failures = 0;
+    }
+
+    private final Options options;
+
+    private final NioHttpsClient client;
+
+    private final ScheduledExecutorService clock;
+
+    /** Counters by "METHOD endpoint", for the whole run **/
+    private final Map<String, Endpoint> endpoints = new TreeMap<>();
+
+    /** Counters of every endpoint since the last progress line **/
+    private Endpoint window = new Endpoint();
+
+    /** Players walking, past the login and join **/
+    private final AtomicInteger walking = new AtomicInteger();
+
+    /** Sum of the times the walking players started walking, for the player minutes **/
+    private final AtomicLong walkingSince = new AtomicLong();
+
+    /** Position and players requests sent by the walking players **/
+    private final AtomicLong walkRequests = new AtomicLong();
+
+    /** False once the server answered an exchange without the players list **/
+    private volatile boolean exchangeSupported = true;
+
+    private volatile boolean running = true;
+
+    private long started;
+
+    private LoadGenerator(Options options, NioHttpsClient client, ScheduledExecutorService clock) {
+        this.options = options;
+        this.client = client;
+        this.clock = clock;
+    }
+
+    private void run() throws InterruptedException, IOException, JSONException {
+
+        List<String[]> games = games();
+        if (games.isEmpty()) {
+            throw new IOException("No game to join" + (options.game == null ? "" : " for owner " + options.game));
+        }
+
+        System.out.println("Starting " + options.players + " players on " + games.size() + " games of "
+                + options.url + " over " + options.ramp + " s");
+
+        started = System.nanoTime();
+        for (int i = 0; i < options.players; i++) {
+            String[] game = games.get(i % games.size());
+            final Player player = new Player(options.prefix + "-" + i, game[0], game[1], i);
+            clock.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    player.start();
+                }
+            }, options.ramp * 1000 * i / options.players, TimeUnit.MILLISECONDS);
+        }
+
+        ScheduledFuture<?> reports = clock.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                progress();
+            }
+        }, options.report, options.report, TimeUnit.SECONDS);
+
+        Thread.sleep(options.duration * 1000);
+        running = false;
+        reports.cancel(false);
+
+        System.out.println();
+        System.out.println(summary());
+    }
+
+    /**
+     * Fetches every game page, as the game list does while scrolling
+     *
+     * @return Owner and maze name of the games to join
+     */
+    private List<String[]> games() throws InterruptedException, IOException, JSONException {
+
+        NioHttpsClient.Connection connection = client.connection();
+        List<String[]> games = new ArrayList<>();
+
+        for (int offset = 0; ; offset += PAGE_SIZE) {
+
+            NioHttpsClient.Response response = await(connection, "GET",
+                    "game?offset=" + offset + "&limit=" + PAGE_SIZE, null, null);
+            if (response.code != 200) {
+                throw new IOException("Game list answered " + response.code);
+            }
+
+            JSONObject page = new JSONObject(response.text());
+            JSONArray list = page.getJSONArray("games");
+            for (int i = 0; i < list.length(); i++) {
+                JSONObject game = list.getJSONObject(i);
+                String owner = game.getString("owner");
+                if (options.game == null || options.game.equals(owner)) {
+                    games.add(new String[]{owner, game.getString("mapname")});
+                }
+            }
+
+            if (list.length() < PAGE_SIZE || offset + PAGE_SIZE >= page.optInt("total", 0)) break;
+        }
+
+        connection.close();
+        return games;
+    }
+
+    private static NioHttpsClient.Response await(NioHttpsClient.Connection connection, String method, String path,
+                                                 byte[] body, Map<String, String> headers)
+            throws InterruptedException, IOException {
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final Object[] outcome = new Object[1];
+
+        connection.send(method, path, body, headers, new NioHttpsClient.Callback() {
+            @Override
+            public void onResponse(NioHttpsClient.Response response) {
+                outcome[0] = response;
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(IOException e) {
+                outcome[0] = e;
+                done.countDown();
+            }
+        });
+
+        done.await();
+        if (outcome[0] instanceof IOException) throw (IOException) outcome[0];
+        return (NioHttpsClient.Response) outcome[0];
+    }
+
+    // statistics
+
+    private synchronized void record(String name, NioHttpsClient.Response response, IOException failure) {
+
+        Endpoint endpoint = endpoints.get(name);
+        if (endpoint == null) {
+            endpoint = new Endpoint();
+            endpoints.put(name, endpoint);
+        }
+
+        for (Endpoint counters : new Endpoint[]{endpoint, window}) {
+            counters.requests++;
+            if (response == null) {
+                counters.failures++;
+                counters.errors++;
+                continue;
+            }
+
+            Long count = counters.codes.get(response.code);
+            counters.codes.put(response.code, count == null ? 1 : count + 1);
+            counters.latency.record(response.nanos / 1000);
+
+            if (isError(response.code)) counters.errors++;
+        }
+    }
+
+    private static boolean isError(int code) {
+        return code >= 500 || code >= 400 && code != 409 && code != 410;
+    }
+
+    private synchronized void progress() {
+
+        Endpoint last = window;
+        window = new Endpoint();
+
+        System.out.println(String.format(Locale.US,
+                "%4ds  %d/%d walking  %7.1f req/s  p50 %6.1f ms  p99 %7.1f ms  errors %5.1f%%",
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started), walking.get(), options.players,
+                (double) last.requests / options.report, last.latency.percentile(0.5) / 1000.0,
+                last.latency.percentile(0.99) / 1000.0, percent(last.errors, last.requests)));
+    }
+
+    private synchronized String summary() {
+
+        double seconds = (System.nanoTime() - started) / 1e9;
+        StringBuilder out = new StringBuilder(String.format(Locale.US,
+                "%-26s %9s %8s %8s %8s %8s %8s %7s  %s%n",
+                "endpoint", "requests", "req/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "errors", "codes"));
+
+        Endpoint total = new Endpoint();
+        for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+            Endpoint endpoint = entry.getValue();
+            line(out, entry.getKey(), endpoint, seconds);
+
+            total.requests += endpoint.requests;
+            total.errors += endpoint.errors;
+            total.failures += endpoint.failures;
+        }
+
+        out.append(String.format(Locale.US, "%-26s %9d %8.1f%36s %6.1f%%  transport failures %d%n", "total",
+                total.requests, total.requests / seconds, "", percent(total.errors, total.requests), total.failures));
+        out.append(String.format(Locale.US, "%d of %d players walking after %.0f s%n",
+                walking.get(), options.players, seconds));
+
+        double playerMinutes = (walking.get() * System.nanoTime() - walkingSince.get()) / 60e9;
+        out.append(String.format(Locale.US, "%.1f walking requests per player per minute (%s)",
+                playerMinutes > 0 ? walkRequests.get() / playerMinutes : 0,
+                exchangeSupported ? "exchange" : "POST and GET"));
+
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, Endpoint endpoint, double seconds) {
+
+        StringBuilder codes = new StringBuilder();
+        for (Map.Entry<Integer, Long> code : endpoint.codes.entrySet()) {
+            codes.append(code.getKey()).append('x').append(code.getValue()).append(' ');
+        }
+        if (endpoint.failures > 0) codes.append("failed x").append(endpoint.failures);
+
+        LatencyHistogram latency = endpoint.latency;
+        out.append(String.format(Locale.US, "%-26s %9d %8.1f %8.1f %8.1f %8.1f %8.1f %6.1f%%  %s%n",
+                name, endpoint.requests, endpoint.requests / seconds,
+                latency.percentile(0.5) / 1000.0, latency.percentile(0.9) / 1000.0,
+                latency.percentile(0.99) / 1000.0, latency.getMax() / 1000.0,
+                percent(endpoint.errors, endpoint.requests), codes.toString().trim()));
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0 : 100.0 * part / whole;
+    }
+
+    /**
+     * Request step of a player: records the outcome and hands successful answers on
+     */
+    private abstract class Step implements NioHttpsClient.Callback {
+
+        private final String name;
+
+        Step(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void onResponse(NioHttpsClient.Response response) {
+            record(name, response, null);
+            if (!running) return;
+            try {
+                handle(response);
+            } catch (JSONException | IOException | RuntimeException e) {
+                failed(e);
+            }
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+            record(name, null, e);
+            if (running) failed(e);
+        }
+
+        abstract void handle(NioHttpsClient.Response response) throws JSONException, IOException;
+
+        abstract void failed(Exception e);
+    }
+
+    /**
+     * One simulated player, from registration to walking
+     */
+    private final class Player implements Runnable {
+
+        private final String username;
+
+        private final String owner;
+
+        private final String mapname;
+
+        private final int index;
+
+        private final NioHttpsClient.Connection connection = client.connection();
+
+        private final PlayerTable table = new PlayerTable();
+
+        private String token;
+
+        private List<LocationTrace.Fix> walk;
+
+        private int step = 0;
+
+        private int direction = 1;
+
+        /** True while a position round trip is running **/
+        private volatile boolean busy = false;
+
+        private ScheduledFuture<?> ticks;
+
+        Player(String username, String owner, String mapname, int index) {
+            this.username = username;
+            this.owner = owner;
+            this.mapname = mapname;
+            this.index = index;
+        }
+
+        private void send(String method, String path, String body, Map<String, String> headers, Step step) {
+            try {
+                connection.send(method, path, body == null ? null : body.getBytes("UTF-8"), headers, step);
+            } catch (IOException e) {
+                step.onFailure(e);
+            }
+        }
+
+        /**
+         * Starts over from the registration, after a setup step failed
+         */
+        private void restart() {
+            clock.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    start();
+                }
+            }, options.interval, TimeUnit.MILLISECONDS);
+        }
+
+        /** Setup steps start over on any failure **/
+        private abstract class Setup extends Step {
+
+            Setup(String name) {
+                super(name);
+            }
+
+            @Override
+            void failed(Exception e) {
+                restart();
+            }
+        }
+
+        void start() {
+            if (!running) return;
+            try {
+                send("PUT", "users", GameRequests.user(username, GameRequests.userhash(username)), null,
+                        new Setup("PUT users") {
+                            @Override
+                            void handle(NioHttpsClient.Response response) throws JSONException {
+                                if (response.code == 201 || response.code == 409) {
+                                    login();
+                                } else {
+                                    restart();
+                                }
+                            }
+                        });
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void login() throws JSONException {
+            send("POST", "users", GameRequests.user(username, GameRequests.userhash(username)), null,
+                    new Setup("POST users") {
+                        @Override
+                        void handle(NioHttpsClient.Response response) throws JSONException {
+                            if (response.code != 303) {
+                                restart();
+                                return;
+                            }
+                            token = new JSONObject(response.text()).getString("accesstoken");
+                            fetchMaze();
+                        }
+                    });
+        }
+
+        private void fetchMaze() {
+            send("GET", "maps?name=" + mapname, null, Collections.singletonMap("Accept", ACCEPT),
+                    new Setup("GET maps") {
+                        @Override
+                        void handle(NioHttpsClient.Response response) throws JSONException, IOException {
+                            if (response.code != 200) {
+                                restart();
+                                return;
+                            }
+
+                            String type = response.headers.get("content-type");
+                            MazeCodec.Maze maze = type != null && type.startsWith(MazeCodec.CONTENT_TYPE)
+                                    ? MazeCodec.decode(new ByteArrayInputStream(response.body))
+                                    : StubState.fromJson(new JSONObject(response.text()));
+                            join(maze);
+                        }
+                    });
+        }
+
+        private void join(MazeCodec.Maze maze) throws JSONException {
+
+            List<LatLng> path = maze.lines.isEmpty()
+                    ? Collections.singletonList(new LatLng(maze.startlat, maze.startlng))
+                    : maze.lines.get(index % maze.lines.size());
+            walk = LocationTrace.walk(path, options.speed, options.interval, ACCURACY).getFixes();
+
+            send("POST", "game", GameRequests.position(username, token, owner, maze.startlat, maze.startlng), null,
+                    new Setup("POST game") {
+                        @Override
+                        void handle(NioHttpsClient.Response response) {
+                            if (response.code != 200) {
+                                restart();
+                                return;
+                            }
+                            walkingSince.addAndGet(System.nanoTime());
+                            walking.incrementAndGet();
+                            long phase = ThreadLocalRandom.current().nextLong(options.interval);
+                            ticks = clock.scheduleAtFixedRate(Player.this, phase, options.interval,
+                                    TimeUnit.MILLISECONDS);
+                        }
+                    });
+        }
+
+        /**
+         * @return Next position, walking the line back and forth
+         */
+        private LocationTrace.Fix nextFix() {
+            LocationTrace.Fix fix = walk.get(step);
+            if (walk.size() > 1) {
+                if (step + direction < 0 || step + direction >= walk.size()) direction = -direction;
+                step += direction;
+            }
+            return fix;
+        }
+
+        /**
+         * Position update, every interval
+         */
+        @Override
+        public void run() {
+
+            if (!running) {
+                if (ticks != null) ticks.cancel(false);
+                return;
+            }
+
+            LocationTrace.Fix fix = nextFix();
+            final String body;
+            try {
+                body = GameRequests.position(username, token, owner, fix.lat, fix.lng);
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+
+            if (busy) {
+                // previous round trip still running, send the position on its own
+                send("POST", "players", body, null, new Walk("POST players", false));
+                return;
+            }
+
+            busy = true;
+            if (exchangeSupported) {
+                send("POST", "players?exchange=1" + table.sinceParam(), body, null, new Walk("POST players?exchange=1", true) {
+                    @Override
+                    void handle(NioHttpsClient.Response response) throws JSONException {
+                        String text = response.text();
+                        if (response.code == 410 || response.code == 200
+                                && (text.contains("\"players\"") || text.contains("\"version\""))) {
+                            apply(response);
+                            return;
+                        }
+
+                        if (response.code / 100 == 2 || response.code == 404 || response.code == 405
+                                || response.code == 501) {
+                            // server does not know the combined request, use two calls from now on
+                            exchangeSupported = false;
+                            if (response.code / 100 != 2) {
+                                // the position was refused along with the exchange, send it again
+                                send("POST", "players", body, null, new Walk("POST players", false));
+                            }
+                            fetchPlayers();
+                            return;
+                        }
+                        busy = false;
+                    }
+                });
+            } else {
+                send("POST", "players", body, null, new Walk("POST players", false));
+                fetchPlayers();
+            }
+        }
+
+        private void fetchPlayers() {
+            send("GET", table.query(owner), null, null, new Walk("GET players", true) {
+                @Override
+                void handle(NioHttpsClient.Response response) throws JSONException {
+                    apply(response);
+                }
+            });
+        }
+
+        private void apply(NioHttpsClient.Response response) throws JSONException {
+
+            if (response.code != 200 && response.code != 410) {
+                busy = false;
+                return;
+            }
+
+            PlayerTable.Delta delta;
+            synchronized (table) {
+                delta = table.apply(response.code, response.text());
+            }
+
+            if (delta.stale) {
+                // our snapshot is too old, ask for everything again
+                fetchPlayers();
+            } else {
+                busy = false;
+            }
+        }
+
+        /** Walking steps: a failed round trip is dropped, the next tick sends a new one **/
+        private class Walk extends Step {
+
+            /** True for the requests whose answer ends the position round trip **/
+            private final boolean roundTrip;
+
+            Walk(String name, boolean roundTrip) {
+                super(name);
+                this.roundTrip = roundTrip;
+                walkRequests.incrementAndGet();
+            }
+
+            @Override
+            void handle(NioHttpsClient.Response response) throws JSONException {
+            }
+
+            @Override
+            void failed(Exception e) {
+                if (roundTrip) busy = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package com.feup.sdis.mapapp.tools;
+
+import com.feup.sdis.mapapp.maze.DistanceField;
+import com.feup.sdis.mapapp.maze.LocalProjection;
+import com.feup.sdis.mapapp.maze.MazeCodec;
+import com.feup.sdis.mapapp.maze.MazeGraph;
+import com.feup.sdis.mapapp.maze.MazeIndex;
+import com.google.android.gms.maps.model.LatLng;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Times the maze classes of the app on synthetic mazes, one suite per argument.
+ *
+ * Mazes are square grids of corridors around FEUP, drawn as one line per row and column with a
+ * point every few meters and a little noise, like simplified finger strokes. Each measurement
+ * is the best of a few runs after a warm up, allocations come from the HotSpot per-thread
+ * counter
+ */
+public final class MazeBenchmark {
+
+    private static final double ORIGIN_LAT = 41.1777, ORIGIN_LNG = -8.5979;
+
+    private static final double METERS_PER_DEGREE = 111320;
+
+    /** Runs kept from, the fastest one is reported **/
+    private static final int RUNS = 10;
+
+    /** Corridors per side of the grids of 40 m cells sampled every 4 m: about 100, 10k and 100k segments **/
+    private static final int[] SIZES = {2, 22, 70};
+
+    /** On-maze tolerance of the player activity, in meters **/
+    private static final double PLAYER_TOLERANCE = 30;
+
+    /** Join tolerance of the builder activity, in meters **/
+    private static final double BUILDER_TOLERANCE = 3.5;
+
+    /** Location fixes per query measurement **/
+    private static final int FIXES = 100000;
+
+    private interface Task {
+        long run() throws Exception;
+    }
+
+    /**
+     * Time and bytes allocated by the fastest run of a task
+     */
+    private static final class Measure {
+
+        long nanos = Long.MAX_VALUE;
+
+        long allocated;
+
+        long result;
+
+        /** Nanoseconds until the first line, if the task sets it **/
+        long firstLine;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        List<String> suites = Arrays.asList(args.length > 0 ? args : new String[]{"codec"});
+
+        if (suites.contains("codec")) codec();
+        if (suites.contains("index")) index();
+        if (suites.contains("projection")) projection();
+        if (suites.contains("graph")) graph();
+        if (suites.contains("field")) field();
+    }
+
+    // suites
+
+    /**
+     * A 5 MB maps response read as the app first did, one String and a JSONObject tree before
+     * the first line, against the binary form decoded line by line.
+     * The JSON streaming of MazeReader needs android.util.JsonReader and does not run here
+     */
+    private static void codec() throws Exception {
+
+        MazeCodec.Maze maze = grid(360, 40, 4, new Random(42));
+        final byte[] json = StubState.toJson(maze, "bot").toString().getBytes("UTF-8");
+        final byte[] binary = MazeCodec.encode(maze, true);
+
+        System.out.println(String.format(Locale.US, "codec: %d lines, %d points, JSON %.2f MB, binary %.2f MB",
+                maze.lines.size(), points(maze), json.length / 1e6, binary.length / 1e6));
+
+        final long[] firstLine = new long[1];
+
+        report("JSON tree", new Task() {
+            @Override
+            public long run() throws Exception {
+                long start = System.nanoTime();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(json), "UTF-8"));
+                String response = "";
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    response += line;
+                }
+                JSONArray lines = new JSONObject(response).getJSONArray("lines");
+                long points = 0;
+                for (int i = 0; i < lines.length(); i++) {
+                    points += Polyline.decode(lines.getJSONObject(i).getString("draw")).size();
+                    if (i == 0) firstLine[0] = System.nanoTime() - start;
+                }
+                return points;
+            }
+        }, firstLine);
+
+        report("binary", new Task() {
+            @Override
+            public long run() throws Exception {
+                final long start = System.nanoTime();
+                final long[] points = {0};
+                MazeCodec.decode(new ByteArrayInputStream(binary), new MazeCodec.Visitor() {
+                    @Override
+                    public void onHeader(MazeCodec.Maze maze) {
+                    }
+
+                    @Override
+                    public void onLine(List<LatLng> line) {
+                        if (points[0] == 0) firstLine[0] = System.nanoTime() - start;
+                        points[0] += line.size();
+                    }
+                });
+                return points[0];
+            }
+        }, firstLine);
+
+        encode(maze);
+    }
+
+    /**
+     * The upload of the builder activity: the JSON body sendMaze() builds, one encoded polyline
+     * per line, against the binary form MapUpload PUTs. Both report the bytes sent
+     */
+    private static void encode(final MazeCodec.Maze maze) throws Exception {
+
+        maze.fields.put("username", "bot");
+        maze.fields.put("accesstoken", "token");
+        System.out.println("encode:");
+
+        report("JSON draw", new Task() {
+            @Override
+            public long run() throws Exception {
+                JSONObject map = new JSONObject();
+                map.put("name", maze.fields.get("name"));
+                map.put("startlat", Double.valueOf(maze.startlat).toString());
+                map.put("startlng", Double.valueOf(maze.startlng).toString());
+                map.put("finishlat", Double.valueOf(maze.finishlat).toString());
+                map.put("finishlng", Double.valueOf(maze.finishlng).toString());
+
+                JSONObject all = new JSONObject();
+                all.put("username", maze.fields.get("username"));
+                all.put("accesstoken", maze.fields.get("accesstoken"));
+                all.put("map", map);
+
+                JSONArray lines = new JSONArray();
+                for (List<LatLng> points : maze.lines) {
+                    JSONObject line = new JSONObject();
+                    line.put("draw", Polyline.encode(points));
+                    lines.put(line);
+                }
+                all.put("lines", lines);
+                return all.toString().getBytes("UTF-8").length;
+            }
+        }, null);
+
+        report("binary", new Task() {
+            @Override
+            public long run() throws Exception {
+                return MazeCodec.encode(maze, true).length;
+            }
+        }, null);
+    }
+
+    /**
+     * The on-maze check of every fix through the MazeIndex grid, against testing every segment
+     * of the maze in the same projected frame, as isPlayerOnMaze() walked every line
+     */
+    private static void index() throws Exception {
+
+        for (int cells : SIZES) {
+
+            final MazeCodec.Maze maze = grid(cells, 40, 4, new Random(42));
+            final LatLng[] fixes = fixes(maze, cells * 40, FIXES, new Random(7));
+
+            Measure build = measure(new Task() {
+                @Override
+                public long run() {
+                    return new MazeIndex(maze.lines, PLAYER_TOLERANCE).segmentCount();
+                }
+            }, null);
+            System.out.println(String.format(Locale.US, "index: %d segments, built in %.2f ms, %.1f KB allocated",
+                    build.result, build.nanos / 1e6, build.allocated / 1e3));
+
+            final MazeIndex index = new MazeIndex(maze.lines, PLAYER_TOLERANCE);
+            final LocalProjection projection = index.getProjection();
+
+            report("grid", new Task() {
+                @Override
+                public long run() {
+                    long on = 0;
+                    for (LatLng fix : fixes) {
+                        if (index.isLocationOnMaze(fix, PLAYER_TOLERANCE)) on++;
+                    }
+                    return on;
+                }
+            }, fixes.length);
+
+            // keeps the scan of the big mazes to a few seconds
+            final int scanned = (int) Math.min(fixes.length, 100000000L / build.result);
+            report("every line", new Task() {
+                @Override
+                public long run() {
+                    long on = 0;
+                    for (int i = 0; i < scanned; i++) {
+                        LatLng fix = fixes[i];
+                        for (List<LatLng> line : maze.lines) {
+                            if (projection.isLocationOnPath(fix, line, PLAYER_TOLERANCE)) {
+                                on++;
+                                break;
+                            }
+                        }
+                    }
+                    return on;
+                }
+            }, scanned);
+        }
+    }
+
+    /**
+     * Distances and on-path checks in the LocalProjection frame against the spherical ones of
+     * the maps utility library, their largest difference within 1 km of the center and their time
+     */
+    private static void projection() throws Exception {
+
+        Random random = new Random(42);
+        final LocalProjection projection = new LocalProjection(ORIGIN_LAT, ORIGIN_LNG);
+
+        final LatLng[] a = new LatLng[FIXES], b = new LatLng[FIXES];
+        double worst = 0;
+        for (int i = 0; i < FIXES; i++) {
+            a[i] = at(random.nextDouble() * 1400 - 700, random.nextDouble() * 1400 - 700);
+            b[i] = at(random.nextDouble() * 1400 - 700, random.nextDouble() * 1400 - 700);
+            double spherical = Spherical.distance(a[i], b[i]);
+            if (spherical > 1) {
+                worst = Math.max(worst, Math.abs(projection.distance(a[i], b[i]) - spherical) / spherical);
+            }
+        }
+        System.out.println(String.format(Locale.US, "projection: largest distance error %.4f%% over %d pairs within 1 km",
+                worst * 100, FIXES));
+
+        report("planar", new Task() {
+            @Override
+            public long run() {
+                long near = 0;
+                for (int i = 0; i < a.length; i++) {
+                    if (projection.distance(a[i], b[i]) < 500) near++;
+                }
+                return near;
+            }
+        }, FIXES);
+
+        report("spherical", new Task() {
+            @Override
+            public long run() {
+                long near = 0;
+                for (int i = 0; i < a.length; i++) {
+                    if (Spherical.distance(a[i], b[i]) < 500) near++;
+                }
+                return near;
+            }
+        }, FIXES);
+
+        // every line of a 10k segment maze, as the on-maze check did before the index
+        final MazeCodec.Maze maze = grid(SIZES[1], 40, 4, new Random(42));
+        final LatLng[] fixes = fixes(maze, SIZES[1] * 40, 500, new Random(7));
+        final LocalProjection frame = LocalProjection.around(maze.lines);
+
+        int disagree = 0;
+        for (LatLng fix : fixes) {
+            for (List<LatLng> line : maze.lines) {
+                if (frame.isLocationOnPath(fix, line, PLAYER_TOLERANCE)
+                        != Spherical.isLocationOnPath(fix, line, PLAYER_TOLERANCE)) disagree++;
+            }
+        }
+        System.out.println(String.format(Locale.US, "  on-path checks disagreeing: %d of %d",
+                disagree, fixes.length * maze.lines.size()));
+
+        report("planar path", new Task() {
+            @Override
+            public long run() {
+                long on = 0;
+                for (LatLng fix : fixes) {
+                    for (List<LatLng> line : maze.lines) {
+                        if (frame.isLocationOnPath(fix, line, PLAYER_TOLERANCE)) on++;
+                    }
+                }
+                return on;
+            }
+        }, fixes.length);
+
+        report("sphere path", new Task() {
+            @Override
+            public long run() {
+                long on = 0;
+                for (LatLng fix : fixes) {
+                    for (List<LatLng> line : maze.lines) {
+                        if (Spherical.isLocationOnPath(fix, line, PLAYER_TOLERANCE)) on++;
+                    }
+                }
+                return on;
+            }
+        }, fixes.length);
+    }
+
+    /**
+     * The validation of the builder activity: the graph of the drawn lines, its crossings and
+     * near-touching ends found by the sweep, then the entrance to exit check
+     */
+    private static void graph() throws Exception {
+
+        for (int cells : SIZES) {
+
+            final MazeCodec.Maze maze = grid(cells, 40, 4, new Random(42));
+            final LatLng start = new LatLng(maze.startlat, maze.startlng);
+            final LatLng finish = new LatLng(maze.finishlat, maze.finishlng);
+
+            final MazeGraph[] graph = new MazeGraph[1];
+            Measure build = measure(new Task() {
+                @Override
+                public long run() throws Exception {
+                    graph[0] = new MazeGraph(maze.lines, BUILDER_TOLERANCE);
+                    return graph[0].junctionCount();
+                }
+            }, null);
+            Measure connects = measure(new Task() {
+                @Override
+                public long run() {
+                    return graph[0].connects(start, finish, BUILDER_TOLERANCE) ? 1 : 0;
+                }
+            }, null);
+
+            System.out.println(String.format(Locale.US,
+                    "graph: %d segments, %d junctions, %d nodes, %d edges: built in %.2f ms (%.1f MB allocated), "
+                            + "connected %s in %.2f ms",
+                    graph[0].segmentCount(), build.result, graph[0].nodeCount(), graph[0].edgeCount(),
+                    build.nanos / 1e6, build.allocated / 1e6, connects.result == 1, connects.nanos / 1e6));
+        }
+    }
+
+    /**
+     * What the player activity builds when a maze loads, the graph, the distance to the exit
+     * and to the nearest junction, then the walking distance of each fix
+     */
+    private static void field() throws Exception {
+
+        for (int cells : SIZES) {
+
+            final MazeCodec.Maze maze = grid(cells, 40, 4, new Random(42));
+            final LatLng finish = new LatLng(maze.finishlat, maze.finishlng);
+            final LatLng[] fixes = walking(maze, FIXES, new Random(7));
+
+            final MazeGraph graph = new MazeGraph(maze.lines, BUILDER_TOLERANCE);
+            final MazeIndex index = new MazeIndex(maze.lines, PLAYER_TOLERANCE);
+
+            Measure toExit = measure(new Task() {
+                @Override
+                public long run() {
+                    return (long) new DistanceField(graph, finish, BUILDER_TOLERANCE).nodeDistance(0);
+                }
+            }, null);
+            Measure toJunctions = measure(new Task() {
+                @Override
+                public long run() {
+                    return (long) DistanceField.toJunctions(graph).nodeDistance(0);
+                }
+            }, null);
+
+            System.out.println(String.format(Locale.US,
+                    "field: %d segments, %d nodes: to the exit %.2f ms, to the junctions %.2f ms, %.1f KB each",
+                    graph.segmentCount(), graph.nodeCount(), toExit.nanos / 1e6, toJunctions.nanos / 1e6,
+                    graph.nodeCount() * 4 / 1e3));
+
+            final DistanceField field = new DistanceField(graph, finish, BUILDER_TOLERANCE);
+            report("remaining", new Task() {
+                @Override
+                public long run() {
+                    long reached = 0;
+                    for (LatLng fix : fixes) {
+                        if (!Double.isInfinite(field.remaining(fix, index, PLAYER_TOLERANCE))) reached++;
+                    }
+                    return reached;
+                }
+            }, fixes.length);
+        }
+    }
+
+    // mazes
+
+    /**
+     * @param cells Corridors per side
+     * @param cell  Corridor spacing, in meters
+     * @param step  Distance between the points of a line, in meters
+     * @return Grid maze with one line per row and per column, from the bottom left corner
+     */
+    static MazeCodec.Maze grid(int cells, double cell, double step, Random random) {
+
+        MazeCodec.Maze maze = new MazeCodec.Maze();
+        maze.fields.put("name", "grid-" + cells);
+
+        int steps = (int) Math.round(cells * cell / step);
+        for (int k = 0; k <= cells; k++) {
+            List<LatLng> row = new ArrayList<>(steps + 1), column = new ArrayList<>(steps + 1);
+            for (int i = 0; i <= steps; i++) {
+                row.add(at(i * step, k * cell + noise(random)));
+                column.add(at(k * cell + noise(random), i * step));
+            }
+            maze.lines.add(row);
+            maze.lines.add(column);
+        }
+
+        maze.startlat = ORIGIN_LAT;
+        maze.startlng = ORIGIN_LNG;
+        LatLng finish = at(cells * cell, cells * cell);
+        maze.finishlat = finish.latitude;
+        maze.finishlng = finish.longitude;
+        return maze;
+    }
+
+    /**
+     * @return Point at the given meters east and north of the origin
+     */
+    static LatLng at(double x, double y) {
+        return new LatLng(ORIGIN_LAT + y / METERS_PER_DEGREE,
+                ORIGIN_LNG + x / (METERS_PER_DEGREE * Math.cos(Math.toRadians(ORIGIN_LAT))));
+    }
+
+    private static double noise(Random random) {
+        return (random.nextDouble() - 0.5) * 0.6;
+    }
+
+    /**
+     * @return Fixes spread uniformly over the maze and a 50 m margin around it
+     */
+    private static LatLng[] fixes(MazeCodec.Maze maze, double side, int count, Random random) {
+        LatLng[] fixes = new LatLng[count];
+        for (int i = 0; i < count; i++) {
+            fixes[i] = at(random.nextDouble() * (side + 100) - 50, random.nextDouble() * (side + 100) - 50);
+        }
+        return fixes;
+    }
+
+    /**
+     * @return Fixes of a player walking the corridors, up to 5 m off a line point
+     */
+    private static LatLng[] walking(MazeCodec.Maze maze, int count, Random random) {
+        LatLng[] fixes = new LatLng[count];
+        for (int i = 0; i < count; i++) {
+            List<LatLng> line = maze.lines.get(random.nextInt(maze.lines.size()));
+            LatLng point = line.get(random.nextInt(line.size()));
+            fixes[i] = new LatLng(point.latitude + (random.nextDouble() - 0.5) * 10 / METERS_PER_DEGREE,
+                    point.longitude + (random.nextDouble() - 0.5) * 10 / METERS_PER_DEGREE);
+        }
+        return fixes;
+    }
+
+    private static long points(MazeCodec.Maze maze) {
+        long points = 0;
+        for (List<LatLng> line : maze.lines) {
+            points += line.size();
+        }
+        return points;
+    }
+
+    // measuring
+
+    private static Measure measure(Task task, long[] firstLine) throws Exception {
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        task.run();
+
+        Measure best = new Measure();
+        for (int i = 0; i < RUNS; i++) {
+            long allocated = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            long result = task.run();
+            long nanos = System.nanoTime() - start;
+            allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+            if (nanos < best.nanos) {
+                best.nanos = nanos;
+                best.allocated = allocated;
+                best.result = result;
+                best.firstLine = firstLine == null ? 0 : firstLine[0];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param queries Queries run by the task, its time is reported per query
+     */
+    private static void report(String name, Task task, int queries) throws Exception {
+        Measure measure = measure(task, null);
+        System.out.println(String.format(Locale.US, "  %-12s %9.1f ns/query %8.1f bytes/query  (%d of %d)",
+                name, (double) measure.nanos / queries, (double) measure.allocated / queries,
+                measure.result, queries));
+    }
+
+    /**
+     * @param firstLine Set by the task to the nanoseconds until its first line, reported if not null
+     */
+    private static void report(String name, Task task, long[] firstLine) throws Exception {
+        Measure measure = measure(task, firstLine);
+        System.out.println(String.format(Locale.US, "  %-12s %9.2f ms %s %8.1f MB allocated  (%d)",
+                name, measure.nanos / 1e6,
+                firstLine == null ? "" : String.format(Locale.US, " first line %7.2f ms ", measure.firstLine / 1e6),
+                measure.allocated / 1e6, measure.result));
+    }
+}
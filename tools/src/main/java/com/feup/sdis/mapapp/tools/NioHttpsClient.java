@@ -0,0 +1,757 @@
+package com.feup.sdis.mapapp.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
+
+/**
+ * HTTPS/1.1 client on a single selector thread, to drive many simulated players without a
+ * thread each.
+ *
+ * A {@link Connection} is one keep-alive socket with its own SSLEngine, serving one request at
+ * a time like the app transport does; requests sent while one is in flight wait in its queue.
+ * Only the socket and TLS record work happens on the selector thread: delegated handshake tasks
+ * and the callbacks run on the executor given to the constructor. A request that fails on a
+ * reused socket before any response byte arrived is retried once on a fresh one, as the server
+ * may have closed the idle socket meanwhile
+ */
+public final class NioHttpsClient {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    /** Period of the timeout checks, in milliseconds **/
+    private static final long TICK = 100;
+
+    /**
+     * Receives the outcome of a request, on the executor of the client
+     */
+    public interface Callback {
+
+        void onResponse(Response response);
+
+        void onFailure(IOException e);
+    }
+
+    /**
+     * Complete response to a request
+     */
+    public static final class Response {
+
+        public final int code;
+
+        /** Headers with lower case names **/
+        public final Map<String, String> headers;
+
+        public final byte[] body;
+
+        /** From the first request byte written to the last response byte read, in nanoseconds **/
+        public final long nanos;
+
+        Response(int code, Map<String, String> headers, byte[] body, long nanos) {
+            this.code = code;
+            this.headers = headers;
+            this.body = body;
+            this.nanos = nanos;
+        }
+
+        public String text() {
+            return new String(body, UTF8);
+        }
+    }
+
+    private final SSLContext context;
+
+    private final InetSocketAddress address;
+
+    private final String hostHeader;
+
+    private final Executor executor;
+
+    private final long timeoutNanos;
+
+    private final Selector selector;
+
+    /** Work handed to the selector thread **/
+    private final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>();
+
+    /** Open connections, only touched by the selector thread **/
+    private final Set<Connection> connections = new HashSet<>();
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param timeout Max time for a request once on the wire, connecting included, in milliseconds
+     */
+    public NioHttpsClient(SSLContext context, String host, int port, Executor executor, long timeout)
+            throws IOException {
+
+        this.context = context;
+        this.address = new InetSocketAddress(host, port);
+        this.hostHeader = port == 443 ? host : host + ":" + port;
+        this.executor = executor;
+        this.timeoutNanos = timeout * 1000000L;
+        this.selector = Selector.open();
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "nio-https");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return New connection, opened on its first request
+     */
+    public Connection connection() {
+        return new Connection();
+    }
+
+    /**
+     * Closes every connection and stops the selector thread
+     */
+    public void close() throws InterruptedException {
+        running = false;
+        selector.wakeup();
+        thread.join();
+    }
+
+    private void post(Runnable task) {
+        pending.add(task);
+        selector.wakeup();
+    }
+
+    private void loop() {
+
+        long nextCheck = System.nanoTime();
+
+        while (running) {
+            try {
+                selector.select(TICK);
+            } catch (IOException e) {
+                break;
+            }
+
+            Runnable task;
+            while ((task = pending.poll()) != null) {
+                task.run();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isValid() && key.isConnectable()) connection.finishConnect();
+                    if (key.isValid() && key.isReadable()) connection.read();
+                    if (key.isValid() && key.isWritable()) connection.pump();
+                } catch (IOException | RuntimeException e) {
+                    connection.fail(e instanceof IOException ? (IOException) e : new IOException(e));
+                }
+            }
+
+            long now = System.nanoTime();
+            if (now - nextCheck >= 0) {
+                for (Connection connection : new HashSet<>(connections)) {
+                    if (connection.current != null && now - connection.deadline > 0) {
+                        connection.fail(new SocketTimeoutException("Request timed out"));
+                    }
+                }
+                nextCheck = now + TICK * 1000000L;
+            }
+        }
+
+        for (Connection connection : new HashSet<>(connections)) {
+            connection.teardown();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    private static final class Request {
+
+        final String method;
+
+        final byte[] head;
+
+        final byte[] body;
+
+        final Callback callback;
+
+        int attempts = 0;
+
+        long started;
+
+        Request(String method, byte[] head, byte[] body, Callback callback) {
+            this.method = method;
+            this.head = head;
+            this.body = body;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * Keep-alive socket to the server. Every field is owned by the selector thread
+     */
+    public final class Connection {
+
+        private final ArrayDeque<Request> queue = new ArrayDeque<>();
+
+        private Request current;
+
+        private long deadline;
+
+        private SocketChannel channel;
+
+        private SelectionKey key;
+
+        private SSLEngine engine;
+
+        /** Encrypted bytes received, in write mode **/
+        private ByteBuffer netIn;
+
+        /** Encrypted bytes to send, in write mode **/
+        private ByteBuffer netOut;
+
+        /** Decrypted bytes, emptied into {@link #received} after each unwrap **/
+        private ByteBuffer appIn;
+
+        /** Plain request bytes left to encrypt **/
+        private ByteBuffer out;
+
+        /** True while delegated handshake tasks run on the executor **/
+        private boolean tasks = false;
+
+        /** Requests completed on the current socket **/
+        private int served = 0;
+
+        // response being parsed
+
+        private byte[] received = new byte[8192];
+
+        private int length = 0;
+
+        private int headerEnd = -1;
+
+        private int code;
+
+        private Map<String, String> headers;
+
+        private long contentLength;
+
+        private boolean chunked;
+
+        private boolean closeAfter;
+
+        Connection() {
+        }
+
+        /**
+         * Queues a request on this connection
+         *
+         * @param path    Path with the query string, relative to the server root
+         * @param body    Request body, null for none
+         * @param headers Extra request headers, may be null
+         */
+        public void send(String method, String path, byte[] body, Map<String, String> headers, Callback callback) {
+
+            StringBuilder head = new StringBuilder(256)
+                    .append(method).append(" /").append(path).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(hostHeader).append("\r\n");
+
+            boolean hasType = false;
+            if (headers != null) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+                    hasType |= header.getKey().equalsIgnoreCase("Content-Type");
+                }
+            }
+            if (body != null) {
+                if (!hasType) head.append("Content-Type: application/json\r\n");
+                head.append("Content-Length: ").append(body.length).append("\r\n");
+            }
+            head.append("\r\n");
+
+            final Request request = new Request(method, head.toString().getBytes(ASCII), body, callback);
+
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    queue.add(request);
+                    if (current == null) next();
+                }
+            });
+        }
+
+        /**
+         * Closes the socket, failing the queued requests
+         */
+        public void close() {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    teardown();
+                    failAll(new IOException("Connection closed"));
+                }
+            });
+        }
+
+        private void next() {
+
+            current = queue.poll();
+            if (current == null) return;
+
+            current.started = System.nanoTime();
+            deadline = current.started + timeoutNanos;
+
+            int size = current.head.length + (current.body == null ? 0 : current.body.length);
+            out = ByteBuffer.allocate(size);
+            out.put(current.head);
+            if (current.body != null) out.put(current.body);
+            out.flip();
+
+            try {
+                if (channel == null) {
+                    connect();
+                } else {
+                    pump();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void connect() throws IOException {
+
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            connections.add(this);
+
+            if (channel.connect(address)) {
+                key = channel.register(selector, 0, this);
+                startTls();
+            } else {
+                key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+        }
+
+        void finishConnect() throws IOException {
+            if (channel.finishConnect()) startTls();
+        }
+
+        private void startTls() throws IOException {
+
+            engine = context.createSSLEngine(address.getHostString(), address.getPort());
+            engine.setUseClientMode(true);
+
+            SSLSession session = engine.getSession();
+            netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+            netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+            appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+
+            engine.beginHandshake();
+            pump();
+        }
+
+        void read() throws IOException {
+
+            if (!netIn.hasRemaining()) {
+                netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+            }
+
+            if (channel.read(netIn) < 0) {
+                closed();
+                return;
+            }
+            pump();
+        }
+
+        /**
+         * Moves bytes between the socket, the engine and the response parser until the socket
+         * would block
+         */
+        void pump() throws IOException {
+
+            while (!tasks && engine != null) {
+
+                if (netOut.position() > 0) {
+                    netOut.flip();
+                    channel.write(netOut);
+                    netOut.compact();
+                    if (netOut.position() > 0) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                boolean handshaking = status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                        && status != SSLEngineResult.HandshakeStatus.FINISHED;
+
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                    return;
+                }
+
+                if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP
+                        || !handshaking && out != null && out.hasRemaining()) {
+
+                    SSLEngineResult result = engine.wrap(handshaking || out == null ? EMPTY : out, netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                    } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        closed();
+                        return;
+                    }
+                    continue;
+                }
+
+                if (!handshaking && netIn.position() == 0) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+
+                netIn.flip();
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                netIn.compact();
+
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        key.interestOps(SelectionKey.OP_READ);
+                        return;
+                    case BUFFER_OVERFLOW:
+                        appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                        break;
+                    case CLOSED:
+                        consume();
+                        closed();
+                        return;
+                    default:
+                        consume();
+                        if (engine == null) return;
+                }
+            }
+        }
+
+        private void runTasks() {
+
+            tasks = true;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final SSLEngine running = engine;
+                    Runnable task;
+                    while (running != null && (task = running.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            tasks = false;
+                            if (engine != running) return;
+                            try {
+                                pump();
+                            } catch (IOException e) {
+                                fail(e);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * Hands the decrypted bytes to the response parser
+         */
+        private void consume() throws IOException {
+
+            appIn.flip();
+            int count = appIn.remaining();
+            if (count > 0 && current != null) {
+                ensure(count);
+                appIn.get(received, length, count);
+                length += count;
+                appIn.clear();
+                parse();
+            } else {
+                // nothing was asked, whatever the server says is dropped
+                appIn.clear();
+            }
+        }
+
+        private void parse() throws IOException {
+
+            if (headerEnd < 0) {
+                int end = indexOf(received, 0, length, HEADER_END);
+                if (end < 0) return;
+                headerEnd = end + HEADER_END.length;
+                parseHead(new String(received, 0, end, ASCII));
+            }
+
+            if (code == 204 || code == 304 || "HEAD".equals(current.method)) {
+                complete(new byte[0]);
+            } else if (chunked) {
+                byte[] body = dechunk();
+                if (body != null) complete(body);
+            } else if (contentLength >= 0 && length - headerEnd >= contentLength) {
+                byte[] body = new byte[(int) contentLength];
+                System.arraycopy(received, headerEnd, body, 0, body.length);
+                complete(body);
+            }
+        }
+
+        private void parseHead(String head) throws IOException {
+
+            String[] lines = head.split("\r\n");
+            String[] status = lines[0].split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                throw new IOException("Bad status line " + lines[0]);
+            }
+
+            try {
+                code = Integer.parseInt(status[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad status line " + lines[0]);
+            }
+
+            headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+                }
+            }
+            headers = Collections.unmodifiableMap(headers);
+
+            String value = headers.get("content-length");
+            try {
+                contentLength = value == null ? -1 : Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad Content-Length " + value);
+            }
+
+            value = headers.get("transfer-encoding");
+            chunked = value != null && value.toLowerCase().contains("chunked");
+
+            value = headers.get("connection");
+            closeAfter = "close".equalsIgnoreCase(value)
+                    || status[0].equals("HTTP/1.0") && !"keep-alive".equalsIgnoreCase(value);
+        }
+
+        /**
+         * @return Body of a chunked response, null until it is complete
+         */
+        private byte[] dechunk() throws IOException {
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            int at = headerEnd;
+
+            while (true) {
+                int end = indexOf(received, at, length, CRLF);
+                if (end < 0) return null;
+
+                String size = new String(received, at, end - at, ASCII);
+                int extension = size.indexOf(';');
+                if (extension >= 0) size = size.substring(0, extension);
+
+                int count;
+                try {
+                    count = Integer.parseInt(size.trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad chunk size " + size);
+                }
+                at = end + CRLF.length;
+
+                if (count == 0) {
+                    // skip the trailers up to the empty line
+                    while (true) {
+                        end = indexOf(received, at, length, CRLF);
+                        if (end < 0) return null;
+                        if (end == at) return body.toByteArray();
+                        at = end + CRLF.length;
+                    }
+                }
+
+                if (length < at + count + CRLF.length) return null;
+                body.write(received, at, count);
+                at += count + CRLF.length;
+            }
+        }
+
+        private void ensure(int more) {
+            if (length + more > received.length) {
+                byte[] bigger = new byte[Math.max(received.length * 2, length + more)];
+                System.arraycopy(received, 0, bigger, 0, length);
+                received = bigger;
+            }
+        }
+
+        private void teardown() {
+
+            connections.remove(this);
+            if (key != null) key.cancel();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // already gone
+                }
+            }
+
+            channel = null;
+            key = null;
+            engine = null;
+            tasks = false;
+            served = 0;
+            resetResponse();
+        }
+
+        private void resetResponse() {
+            length = 0;
+            headerEnd = -1;
+            headers = null;
+        }
+
+        private void closed() throws IOException {
+
+            if (current != null && headerEnd >= 0 && contentLength < 0 && !chunked) {
+                // body delimited by the end of the connection
+                byte[] body = new byte[length - headerEnd];
+                System.arraycopy(received, headerEnd, body, 0, body.length);
+                closeAfter = true;
+                complete(body);
+                return;
+            }
+
+            throw new EOFException("Connection closed by the server");
+        }
+
+        void fail(IOException e) {
+
+            // a stale pooled socket fails fast, a timeout is the server being slow
+            boolean retry = current != null && current.attempts == 0 && served > 0 && length == 0
+                    && !(e instanceof SocketTimeoutException);
+            teardown();
+
+            if (current == null) return;
+
+            Request request = current;
+            current = null;
+
+            if (retry) {
+                request.attempts++;
+                queue.addFirst(request);
+            } else {
+                deliver(request, null, e);
+            }
+            next();
+        }
+
+        private void failAll(IOException e) {
+            if (current != null) deliver(current, null, e);
+            current = null;
+            for (Request request : queue) {
+                deliver(request, null, e);
+            }
+            queue.clear();
+        }
+
+        private void complete(byte[] body) {
+
+            Request request = current;
+            Response response = new Response(code, headers, body, System.nanoTime() - request.started);
+            current = null;
+            served++;
+
+            if (closeAfter) {
+                teardown();
+            } else {
+                resetResponse();
+                key.interestOps(SelectionKey.OP_READ);
+            }
+
+            deliver(request, response, null);
+
+            if (!queue.isEmpty()) {
+                // started from the selector loop rather than from inside pump()
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (current == null) next();
+                    }
+                });
+            }
+        }
+
+        private void deliver(final Request request, final Response response, final IOException e) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (response != null) {
+                        request.callback.onResponse(response);
+                    } else {
+                        request.callback.onFailure(e);
+                    }
+                }
+            });
+        }
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte[] pattern) {
+        search:
+        for (int i = from; i + pattern.length <= to; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) continue search;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int atLeast) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, atLeast));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
@@ -0,0 +1,78 @@
+package com.feup.sdis.mapapp.tools;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encoded polyline algorithm, the "draw" form of the JSON maze lines. Same output as PolyUtil
+ * of the maps utility library, which the tools can't use off Android
+ */
+public final class Polyline {
+
+    private Polyline() {
+    }
+
+    public static String encode(List<LatLng> points) {
+
+        StringBuilder out = new StringBuilder(points.size() * 6);
+        long lastLat = 0, lastLng = 0;
+
+        for (LatLng point : points) {
+            long lat = Math.round(point.latitude * 1e5);
+            long lng = Math.round(point.longitude * 1e5);
+            write(out, lat - lastLat);
+            write(out, lng - lastLng);
+            lastLat = lat;
+            lastLng = lng;
+        }
+
+        return out.toString();
+    }
+
+    public static List<LatLng> decode(String encoded) {
+
+        List<LatLng> points = new ArrayList<>();
+        int index = 0;
+        long lat = 0, lng = 0;
+
+        while (index < encoded.length()) {
+            long[] value = new long[1];
+            index = read(encoded, index, value);
+            lat += value[0];
+            index = read(encoded, index, value);
+            lng += value[0];
+            points.add(new LatLng(lat / 1e5, lng / 1e5));
+        }
+
+        return points;
+    }
+
+    private static void write(StringBuilder out, long value) {
+        value = value < 0 ? ~(value << 1) : value << 1;
+        while (value >= 0x20) {
+            out.append((char) ((0x20 | (value & 0x1f)) + 63));
+            value >>= 5;
+        }
+        out.append((char) (value + 63));
+    }
+
+    /**
+     * @return Index after the value
+     */
+    private static int read(String encoded, int index, long[] value) {
+        long result = 0;
+        int shift = 0, b;
+        do {
+            if (index >= encoded.length()) {
+                throw new IllegalArgumentException("Truncated polyline");
+            }
+            b = encoded.charAt(index++) - 63;
+            result |= (long) (b & 0x1f) << shift;
+            shift += 5;
+        } while (b >= 0x20);
+        value[0] = (result & 1) != 0 ? ~(result >> 1) : result >> 1;
+        return index;
+    }
+}
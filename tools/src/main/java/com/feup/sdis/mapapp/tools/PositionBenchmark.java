@@ -0,0 +1,142 @@
+package com.feup.sdis.mapapp.tools;
+
+import com.feup.sdis.mapapp.client.GameRequests;
+import com.feup.sdis.mapapp.client.PositionWriter;
+
+import org.json.JSONException;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks that {@link PositionWriter} sends the bytes of {@link GameRequests#position}, then
+ * counts the bytes allocated and the time spent per position update by each.
+ *
+ * The JSON path is what the app did for every fix: two JSONObjects, their string and its UTF-8
+ * copy. The writer path is one {@link PositionWriter.Position} encoded into a reused buffer.
+ * Allocations come from the HotSpot per-thread counter
+ */
+public final class PositionBenchmark {
+
+    private interface Encoder {
+        int encode(double lat, double lng) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        int updates = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        int mismatches = compatibility(100000);
+        System.out.println("Compatibility: " + mismatches + " mismatches in 100000 bodies");
+        if (mismatches > 0) System.exit(1);
+
+        final String username = "player42", token = "5f0e1c9a-3b7d-4c2e-9a61-0d8f7b2c4e13", owner = "maze/owner";
+        final PositionWriter writer = new PositionWriter(username, token, owner);
+        final byte[] buffer = new byte[256];
+
+        Encoder json = new Encoder() {
+            @Override
+            public int encode(double lat, double lng) throws Exception {
+                return GameRequests.position(username, token, owner, lat, lng).getBytes("UTF-8").length;
+            }
+        };
+
+        Encoder direct = new Encoder() {
+            @Override
+            public int encode(double lat, double lng) throws JSONException {
+                return writer.at(lat, lng).write(buffer);
+            }
+        };
+
+        // warm both paths up before measuring either
+        run(json, updates);
+        run(direct, updates);
+
+        report("JSONObject", json, updates);
+        report("PositionWriter", direct, updates);
+    }
+
+    /**
+     * @return Bodies that differ between the two encodings, over random names and coordinates
+     */
+    private static int compatibility(int bodies) throws Exception {
+
+        Random random = new Random(42);
+        byte[] buffer = new byte[1024];
+        int mismatches = 0;
+
+        double[] special = {0, -0d, 1, -8, 41.5, 1e-7, -1e-300, 123456789, 1e20, Double.MIN_VALUE};
+
+        for (int i = 0; i < bodies; i++) {
+
+            String username = random.nextInt(20) == 0 ? null : text(random);
+            String token = random.nextInt(20) == 0 ? null : text(random);
+            String owner = random.nextInt(20) == 0 ? null : text(random);
+
+            double lat = i < special.length ? special[i] : (random.nextDouble() - 0.5) * 180;
+            double lng = i < special.length ? special[special.length - 1 - i] : (random.nextDouble() - 0.5) * 360;
+            if (random.nextInt(10) == 0) lat = Math.round(lat * 1e5) / 1e5;
+
+            byte[] expected = GameRequests.position(username, token, owner, lat, lng).getBytes("UTF-8");
+            PositionWriter.Position position = new PositionWriter(username, token, owner).at(lat, lng);
+            byte[] actual = Arrays.copyOf(buffer, position.write(buffer));
+
+            if (!Arrays.equals(expected, actual)) {
+                if (mismatches++ == 0) {
+                    System.out.println("expected " + new String(expected, "UTF-8"));
+                    System.out.println("actual   " + new String(actual, "UTF-8"));
+                }
+            }
+        }
+
+        return mismatches;
+    }
+
+    /**
+     * @return Short string with the characters JSON escapes, non ASCII and surrogate pairs
+     */
+    private static String text(Random random) {
+        String alphabet = "abcXYZ019-_.\"\\/\t\b\n\r\f\u0001\u001f \u00e7\u20ac\ud83d\ude00";
+        StringBuilder out = new StringBuilder();
+        int length = random.nextInt(12);
+        for (int i = 0; i < length; i++) {
+            int at = random.nextInt(alphabet.length());
+            char c = alphabet.charAt(at);
+            if (Character.isHighSurrogate(c)) {
+                out.append(c).append(alphabet.charAt(at + 1));
+            } else if (!Character.isLowSurrogate(c)) {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    private static long run(Encoder encoder, int updates) throws Exception {
+        long sink = 0;
+        double lat = 41.17773, lng = -8.59785;
+        for (int i = 0; i < updates; i++) {
+            lat += 1e-6;
+            lng -= 1e-6;
+            sink += encoder.encode(lat, lng);
+        }
+        return sink;
+    }
+
+    private static void report(String name, Encoder encoder, int updates) throws Exception {
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long sink = run(encoder, updates);
+        long nanos = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+        System.out.println(String.format(Locale.US, "%-15s %8.1f bytes/update %8.1f ns/update  (%d bytes sent)",
+                name, (double) allocated / updates, (double) nanos / updates, sink / updates));
+    }
+}
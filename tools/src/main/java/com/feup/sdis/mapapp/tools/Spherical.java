@@ -0,0 +1,119 @@
+package com.feup.sdis.mapapp.tools;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.List;
+
+import static java.lang.Math.cos;
+import static java.lang.Math.sin;
+import static java.lang.Math.sqrt;
+import static java.lang.Math.toRadians;
+
+/**
+ * The spherical distance and on-path checks the app ran before LocalProjection, same math as
+ * SphericalUtil.computeDistanceBetween and geodesic PolyUtil.isLocationOnPath of the maps
+ * utility library, which the tools can't use off Android
+ */
+public final class Spherical {
+
+    /** Earth radius of the maps utility library, in meters **/
+    public static final double EARTH_RADIUS = 6371009;
+
+    private Spherical() {
+    }
+
+    /**
+     * @return Great circle distance between two points, in meters
+     */
+    public static double distance(LatLng a, LatLng b) {
+        double lat1 = toRadians(a.latitude), lat2 = toRadians(b.latitude);
+        return 2 * Math.asin(sqrt(havDistance(lat1, lat2, toRadians(a.longitude - b.longitude)))) * EARTH_RADIUS;
+    }
+
+    /**
+     * @return True if the point is within the tolerance, in meters, of a great circle segment of the line
+     */
+    public static boolean isLocationOnPath(LatLng point, List<LatLng> line, double tolerance) {
+
+        if (line.isEmpty()) return false;
+
+        double havTolerance = hav(tolerance / EARTH_RADIUS);
+        double lat3 = toRadians(point.latitude);
+        double lng3 = toRadians(point.longitude);
+        double lat1 = toRadians(line.get(0).latitude);
+        double lng1 = toRadians(line.get(0).longitude);
+
+        for (LatLng next : line) {
+            double lat2 = toRadians(next.latitude);
+            double lng2 = toRadians(next.longitude);
+            if (isOnSegment(lat1, lng1, lat2, lng2, lat3, lng3, havTolerance)) {
+                return true;
+            }
+            lat1 = lat2;
+            lng1 = lng2;
+        }
+        return false;
+    }
+
+    private static boolean isOnSegment(double lat1, double lng1, double lat2, double lng2,
+                                       double lat3, double lng3, double havTolerance) {
+
+        double havDist13 = havDistance(lat1, lat3, lng1 - lng3);
+        if (havDist13 <= havTolerance) return true;
+        double havDist23 = havDistance(lat2, lat3, lng2 - lng3);
+        if (havDist23 <= havTolerance) return true;
+
+        double sinBearing = sinDeltaBearing(lat1, lng1, lat2, lng2, lat3, lng3);
+        double havCrossTrack = havFromSin(sinFromHav(havDist13) * sinBearing);
+        if (havCrossTrack > havTolerance) return false;
+
+        double havDist12 = havDistance(lat1, lat2, lng1 - lng2);
+        double term = havDist12 + havCrossTrack * (1 - 2 * havDist12);
+        if (havDist13 > term || havDist23 > term) return false;
+        if (havDist12 < 0.74) return true;
+
+        double cosCrossTrack = 1 - 2 * havCrossTrack;
+        double havAlongTrack13 = (havDist13 - havCrossTrack) / cosCrossTrack;
+        double havAlongTrack23 = (havDist23 - havCrossTrack) / cosCrossTrack;
+        return sinSumFromHav(havAlongTrack13, havAlongTrack23) > 0;
+    }
+
+    private static double sinDeltaBearing(double lat1, double lng1, double lat2, double lng2,
+                                          double lat3, double lng3) {
+        double sinLat1 = sin(lat1);
+        double cosLat2 = cos(lat2);
+        double cosLat3 = cos(lat3);
+        double lng31 = lng3 - lng1;
+        double lng21 = lng2 - lng1;
+        double a = sin(lng31) * cosLat3;
+        double c = sin(lng21) * cosLat2;
+        double b = sin(lat3 - lat1) + 2 * sinLat1 * cosLat3 * hav(lng31);
+        double d = sin(lat2 - lat1) + 2 * sinLat1 * cosLat2 * hav(lng21);
+        double denominator = (a * a + b * b) * (c * c + d * d);
+        return denominator <= 0 ? 1 : (a * d - b * c) / sqrt(denominator);
+    }
+
+    private static double hav(double x) {
+        double sinHalf = sin(x * 0.5);
+        return sinHalf * sinHalf;
+    }
+
+    private static double havDistance(double lat1, double lat2, double dLng) {
+        return hav(lat1 - lat2) + hav(dLng) * cos(lat1) * cos(lat2);
+    }
+
+    private static double sinFromHav(double h) {
+        return 2 * sqrt(h * (1 - h));
+    }
+
+    private static double havFromSin(double x) {
+        double x2 = x * x;
+        return x2 / (1 + sqrt(1 - x2)) * .5;
+    }
+
+    private static double sinSumFromHav(double x, double y) {
+        double a = sqrt(x * (1 - x));
+        double b = sqrt(y * (1 - y));
+        return 2 * (a + b - 2 * (a * y + b * x));
+    }
+}
@@ -0,0 +1,385 @@
+package com.feup.sdis.mapapp.tools;
+
+import com.feup.sdis.mapapp.maze.MazeCodec;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Stand-in for the game server, over HTTPS with client certificates, for benchmarks and load
+ * tests on a machine without the real one.
+ *
+ * Serves every endpoint the app uses: "users" PUT/POST, "maps" PUT/GET (JSON or the binary
+ * maze form, with ETag revalidation), "game" PUT/GET/POST (with paging) and "players" GET/POST
+ * (with the position exchange and delta snapshots). See {@link #usage()} for the options.
+ *
+ * Faults are added before a request is handled: a fixed latency plus uniform jitter, dropped
+ * connections (closed without an answer, like a lost packet the client times out or fails on)
+ * and 503 errors, each with its own probability
+ */
+public class StubServer {
+
+    private final HttpsServer server;
+
+    private final StubState state;
+
+    /** True to refuse the position exchange, so clients fall back to a POST and a GET **/
+    private final boolean noExchange;
+
+    /** Counters of the status line */
+    private final AtomicLong requests = new AtomicLong(), dropped = new AtomicLong(), failed = new AtomicLong();
+
+    private StubServer(Options options) throws Exception {
+
+        state = new StubState(options.open);
+        noExchange = options.noExchange;
+
+        SSLContext context = Tls.context(Tls.locate(options.keystore), Tls.locate(options.truststore));
+
+        server = HttpsServer.create(new InetSocketAddress(options.port), options.backlog);
+        server.setHttpsConfigurator(new HttpsConfigurator(context) {
+            @Override
+            public void configure(HttpsParameters params) {
+                params.setSSLParameters(getSSLContext().getDefaultSSLParameters());
+                params.setNeedClientAuth(true);
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(options.threads));
+
+        Filter faults = new Faults(options);
+        server.createContext("/users", users).getFilters().add(faults);
+        server.createContext("/maps", maps).getFilters().add(faults);
+        server.createContext("/game", game).getFilters().add(faults);
+        server.createContext("/players", players).getFilters().add(faults);
+
+        if (options.mazes > 0) {
+            state.populate(options.mazes, options.lines, options.points, options.players, new Random(options.seed));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Options options = Options.parse(args);
+        if (options == null) {
+            System.err.println(usage());
+            System.exit(2);
+            return;
+        }
+
+        final StubServer stub = new StubServer(options);
+        stub.server.start();
+
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+        if (options.mazes > 0 && options.players > 0) {
+            final Random random = new Random(options.seed);
+            timer.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    stub.state.moveBots(random);
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+        }
+
+        timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println(stub.state.counts() + " requests=" + stub.requests.get()
+                        + " dropped=" + stub.dropped.get() + " failed=" + stub.failed.get());
+            }
+        }, 10, 10, TimeUnit.SECONDS);
+
+        System.out.println("Listening on https://0.0.0.0:" + options.port + "/ " + stub.state.counts());
+    }
+
+    static String usage() {
+        return "usage: StubServer [options]\n"
+                + "  --port N          listen port (8000)\n"
+                + "  --threads N       handler threads (16)\n"
+                + "  --latency MS      added to every request (0)\n"
+                + "  --jitter MS       uniform extra latency, 0 to MS (0)\n"
+                + "  --drop P          probability of closing without an answer (0)\n"
+                + "  --error P         probability of answering 503 (0)\n"
+                + "  --mazes N         synthetic mazes, one game each (0)\n"
+                + "  --lines N         lines per synthetic maze (50)\n"
+                + "  --points N        points per line, about 10 m apart (20)\n"
+                + "  --players N       moving bots per synthetic game (0)\n"
+                + "  --seed N          random seed of the synthetic data (1)\n"
+                + "  --open            skip access token checks\n"
+                + "  --no-exchange     answer players?exchange=1 with 404, as servers before it\n"
+                + "  --keystore PATH   BKS key pair (" + Tls.KEYSTORE + ")\n"
+                + "  --truststore PATH BKS pinned peers (" + Tls.TRUSTSTORE + ")";
+    }
+
+    /**
+     * Command line options
+     */
+    static class Options {
+        int port = 8000, threads = 16, backlog = 128;
+        long latency = 0, jitter = 0;
+        double drop = 0, error = 0;
+        int mazes = 0, lines = 50, points = 20, players = 0;
+        long seed = 1;
+        boolean open = false, noExchange = false;
+        String keystore = Tls.KEYSTORE, truststore = Tls.TRUSTSTORE;
+
+        /**
+         * @return The options, null if they are not valid
+         */
+        static Options parse(String[] args) {
+
+            Options options = new Options();
+
+            try {
+                for (int i = 0; i < args.length; i++) {
+                    switch (args[i]) {
+                        case "--port": options.port = Integer.parseInt(args[++i]); break;
+                        case "--threads": options.threads = Integer.parseInt(args[++i]); break;
+                        case "--latency": options.latency = Long.parseLong(args[++i]); break;
+                        case "--jitter": options.jitter = Long.parseLong(args[++i]); break;
+                        case "--drop": options.drop = Double.parseDouble(args[++i]); break;
+                        case "--error": options.error = Double.parseDouble(args[++i]); break;
+                        case "--mazes": options.mazes = Integer.parseInt(args[++i]); break;
+                        case "--lines": options.lines = Integer.parseInt(args[++i]); break;
+                        case "--points": options.points = Integer.parseInt(args[++i]); break;
+                        case "--players": options.players = Integer.parseInt(args[++i]); break;
+                        case "--seed": options.seed = Long.parseLong(args[++i]); break;
+                        case "--open": options.open = true; break;
+                        case "--no-exchange": options.noExchange = true; break;
+                        case "--keystore": options.keystore = args[++i]; break;
+                        case "--truststore": options.truststore = args[++i]; break;
+                        default: return null;
+                    }
+                }
+            } catch (RuntimeException e) {
+                return null;
+            }
+
+            return options;
+        }
+    }
+
+    /**
+     * Adds latency and failures in front of every handler
+     */
+    private class Faults extends Filter {
+
+        private final Options options;
+
+        Faults(Options options) {
+            this.options = options;
+        }
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+
+            requests.incrementAndGet();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            long delay = options.latency + (options.jitter > 0 ? random.nextLong(options.jitter + 1) : 0);
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (options.drop > 0 && random.nextDouble() < options.drop) {
+                dropped.incrementAndGet();
+                // closing before any header is sent drops the connection
+                exchange.close();
+                return;
+            }
+
+            if (options.error > 0 && random.nextDouble() < options.error) {
+                failed.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                send(exchange, StubState.Reply.empty(503));
+                return;
+            }
+
+            chain.doFilter(exchange);
+        }
+
+        @Override
+        public String description() {
+            return "Latency and failures";
+        }
+    }
+
+    /**
+     * Handler of one endpoint, turning protocol errors into 400 answers
+     */
+    private abstract static class Endpoint implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            StubState.Reply reply;
+            try {
+                reply = answer(exchange.getRequestMethod(), query(exchange), exchange);
+            } catch (JSONException | NumberFormatException e) {
+                reply = StubState.Reply.empty(400);
+            }
+            send(exchange, reply);
+        }
+
+        abstract StubState.Reply answer(String method, Map<String, String> query, HttpExchange exchange)
+                throws IOException, JSONException;
+    }
+
+    private final HttpHandler users = new Endpoint() {
+        @Override
+        StubState.Reply answer(String method, Map<String, String> query, HttpExchange exchange)
+                throws IOException, JSONException {
+            switch (method) {
+                case "PUT": return state.register(json(exchange));
+                case "POST": return state.login(json(exchange));
+                default: return StubState.Reply.empty(405);
+            }
+        }
+    };
+
+    private final HttpHandler maps = new Endpoint() {
+        @Override
+        StubState.Reply answer(String method, Map<String, String> query, HttpExchange exchange)
+                throws IOException, JSONException {
+            switch (method) {
+                case "PUT":
+                    String type = exchange.getRequestHeaders().getFirst("Content-Type");
+                    return state.putMap(body(exchange), type != null && type.startsWith(MazeCodec.CONTENT_TYPE));
+                case "GET":
+                    return state.getMap(query.get("name"), exchange.getRequestHeaders().getFirst("Accept"),
+                            exchange.getRequestHeaders().getFirst("If-None-Match"));
+                default:
+                    return StubState.Reply.empty(405);
+            }
+        }
+    };
+
+    private final HttpHandler game = new Endpoint() {
+        @Override
+        StubState.Reply answer(String method, Map<String, String> query, HttpExchange exchange)
+                throws IOException, JSONException {
+            switch (method) {
+                case "PUT":
+                    return state.createGame(json(exchange));
+                case "GET":
+                    return state.listGames(number(query, "offset", 0), number(query, "limit", -1));
+                case "POST":
+                    return state.joinGame(json(exchange));
+                default:
+                    return StubState.Reply.empty(405);
+            }
+        }
+    };
+
+    private final HttpHandler players = new Endpoint() {
+        @Override
+        StubState.Reply answer(String method, Map<String, String> query, HttpExchange exchange)
+                throws IOException, JSONException {
+            long since = query.containsKey("since") ? Long.parseLong(query.get("since")) : -1;
+            switch (method) {
+                case "GET":
+                    return state.players(query.get("owner"), since);
+                case "POST":
+                    boolean combined = "1".equals(query.get("exchange"));
+                    if (combined && noExchange) return StubState.Reply.empty(404);
+                    return state.postPosition(json(exchange), combined, since);
+                default:
+                    return StubState.Reply.empty(405);
+            }
+        }
+    };
+
+    private static void send(HttpExchange exchange, StubState.Reply reply) throws IOException {
+
+        for (Map.Entry<String, String> header : reply.headers.entrySet()) {
+            exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+        }
+
+        // drain what the handler did not read, so the connection can be kept alive
+        drain(exchange.getRequestBody());
+
+        boolean noBody = reply.body.length == 0 || reply.code == 304;
+        exchange.sendResponseHeaders(reply.code, noBody ? -1 : reply.body.length);
+        if (!noBody) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(reply.body);
+        }
+        exchange.close();
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+
+        Map<String, String> query = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) return query;
+
+        for (String pair : raw.split("&")) {
+            int equals = pair.indexOf('=');
+            try {
+                if (equals < 0) {
+                    query.put(URLDecoder.decode(pair, "UTF-8"), "");
+                } else {
+                    query.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                            URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                // malformed pairs are ignored
+            }
+        }
+        return query;
+    }
+
+    private static int number(Map<String, String> query, String name, int fallback) {
+        String value = query.get(name);
+        return value == null ? fallback : Integer.parseInt(value);
+    }
+
+    private static byte[] body(HttpExchange exchange) throws IOException {
+
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static JSONObject json(HttpExchange exchange) throws IOException, JSONException {
+        return new JSONObject(new String(body(exchange), StubState.UTF8));
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1) {
+            // discard
+        }
+    }
+}
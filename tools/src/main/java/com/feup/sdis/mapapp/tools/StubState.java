@@ -0,0 +1,562 @@
+package com.feup.sdis.mapapp.tools;
+
+import com.feup.sdis.mapapp.maze.MazeCodec;
+import com.google.android.gms.maps.model.LatLng;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In memory users, maps, games and player positions of the stand-in server, and the protocol
+ * rules of each endpoint, apart from HTTP.
+ *
+ * Players follow the delta snapshots of the app PlayerTable: every position change bumps the
+ * game version, "since" asks for what changed after a version, and a version older than the
+ * kept departures (or newer than the game, after a restart) is answered 410 so the client
+ * resyncs. Players silent for {@link #PLAYER_TIMEOUT} leave the game
+ */
+public class StubState {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Time without a position before a player leaves, in milliseconds */
+    static final long PLAYER_TIMEOUT = 60 * 1000;
+
+    /** Departures kept for delta snapshots, older versions get a 410 */
+    static final int MAX_DEPARTURES = 256;
+
+    /** Synthetic mazes are drawn around FEUP */
+    private static final double ORIGIN_LAT = 41.1780, ORIGIN_LNG = -8.5960;
+
+    /** Meters per degree of latitude */
+    private static final double METERS_PER_DEGREE = 111195;
+
+    /**
+     * Status, headers and body of an answer
+     */
+    public static class Reply {
+
+        public final int code;
+
+        public final Map<String, String> headers = new LinkedHashMap<>();
+
+        public final byte[] body;
+
+        Reply(int code, String contentType, byte[] body) {
+            this.code = code;
+            this.body = body;
+            if (contentType != null) headers.put("Content-Type", contentType);
+        }
+
+        static Reply json(int code, JSONObject body) {
+            return new Reply(code, "application/json", body.toString().getBytes(UTF8));
+        }
+
+        static Reply empty(int code) {
+            return new Reply(code, null, new byte[0]);
+        }
+    }
+
+    private static class User {
+        final String hash;
+        volatile String token = null;
+
+        User(String hash) {
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * A stored maze with both of its forms ready to send
+     */
+    private static class StoredMap {
+        final String owner;
+        final byte[] binary, json;
+        final String etag, lastModified;
+
+        StoredMap(MazeCodec.Maze maze, String owner) throws JSONException {
+            this.owner = owner;
+            maze.fields.put("owner", owner);
+            binary = MazeCodec.encode(maze, true);
+            json = toJson(maze, owner).toString().getBytes(UTF8);
+            etag = "\"" + UUID.randomUUID() + "\"";
+            lastModified = httpDate(System.currentTimeMillis());
+        }
+    }
+
+    private static class Player {
+        final String username;
+        double lat, lng;
+        long version, seenAt;
+
+        Player(String username) {
+            this.username = username;
+        }
+    }
+
+    private static class Departure {
+        final long version;
+        final String username;
+
+        Departure(long version, String username) {
+            this.version = version;
+            this.username = username;
+        }
+    }
+
+    /**
+     * A game and its players, guarded by itself
+     */
+    private static class Game {
+        final String owner, mapname;
+        final Map<String, Player> players = new LinkedHashMap<>();
+
+        /** Departures in version order */
+        final ArrayDeque<Departure> departures = new ArrayDeque<>();
+
+        long version = 0;
+
+        /** Oldest version a delta can be computed from */
+        long floor = 0;
+
+        Game(String owner, String mapname) {
+            this.owner = owner;
+            this.mapname = mapname;
+        }
+    }
+
+    private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, StoredMap> maps = new ConcurrentHashMap<>();
+
+    /** Games by owner, in creation order, guarded by itself */
+    private final Map<String, Game> games = new LinkedHashMap<>();
+
+    /** True to skip access token checks, for load generators that never log in */
+    private final boolean open;
+
+    public StubState(boolean open) {
+        this.open = open;
+    }
+
+    private boolean authorized(JSONObject request) {
+        if (open) return true;
+        User user = users.get(request.optString("username", ""));
+        String token = user == null ? null : user.token;
+        return token != null && token.equals(request.optString("accesstoken", null));
+    }
+
+    // users
+
+    public Reply register(JSONObject request) {
+
+        String username = request.optString("username", "");
+        String hash = request.optString("userhash", "");
+        if (username.isEmpty() || hash.isEmpty()) return Reply.empty(400);
+
+        return users.putIfAbsent(username, new User(hash)) == null ? Reply.empty(201) : Reply.empty(409);
+    }
+
+    public Reply login(JSONObject request) throws JSONException {
+
+        String username = request.optString("username", "");
+        User user = users.get(username);
+        if (user == null || !user.hash.equals(request.optString("userhash", ""))) return Reply.empty(403);
+
+        user.token = UUID.randomUUID().toString();
+        return Reply.json(303, new JSONObject().put("username", username).put("accesstoken", user.token));
+    }
+
+    // maps
+
+    /**
+     * @param binary  True if the body is the {@link MazeCodec} form, JSON otherwise
+     */
+    public Reply putMap(byte[] body, boolean binary) throws JSONException {
+
+        MazeCodec.Maze maze;
+        try {
+            maze = binary ? MazeCodec.decode(new ByteArrayInputStream(body)) : fromJson(new JSONObject(new String(body, UTF8)));
+        } catch (IOException | JSONException | IllegalArgumentException e) {
+            return Reply.empty(400);
+        }
+
+        JSONObject credentials = new JSONObject()
+                .put("username", maze.fields.get("username"))
+                .put("accesstoken", maze.fields.get("accesstoken"));
+        if (!authorized(credentials)) return Reply.empty(403);
+
+        String name = maze.fields.get("name");
+        if (name == null || name.isEmpty()) return Reply.empty(400);
+
+        String owner = maze.fields.get("username");
+        maze.fields.remove("username");
+        maze.fields.remove("accesstoken");
+
+        return maps.putIfAbsent(name, new StoredMap(maze, owner)) == null ? Reply.empty(201) : Reply.empty(409);
+    }
+
+    /**
+     * @param accept      Accept header, may be null
+     * @param ifNoneMatch If-None-Match header, may be null
+     */
+    public Reply getMap(String name, String accept, String ifNoneMatch) {
+
+        StoredMap map = name == null ? null : maps.get(name);
+        if (map == null) return Reply.empty(404);
+
+        Reply reply;
+        if (ifNoneMatch != null && ifNoneMatch.contains(map.etag)) {
+            reply = Reply.empty(304);
+        } else if (accept != null && accept.contains(MazeCodec.CONTENT_TYPE)) {
+            reply = new Reply(200, MazeCodec.CONTENT_TYPE, map.binary);
+        } else {
+            reply = new Reply(200, "application/json", map.json);
+        }
+
+        reply.headers.put("ETag", map.etag);
+        reply.headers.put("Last-Modified", map.lastModified);
+        reply.headers.put("Vary", "Accept");
+        return reply;
+    }
+
+    static MazeCodec.Maze fromJson(JSONObject request) throws JSONException {
+
+        MazeCodec.Maze maze = new MazeCodec.Maze();
+        JSONObject info = request.getJSONObject("map");
+
+        maze.fields.put("name", info.getString("name"));
+        maze.fields.put("username", request.optString("username", null));
+        maze.fields.put("accesstoken", request.optString("accesstoken", null));
+
+        // the app sends the coordinates as strings, getDouble takes both
+        maze.startlat = info.getDouble("startlat");
+        maze.startlng = info.getDouble("startlng");
+        maze.finishlat = info.getDouble("finishlat");
+        maze.finishlng = info.getDouble("finishlng");
+
+        JSONArray lines = request.optJSONArray("lines");
+        for (int i = 0; lines != null && i < lines.length(); i++) {
+            maze.lines.add(Polyline.decode(lines.getJSONObject(i).getString("draw")));
+        }
+
+        return maze;
+    }
+
+    static JSONObject toJson(MazeCodec.Maze maze, String owner) throws JSONException {
+
+        JSONObject info = new JSONObject()
+                .put("name", maze.fields.get("name"))
+                .put("owner", owner)
+                .put("startlat", maze.startlat)
+                .put("startlng", maze.startlng)
+                .put("finishlat", maze.finishlat)
+                .put("finishlng", maze.finishlng);
+
+        JSONArray lines = new JSONArray();
+        for (List<LatLng> line : maze.lines) {
+            lines.put(new JSONObject().put("draw", Polyline.encode(line)));
+        }
+
+        return new JSONObject().put("map", info).put("lines", lines);
+    }
+
+    // games
+
+    public Reply createGame(JSONObject request) {
+
+        if (!authorized(request)) return Reply.empty(403);
+
+        String mapname = request.optString("mapname", "");
+        if (!maps.containsKey(mapname)) return Reply.empty(404);
+
+        String owner = request.optString("username", "");
+        synchronized (games) {
+            // a new game replaces the old one of the same owner, at the end of the list
+            games.remove(owner);
+            games.put(owner, new Game(owner, mapname));
+        }
+        return Reply.empty(200);
+    }
+
+    /**
+     * @param offset First game, 0 for the newest-first list start
+     * @param limit  Max games, negative for all of them
+     */
+    public Reply listGames(int offset, int limit) throws JSONException {
+
+        List<Game> all;
+        synchronized (games) {
+            all = new ArrayList<>(games.values());
+        }
+
+        int from = Math.max(0, Math.min(offset, all.size()));
+        int to = limit < 0 ? all.size() : Math.min(all.size(), from + limit);
+
+        JSONArray page = new JSONArray();
+        for (Game game : all.subList(from, to)) {
+            page.put(new JSONObject().put("owner", game.owner).put("mapname", game.mapname));
+        }
+
+        return Reply.json(200, new JSONObject().put("games", page).put("total", all.size()));
+    }
+
+    public Reply joinGame(JSONObject request) throws JSONException {
+
+        if (!authorized(request)) return Reply.empty(403);
+
+        Game game = game(request.optString("owner", ""));
+        if (game == null) return Reply.empty(404);
+
+        JSONObject position = request.optJSONObject("position");
+        if (position != null) {
+            move(game, request.optString("username", ""), position.getDouble("lat"), position.getDouble("lng"));
+        }
+        return Reply.empty(200);
+    }
+
+    private Game game(String owner) {
+        synchronized (games) {
+            return games.get(owner);
+        }
+    }
+
+    // players
+
+    /**
+     * Stores a player position
+     *
+     * @param exchange True to answer with the players snapshot, like {@link #players}
+     * @param since    Version the client knows, -1 for a full snapshot
+     */
+    public Reply postPosition(JSONObject request, boolean exchange, long since) throws JSONException {
+
+        if (!authorized(request)) return Reply.empty(403);
+
+        Game game = game(request.optString("owner", ""));
+        if (game == null) return Reply.empty(404);
+
+        JSONObject position = request.optJSONObject("position");
+        if (position == null) return Reply.empty(400);
+
+        move(game, request.optString("username", ""), position.getDouble("lat"), position.getDouble("lng"));
+
+        return exchange ? snapshot(game, since) : Reply.json(200, new JSONObject());
+    }
+
+    /**
+     * @param since Version the client knows, -1 for a full snapshot
+     */
+    public Reply players(String owner, long since) throws JSONException {
+
+        Game game = owner == null ? null : game(owner);
+        if (game == null) return Reply.empty(404);
+
+        return snapshot(game, since);
+    }
+
+    private void move(Game game, String username, double lat, double lng) {
+
+        synchronized (game) {
+            Player player = game.players.get(username);
+            if (player == null) {
+                player = new Player(username);
+                game.players.put(username, player);
+            } else if (player.lat == lat && player.lng == lng) {
+                player.seenAt = System.currentTimeMillis();
+                return;
+            }
+
+            player.lat = lat;
+            player.lng = lng;
+            player.version = ++game.version;
+            player.seenAt = System.currentTimeMillis();
+        }
+    }
+
+    private Reply snapshot(Game game, long since) throws JSONException {
+
+        synchronized (game) {
+
+            expire(game);
+
+            if (since >= 0 && (since < game.floor || since > game.version)) {
+                return Reply.empty(410);
+            }
+
+            boolean full = since < 0;
+            JSONArray players = new JSONArray();
+
+            for (Player player : game.players.values()) {
+                if (full || player.version > since) {
+                    players.put(new JSONObject()
+                            .put("username", player.username)
+                            .put("position", new JSONObject().put("lat", player.lat).put("lng", player.lng)));
+                }
+            }
+
+            JSONObject answer = new JSONObject()
+                    .put("version", game.version)
+                    .put("full", full)
+                    .put("players", players);
+
+            if (!full) {
+                JSONArray left = new JSONArray();
+                for (Departure departure : game.departures) {
+                    if (departure.version > since) left.put(departure.username);
+                }
+                answer.put("left", left);
+            }
+
+            return Reply.json(200, answer);
+        }
+    }
+
+    /**
+     * Removes the players gone silent, under the game lock
+     */
+    private static void expire(Game game) {
+
+        long now = System.currentTimeMillis();
+
+        Iterator<Player> it = game.players.values().iterator();
+        while (it.hasNext()) {
+            Player player = it.next();
+            if (now - player.seenAt > PLAYER_TIMEOUT) {
+                it.remove();
+                game.departures.addLast(new Departure(++game.version, player.username));
+            }
+        }
+
+        while (game.departures.size() > MAX_DEPARTURES) {
+            game.floor = game.departures.removeFirst().version;
+        }
+    }
+
+    // synthetic load
+
+    /**
+     * Adds synthetic mazes, one game on each, and bot players in every game
+     *
+     * @param mazes   Number of mazes, named "synthetic-N" and owned by "bot-N"
+     * @param lines   Lines per maze
+     * @param points  Points per line, about 10 m apart
+     * @param players Bots per game
+     */
+    public void populate(int mazes, int lines, int points, int players, Random random) throws JSONException {
+
+        for (int m = 0; m < mazes; m++) {
+
+            MazeCodec.Maze maze = new MazeCodec.Maze();
+            maze.fields.put("name", "synthetic-" + m);
+
+            for (int l = 0; l < lines; l++) {
+                List<LatLng> line = new ArrayList<>(points);
+                double lat = ORIGIN_LAT + (random.nextDouble() - 0.5) * 0.004;
+                double lng = ORIGIN_LNG + (random.nextDouble() - 0.5) * 0.005;
+                for (int p = 0; p < points; p++) {
+                    line.add(new LatLng(lat, lng));
+                    double angle = random.nextDouble() * 2 * Math.PI;
+                    lat += 10 * Math.sin(angle) / METERS_PER_DEGREE;
+                    lng += 10 * Math.cos(angle) / (METERS_PER_DEGREE * Math.cos(Math.toRadians(ORIGIN_LAT)));
+                }
+                maze.lines.add(line);
+            }
+
+            List<LatLng> first = maze.lines.isEmpty() ? Collections.singletonList(new LatLng(ORIGIN_LAT, ORIGIN_LNG))
+                    : maze.lines.get(0);
+            maze.startlat = first.get(0).latitude;
+            maze.startlng = first.get(0).longitude;
+            maze.finishlat = first.get(first.size() - 1).latitude;
+            maze.finishlng = first.get(first.size() - 1).longitude;
+
+            String owner = "bot-" + m;
+            maps.put("synthetic-" + m, new StoredMap(maze, owner));
+
+            Game game = new Game(owner, "synthetic-" + m);
+            for (int p = 0; p < players; p++) {
+                move(game, owner + "-" + p, maze.startlat, maze.startlng);
+            }
+            synchronized (games) {
+                games.put(owner, game);
+            }
+        }
+    }
+
+    /**
+     * Moves every bot of the synthetic games a step of up to 2 m, keeping them alive
+     */
+    public void moveBots(Random random) {
+
+        List<Game> all;
+        synchronized (games) {
+            all = new ArrayList<>(games.values());
+        }
+
+        for (Game game : all) {
+            if (!game.owner.startsWith("bot-")) continue;
+
+            List<Player> bots;
+            synchronized (game) {
+                bots = new ArrayList<>(game.players.values());
+            }
+            for (Player bot : bots) {
+                if (!bot.username.startsWith(game.owner + "-")) continue;
+                double lat, lng;
+                synchronized (game) {
+                    lat = bot.lat + (random.nextDouble() - 0.5) * 4 / METERS_PER_DEGREE;
+                    lng = bot.lng + (random.nextDouble() - 0.5) * 4 / METERS_PER_DEGREE;
+                }
+                move(game, bot.username, lat, lng);
+            }
+        }
+    }
+
+    /**
+     * @return Number of users, maps, games and players, for the status line
+     */
+    public Map<String, Integer> counts() {
+
+        Map<String, Integer> counts = new TreeMap<>();
+        counts.put("users", users.size());
+        counts.put("maps", maps.size());
+
+        int players = 0;
+        synchronized (games) {
+            counts.put("games", games.size());
+            for (Game game : games.values()) {
+                synchronized (game) {
+                    players += game.players.size();
+                }
+            }
+        }
+        counts.put("players", players);
+        return counts;
+    }
+
+    static String httpDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+}
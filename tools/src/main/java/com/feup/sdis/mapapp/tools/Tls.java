@@ -0,0 +1,134 @@
+package com.feup.sdis.mapapp.tools;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * TLS setup shared by the tools, from the same BKS stores the app ships in its assets.
+ *
+ * The app keystore holds the server key pair, which the app also presents as its client
+ * certificate, and the truststore pins every client and server certificate. The certificates
+ * are self-signed and expired in 2018, so peers are checked by exact match against the
+ * truststore instead of PKIX path validation, which would reject them on date alone
+ */
+public final class Tls {
+
+    /** Stores in the app assets, relative to the repository root */
+    public static final String KEYSTORE = "app/src/main/assets/testks.bks";
+    public static final String TRUSTSTORE = "app/src/main/assets/truststore.bks";
+
+    private static final char[] PASSWORD = "123456".toCharArray();
+
+    private Tls() {
+    }
+
+    /**
+     * @param keystore   BKS keystore with the key pair to present
+     * @param truststore BKS truststore with the pinned peer certificates
+     * @return Context usable by servers and clients alike
+     */
+    public static SSLContext context(File keystore, File truststore) throws IOException, GeneralSecurityException {
+
+        KeyStore keys = load(keystore);
+        KeyStore trusted = load(truststore);
+
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keys, PASSWORD);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), new TrustManager[]{new PinnedTrustManager(trusted)}, new SecureRandom());
+        return context;
+    }
+
+    /**
+     * Finds a store given as is, or relative to the repository root when run from a module
+     */
+    public static File locate(String path) {
+        File file = new File(path);
+        if (!file.exists() && !file.isAbsolute()) {
+            File fromModule = new File("..", path);
+            if (fromModule.exists()) return fromModule;
+        }
+        return file;
+    }
+
+    private static KeyStore load(File file) throws IOException, GeneralSecurityException {
+
+        KeyStore store = KeyStore.getInstance("BKS", new BouncyCastleProvider());
+        InputStream in = new FileInputStream(file);
+        try {
+            store.load(in, PASSWORD);
+        } finally {
+            in.close();
+        }
+        return store;
+    }
+
+    /**
+     * Trusts a peer whose certificate is one of the truststore ones, whatever its dates
+     */
+    private static class PinnedTrustManager implements X509TrustManager {
+
+        private final X509Certificate[] pinned;
+
+        PinnedTrustManager(KeyStore store) throws GeneralSecurityException {
+
+            List<X509Certificate> certificates = new ArrayList<>();
+            Enumeration<String> aliases = store.aliases();
+            while (aliases.hasMoreElements()) {
+                Certificate certificate = store.getCertificate(aliases.nextElement());
+                if (certificate instanceof X509Certificate) {
+                    certificates.add((X509Certificate) certificate);
+                }
+            }
+
+            pinned = certificates.toArray(new X509Certificate[certificates.size()]);
+        }
+
+        private void check(X509Certificate[] chain) throws CertificateException {
+
+            if (chain == null || chain.length == 0) {
+                throw new CertificateException("No peer certificate");
+            }
+
+            for (X509Certificate certificate : pinned) {
+                if (certificate.equals(chain[0])) return;
+            }
+
+            throw new CertificateException("Untrusted peer " + chain[0].getSubjectX500Principal());
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            check(chain);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            check(chain);
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return pinned;
+        }
+    }
+}
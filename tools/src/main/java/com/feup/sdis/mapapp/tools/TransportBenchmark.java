@@ -0,0 +1,154 @@
+package com.feup.sdis.mapapp.tools;
+
+import com.feup.sdis.mapapp.client.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Measures requests per second and latency percentiles of the app transport against a
+ * server, usually the {@link StubServer}.
+ *
+ * Three passes send the same GETs over HttpsURLConnection with the app certificates. The first
+ * loads the keystores and builds a new SSLContext for every request, then disconnects, as
+ * ServerService first did, so each one pays the key material and a full handshake. The second
+ * shares one context, as SSLContextHolder does, so the handshakes resume the TLS session but
+ * still open a socket each. The third also reads every body to the end and closes it instead of
+ * disconnecting, as HttpTransport does, so requests reuse the sockets of the keep-alive pool,
+ * bounded like the app one. The server certificate is pinned by {@link Tls}, so host names are
+ * not checked
+ */
+public final class TransportBenchmark {
+
+    /** Idle sockets kept per host, as HttpTransport **/
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+
+    private static final HostnameVerifier ANY_HOST = new HostnameVerifier() {
+        @Override
+        public boolean verify(String hostname, SSLSession session) {
+            return true;
+        }
+    };
+
+    /** How each pass sets its connections up **/
+    private enum Setup {
+
+        /** New context per request, disconnected after it **/
+        COLD("cold"),
+
+        /** Shared context, disconnected after each request **/
+        RESUMED("resumed"),
+
+        /** Shared context, sockets kept in the pool **/
+        KEEP_ALIVE("keep-alive");
+
+        final String name;
+
+        Setup(String name) {
+            this.name = name;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        String url = args.length > 0 ? args[0] : "https://localhost:8000/";
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : MAX_IDLE_CONNECTIONS;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        String path = args.length > 3 ? args[3] : "game?offset=0&limit=25";
+
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+
+        SSLContext context = Tls.context(Tls.locate(Tls.KEYSTORE), Tls.locate(Tls.TRUSTSTORE));
+        URL target = new URL(url + path);
+
+        // warm the JIT and the TLS session cache up before measuring any pass
+        for (Setup setup : Setup.values()) {
+            run(context, target, threads, requests / 4, setup);
+        }
+
+        System.out.println(String.format(Locale.US, "%d GETs of %s over %d threads", requests, target, threads));
+        for (Setup setup : Setup.values()) {
+            report(setup.name, run(context, target, threads, requests, setup));
+        }
+    }
+
+    private static final class Pass {
+
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        final AtomicInteger errors = new AtomicInteger();
+
+        long elapsedNanos;
+    }
+
+    private static Pass run(final SSLContext context, final URL target, int threads, int requests,
+                            final Setup setup) throws InterruptedException {
+
+        final Pass pass = new Pass();
+        final AtomicInteger left = new AtomicInteger(requests);
+        final CountDownLatch finished = new CountDownLatch(threads);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[8 * 1024];
+                    while (left.getAndDecrement() > 0) {
+                        long sent = System.nanoTime();
+                        try {
+                            HttpsURLConnection connection = (HttpsURLConnection) target.openConnection();
+                            connection.setSSLSocketFactory(setup == Setup.COLD
+                                    ? Tls.context(Tls.locate(Tls.KEYSTORE), Tls.locate(Tls.TRUSTSTORE)).getSocketFactory()
+                                    : context.getSocketFactory());
+                            connection.setHostnameVerifier(ANY_HOST);
+                            int code = connection.getResponseCode();
+                            InputStream in = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                            if (in != null) {
+                                while (in.read(buffer) != -1) {
+                                }
+                                in.close();
+                            }
+                            if (setup != Setup.KEEP_ALIVE) {
+                                connection.disconnect();
+                            }
+                            if (code >= 500) {
+                                pass.errors.incrementAndGet();
+                            }
+                        } catch (IOException | GeneralSecurityException e) {
+                            pass.errors.incrementAndGet();
+                        }
+                        long micros = (System.nanoTime() - sent) / 1000;
+                        synchronized (pass.latency) {
+                            pass.latency.record(micros);
+                        }
+                    }
+                    finished.countDown();
+                }
+            }, "Transport-" + i).start();
+        }
+        finished.await();
+        pass.elapsedNanos = System.nanoTime() - start;
+        return pass;
+    }
+
+    private static void report(String name, Pass pass) {
+        LatencyHistogram latency = pass.latency;
+        System.out.println(String.format(Locale.US,
+                "%-10s  %8.0f req/s  p50 %6.2f ms  p99 %6.2f ms  max %6.2f ms  errors %d",
+                name, latency.getCount() * 1e9 / pass.elapsedNanos,
+                latency.percentile(0.5) / 1000.0, latency.percentile(0.99) / 1000.0,
+                latency.getMax() / 1000.0, pass.errors.get()));
+    }
+}
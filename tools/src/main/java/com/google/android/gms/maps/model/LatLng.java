@@ -0,0 +1,37 @@
+package com.google.android.gms.maps.model;
+
+/**
+ * Plain JVM stand-in for the Play services class of the same name, with the same fields, so
+ * the maze classes of the app compile and run in the tools
+ */
+public final class LatLng {
+
+    public final double latitude;
+
+    public final double longitude;
+
+    public LatLng(double latitude, double longitude) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof LatLng)) return false;
+        LatLng other = (LatLng) o;
+        return Double.doubleToLongBits(latitude) == Double.doubleToLongBits(other.latitude)
+                && Double.doubleToLongBits(longitude) == Double.doubleToLongBits(other.longitude);
+    }
+
+    @Override
+    public int hashCode() {
+        long bits = Double.doubleToLongBits(latitude) * 31 + Double.doubleToLongBits(longitude);
+        return (int) (bits ^ (bits >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "lat/lng: (" + latitude + "," + longitude + ")";
+    }
+}